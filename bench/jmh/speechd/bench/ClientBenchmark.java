@@ -0,0 +1,106 @@
+/*
+ * ClientBenchmark.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import speechd.ssip.SSIPClient;
+import speechd.ssip.SSIPException;
+import speechd.ssip.SSIPPriority;
+import speechd.ssip.SSIPSynthesisVoice;
+import speechd.tests.FakeSSIPServer;
+
+/**
+ * End to end benchmarks of {@link SSIPClient} calls against an in-process {@link FakeSSIPServer} over a unix domain socket: a round trip per call, through the writer, the socket, the communications thread and back to the caller.
+ * Run with {@code -prof gc} to see the bytes allocated per call, on all threads.
+ *
+ * @author ragb
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientBenchmark {
+	/**
+	 * Number of voices listed by {@code LIST SYNTHESIS_VOICES}.
+	 */
+	private static final int VOICES = 64;
+
+	private Path _dir;
+	private FakeSSIPServer _server;
+	private SSIPClient _client;
+
+	@Setup
+	public void setup () throws Exception {
+		Logger.getLogger("speechd").setLevel(Level.WARNING);
+		_dir = Files.createTempDirectory("speechd-jmh");
+		_server = new FakeSSIPServer();
+		// messages end at once, millions of them don't pile up in the server
+		_server.setSpeakingTime(0, TimeUnit.MILLISECONDS);
+		List<String> voices = new ArrayList<String>(VOICES);
+		for (int i = 0; i < VOICES; i++)
+			voices.add("voice" + i + ((i % 2 == 0) ? " en" : " pt") + " none");
+		_server.setSynthesisVoices(voices);
+		_client = new SSIPClient("jmh", null, null, _server.listenUnix(_dir.resolve("speechd.sock")));
+	}
+
+	@TearDown
+	public void tearDown () throws Exception {
+		_client.close();
+		_server.close();
+		Files.deleteIfExists(_dir);
+	}
+
+	@Benchmark
+	public int say () throws SSIPException {
+		return _client.say(SSIPPriority.TEXT, "The quick brown fox jumps over the lazy dog.");
+	}
+
+	@Benchmark
+	public void stop () throws SSIPException {
+		_client.stop();
+	}
+
+	@Benchmark
+	public List<SSIPSynthesisVoice> getSynthesisVoices () throws SSIPException {
+		return _client.getSynthesisVoices();
+	}
+}
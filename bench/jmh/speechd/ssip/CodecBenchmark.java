@@ -0,0 +1,219 @@
+/*
+ * CodecBenchmark.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.ssip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Microbenchmarks of the SSIP codec: formatting commands, escaping data, reading and parsing response lines, reading events and parsing voice lists.
+ * No socket is involved, the writer writes to a channel discarding everything and the reader reads the same bytes over and over, so these measure the client code alone.
+ * Run with {@code -prof gc} to see the bytes allocated per operation.
+ * <p>This class lives in {@code speechd.ssip} to reach the package private codec classes.</p>
+ *
+ * @author ragb
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+	/**
+	 * A typical say() text, with a line starting with a dot to escape.
+	 */
+	private static final String TEXT = "The quick brown fox jumps over the lazy dog.\n"
+			+ ".. and then, after a short pause, it does it all over again\n"
+			+ "with a few accented letters: ação, café, naïve.";
+
+	/**
+	 * Responses as received from the server: a command response, a message id response and an index mark event.
+	 */
+	private static final byte[] RESPONSES = ("200 OK RATE SET\r\n"
+			+ "225-42\r\n225 OK MESSAGE QUEUED\r\n"
+			+ "700-42\r\n700-7\r\n700-mark_3\r\n700 INDEX MARK\r\n").getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Lines of each response in {@link #RESPONSES}.
+	 */
+	private static final int LINES = 7;
+
+	/**
+	 * An index mark event alone.
+	 */
+	private static final byte[] EVENT = ("700-42\r\n700-7\r\n700-mark_3\r\n700 INDEX MARK\r\n").getBytes(StandardCharsets.UTF_8);
+
+	private final SSIPCommand _command = new SSIPCommand("SET", "self", "RATE", "50");
+	private SSIPWriter _writer;
+	private SSIPLineReader _reader;
+	private SSIPLineReader _eventReader;
+	private List<String> _voices;
+
+	@Setup
+	public void setup () {
+		SSIPMetrics metrics = new SSIPMetrics();
+		_writer = new SSIPWriter(new NullChannel(), SSIPConnection.CHARSET, metrics);
+		_reader = new SSIPLineReader(new RepeatingChannel(RESPONSES), SSIPConnection.CHARSET, metrics);
+		_eventReader = new SSIPLineReader(new RepeatingChannel(EVENT), SSIPConnection.CHARSET, metrics);
+		_voices = new ArrayList<String>();
+		for (int i = 0; i < 64; i++)
+			_voices.add("voice" + i + " " + ((i % 2 == 0) ? "en" : "pt") + " none");
+	}
+
+	@Benchmark
+	public String commandToString () {
+		return _command.toString();
+	}
+
+	@Benchmark
+	public void writeCommand () throws IOException {
+		_writer.writeCommand(_command);
+		_writer.flush();
+	}
+
+	/**
+	 * Escapes and encodes a data block, what the old {@code escapeData} did before writing.
+	 */
+	@Benchmark
+	public void writeData () throws IOException {
+		_writer.writeData(TEXT);
+		_writer.flush();
+	}
+
+	/**
+	 * Reads the lines of a command response, a message id response and an event, decoding every payload as the communications thread does for responses.
+	 */
+	@Benchmark
+	public void readLines (Blackhole bh) throws IOException {
+		for (int i = 0; i < LINES; i++) {
+			_reader.readLine();
+			bh.consume(_reader.getCode());
+			bh.consume(_reader.getPayload());
+		}
+	}
+
+	/**
+	 * Reads the same lines, parsing numbers in place as the communications thread does for events.
+	 */
+	@Benchmark
+	public void readLinesInts (Blackhole bh) throws IOException {
+		for (int i = 0; i < LINES; i++) {
+			_reader.readLine();
+			bh.consume(_reader.getCode());
+			// the event's message and client ids
+			if (i == 3 || i == 4)
+				bh.consume(_reader.getPayloadInt());
+		}
+	}
+
+	/**
+	 * Reads an index mark event and builds the {@code SSIPEvent}, as the communications thread does for event handlers: ids parsed in place and the type looked up by code.
+	 */
+	@Benchmark
+	public SSIPEvent readEvent () throws IOException {
+		_eventReader.readLine();
+		int msgId = _eventReader.getPayloadInt();
+		_eventReader.readLine();
+		int clientId = _eventReader.getPayloadInt();
+		_eventReader.readLine();
+		String mark = _eventReader.getPayload();
+		_eventReader.readLine();
+		SSIPEvent.EventType type = SSIPEventParser.getInstance().getType(_eventReader.getCode());
+		return new SSIPEvent(type, msgId, clientId, mark);
+	}
+
+	@Benchmark
+	public SSIPEvent.EventType eventType () {
+		return SSIPEventParser.getInstance().getType(703);
+	}
+
+	@Benchmark
+	public List<SSIPSynthesisVoice> parseSynthesisVoices () {
+		return SSIPClient.parseSynthesisVoices(_voices);
+	}
+
+	/**
+	 * Channel discarding all bytes written.
+	 */
+	private static class NullChannel implements WritableByteChannel {
+		public int write (ByteBuffer src) {
+			int n = src.remaining();
+			src.position(src.limit());
+			return n;
+		}
+
+		public boolean isOpen () {
+			return true;
+		}
+
+		public void close () {
+		}
+	}
+
+	/**
+	 * Channel reading the same bytes forever.
+	 */
+	private static class RepeatingChannel implements ReadableByteChannel {
+		private final byte[] _bytes;
+		private int _position;
+
+		RepeatingChannel (byte[] bytes) {
+			_bytes = bytes;
+		}
+
+		public int read (ByteBuffer dst) {
+			int n = 0;
+			while (dst.hasRemaining()) {
+				int count = Math.min(dst.remaining(), _bytes.length - _position);
+				dst.put(_bytes, _position, count);
+				_position = (_position + count) % _bytes.length;
+				n += count;
+			}
+			return n;
+		}
+
+		public boolean isOpen () {
+			return true;
+		}
+
+		public void close () {
+		}
+	}
+}
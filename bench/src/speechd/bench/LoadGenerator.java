@@ -0,0 +1,297 @@
+/*
+ * LoadGenerator.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.bench;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import speechd.ssip.SSIPClient;
+import speechd.ssip.SSIPException;
+import speechd.ssip.SSIPPriority;
+import speechd.tests.FakeSSIPServer;
+
+/**
+ * Drives many {@link SSIPClient}s at a fixed rate and reports throughput, latency percentiles and error rates, to find how many announcements per second go through before latency degrades.
+ * <p>Each client runs on its own thread and issues operations on a fixed schedule, {@code rate} per second, picked at random from a mix of {@code say}, {@code sayChar} and {@code setRate}.
+ * The load is open: when a call is slow the following ones are not delayed, they start late, and their latency is counted from the time they were due rather than from the time they were issued.
+ * This corrects the coordinated omission of closed loop benchmarks, where a stalled server also stalls the clients measuring it and the stall only shows up once.
+ * Both the corrected latency and the service time (from issue to return) are reported, a large gap between them means the target couldn't keep up.</p>
+ * <p>Usage: {@code LoadGenerator [-target fake|host:port|socket path] [-clients N] [-rate ops per second per client] [-duration seconds] [-warmup seconds] [-mix say:80,char:10,rate:10]}.
+ * The default target is an in-process {@link FakeSSIPServer}; use {@code localhost:6560} or the daemon's socket path for a real speech-dispatcher.</p>
+ *
+ * @author ragb
+ */
+public class LoadGenerator {
+	/**
+	 * Operations, in the order of the mix weights.
+	 */
+	private static final String[] OPERATIONS = { "say", "char", "rate" };
+
+	/**
+	 * How long operations still due are issued after the run ends, later ones are counted as missed.
+	 */
+	private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	private String _target = "fake";
+	private int _clients = 10;
+	private int _rate = 10;
+	private int _duration = 20;
+	private int _warmup = 5;
+	private final int[] _weights = { 80, 10, 10 };
+
+	public static void main (String[] args) throws Exception {
+		LoadGenerator generator = new LoadGenerator();
+		for (int i = 0; i + 1 < args.length; i += 2)
+			generator.option(args[i], args[i + 1]);
+		Logger.getLogger("speechd").setLevel(Level.WARNING);
+		generator.run();
+	}
+
+	private void option (String name, String value) {
+		if (name.equals("-target"))
+			_target = value;
+		else if (name.equals("-clients"))
+			_clients = Integer.parseInt(value);
+		else if (name.equals("-rate"))
+			_rate = Integer.parseInt(value);
+		else if (name.equals("-duration"))
+			_duration = Integer.parseInt(value);
+		else if (name.equals("-warmup"))
+			_warmup = Integer.parseInt(value);
+		else if (name.equals("-mix")) {
+			Arrays.fill(_weights, 0);
+			for (String part : value.split(",")) {
+				String[] pair = part.split(":");
+				int op = Arrays.asList(OPERATIONS).indexOf(pair[0]);
+				if (op < 0)
+					throw new IllegalArgumentException("unknown operation " + pair[0]);
+				_weights[op] = Integer.parseInt(pair[1]);
+			}
+		} else
+			throw new IllegalArgumentException("unknown option " + name);
+	}
+
+	private void run () throws Exception {
+		FakeSSIPServer fake = null;
+		SocketAddress address;
+		if (_target.equals("fake")) {
+			fake = new FakeSSIPServer();
+			address = fake.listenTcp(0);
+		} else if (_target.indexOf('/') < 0 && _target.indexOf(':') > 0) {
+			int colon = _target.lastIndexOf(':');
+			address = new InetSocketAddress(_target.substring(0, colon), Integer.parseInt(_target.substring(colon + 1)));
+		} else
+			address = UnixDomainSocketAddress.of(_target);
+
+		System.out.printf("target=%s clients=%d rate=%d/s per client duration=%ds warmup=%ds mix=say:%d,char:%d,rate:%d%n",
+				_target, _clients, _rate, _duration, _warmup, _weights[0], _weights[1], _weights[2]);
+		List<SSIPClient> clients = new ArrayList<SSIPClient>(_clients);
+		try {
+			for (int i = 0; i < _clients; i++)
+				clients.add(new SSIPClient("load" + i, null, null, address));
+
+			final long interval = TimeUnit.SECONDS.toNanos(1) / _rate;
+			final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+			final long measureFrom = start + TimeUnit.SECONDS.toNanos(_warmup);
+			final long end = measureFrom + TimeUnit.SECONDS.toNanos(_duration);
+			final Recorder[] recorders = new Recorder[_clients];
+			final CountDownLatch done = new CountDownLatch(_clients);
+			for (int i = 0; i < _clients; i++) {
+				final SSIPClient client = clients.get(i);
+				final Recorder recorder = recorders[i] = new Recorder((int) ((end - measureFrom) / interval) + 1);
+				// clients start spread over an interval, not in lockstep
+				final long first = start + ThreadLocalRandom.current().nextLong(interval);
+				Thread t = new Thread(new Runnable() {
+					public void run () {
+						try {
+							drive(client, recorder, first, interval, measureFrom, end);
+						} finally {
+							done.countDown();
+						}
+					}
+				}, "load client " + i);
+				t.setDaemon(true);
+				t.start();
+			}
+			done.await();
+			report(recorders);
+		} finally {
+			for (SSIPClient client : clients) {
+				try {
+					client.close();
+				} catch (SSIPException e) {
+					// the target may be gone already
+				}
+			}
+			if (fake != null)
+				fake.close();
+		}
+	}
+
+	/**
+	 * Issues operations on schedule from {@code first} until {@code end}, recording those due after {@code measureFrom}.
+	 */
+	private void drive (SSIPClient client, Recorder recorder, long first, long interval, long measureFrom, long end) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int total = 0;
+		for (int w : _weights)
+			total += w;
+		for (long due = first; due < end; due += interval) {
+			long now = System.nanoTime();
+			if (now - due < 0) {
+				LockSupport.parkNanos(due - now);
+				now = System.nanoTime();
+			}
+			boolean measured = due - measureFrom >= 0;
+			if (now - end > DRAIN_NANOS) {
+				// the target fell hopelessly behind
+				if (measured)
+					recorder.missed++;
+				continue;
+			}
+			int pick = random.nextInt(total);
+			int op = 0;
+			while (pick >= _weights[op])
+				pick -= _weights[op++];
+			long issued = System.nanoTime();
+			String error = null;
+			try {
+				switch (op) {
+				case 0:
+					client.say(SSIPPriority.TEXT, "announcement " + due);
+					break;
+				case 1:
+					client.sayChar(SSIPPriority.TEXT, (char) ('a' + random.nextInt(26)));
+					break;
+				default:
+					// a different value each time, the client skips unchanged parameters
+					client.setRate(random.nextInt(-100, 101));
+				}
+			} catch (SSIPException | RuntimeException e) {
+				// runtime errors too, a closed client must not end the thread with its operations uncounted
+				error = e.getClass().getSimpleName();
+			}
+			long completed = System.nanoTime();
+			if (measured)
+				recorder.record(op, completed - due, completed - issued, error);
+		}
+	}
+
+	private void report (Recorder[] recorders) {
+		long attempted = 0;
+		long missed = 0;
+		Map<String, Long> errors = new TreeMap<String, Long>();
+		for (Recorder r : recorders) {
+			attempted += r.count + r.missed;
+			missed += r.missed;
+			for (Map.Entry<String, Long> e : r.errors.entrySet()) {
+				Long n = errors.get(e.getKey());
+				errors.put(e.getKey(), (n == null ? 0 : n) + e.getValue());
+			}
+		}
+		long failed = 0;
+		for (long n : errors.values())
+			failed += n;
+		long completed = attempted - missed;
+		System.out.printf("attempted %d ops (%.0f/s), completed %d (%.0f/s), errors %d (%.2f%%), missed %d%n",
+				attempted, attempted / (double) _duration, completed, completed / (double) _duration,
+				failed, attempted == 0 ? 0 : 100.0 * failed / attempted, missed);
+		if (!errors.isEmpty())
+			System.out.println("errors by type: " + errors);
+		System.out.printf("%-18s %8s %9s %9s %9s %9s %9s%n", "latency (ms)", "count", "p50", "p90", "p99", "p99.9", "max");
+		for (int op = 0; op < OPERATIONS.length; op++)
+			line(OPERATIONS[op], recorders, op, true);
+		line("all", recorders, -1, true);
+		line("all, service time", recorders, -1, false);
+	}
+
+	private static void line (String name, Recorder[] recorders, int op, boolean corrected) {
+		int n = 0;
+		for (Recorder r : recorders)
+			n += r.count;
+		long[] samples = new long[n];
+		int count = 0;
+		for (Recorder r : recorders) {
+			for (int i = 0; i < r.count; i++) {
+				if (op < 0 || r.ops[i] == op)
+					samples[count++] = corrected ? r.latencies[i] : r.serviceTimes[i];
+			}
+		}
+		if (count == 0)
+			return;
+		Arrays.sort(samples, 0, count);
+		System.out.printf("%-18s %8d %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, count,
+				percentile(samples, count, 0.50) / 1e6, percentile(samples, count, 0.90) / 1e6,
+				percentile(samples, count, 0.99) / 1e6, percentile(samples, count, 0.999) / 1e6,
+				samples[count - 1] / 1e6);
+	}
+
+	private static long percentile (long[] sorted, int length, double p) {
+		int i = (int) Math.ceil(p * length) - 1;
+		return sorted[Math.max(0, Math.min(i, length - 1))];
+	}
+
+	/**
+	 * Samples of one client, only touched by its thread until the run ends.
+	 */
+	private static class Recorder {
+		long[] latencies;
+		long[] serviceTimes;
+		byte[] ops;
+		int count;
+		int missed;
+		final Map<String, Long> errors = new TreeMap<String, Long>();
+
+		Recorder (int capacity) {
+			latencies = new long[capacity];
+			serviceTimes = new long[capacity];
+			ops = new byte[capacity];
+		}
+
+		void record (int op, long latency, long serviceTime, String error) {
+			if (count == latencies.length) {
+				latencies = Arrays.copyOf(latencies, count * 2);
+				serviceTimes = Arrays.copyOf(serviceTimes, count * 2);
+				ops = Arrays.copyOf(ops, count * 2);
+			}
+			latencies[count] = latency;
+			serviceTimes[count] = serviceTime;
+			ops[count] = (byte) op;
+			count++;
+			if (error != null) {
+				Long n = errors.get(error);
+				errors.put(error, (n == null ? 0 : n) + 1);
+			}
+		}
+	}
+}
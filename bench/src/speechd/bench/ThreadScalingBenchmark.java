@@ -0,0 +1,156 @@
+/*
+ * ThreadScalingBenchmark.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import speechd.ssip.SSIPCommand;
+import speechd.ssip.SSIPConnection;
+import speechd.ssip.SSIPThreads;
+import speechd.tests.FakeSSIPServer;
+
+/**
+ * Compares platform and virtual threads with 10, 100 and 1000 connections.
+ * Each connection is driven by its own caller thread, created by the same factory as the connection's threads, sending commands one after another to a {@link FakeSSIPServer}.
+ * For each mode and connection count it reports the time to connect, the live platform threads, the command throughput, the round trip latency and the commands that failed.
+ * <p>Virtual threads need Java 21 or later, on older versions only platform threads are measured.</p>
+ * <p>Usage: {@code ThreadScalingBenchmark [commands per connection]}</p>
+ *
+ * @author ragb
+ */
+public class ThreadScalingBenchmark {
+	private static final int[] CONNECTIONS = { 10, 100, 1000 };
+
+	public static void main (String[] args) throws Exception {
+		int commands = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+		// a log line per connection would dominate the connect times
+		Logger.getLogger("speechd").setLevel(Level.WARNING);
+
+		Path dir = Files.createTempDirectory("speechd-bench");
+		Path path = dir.resolve("speechd.sock");
+		FakeSSIPServer server = new FakeSSIPServer();
+		server.listenUnix(path);
+
+		try {
+			if (!SSIPThreads.isVirtualSupported())
+				System.out.println("virtual threads not supported by this Java runtime, measuring platform threads only");
+			// two rounds, the first one warms up the JIT
+			for (int round = 0; round < 2; round++) {
+				for (int n : CONNECTIONS) {
+					run("platform", SSIPThreads.platform(), path, n, commands);
+					if (SSIPThreads.isVirtualSupported())
+						run("virtual", SSIPThreads.virtual(), path, n, commands);
+				}
+			}
+		} finally {
+			server.close();
+			Files.deleteIfExists(dir);
+		}
+	}
+
+	private static void run (String mode, ThreadFactory factory, Path path, int n, final int commands)
+	throws Exception {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		final SSIPConnection[] connections = new SSIPConnection[n];
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			connections[i] = new SSIPConnection(UnixDomainSocketAddress.of(path));
+			connections[i].setThreadFactory(factory);
+			connections[i].connect();
+		}
+		long connectNanos = System.nanoTime() - start;
+		int platformThreads = threads.getThreadCount();
+
+		final long[][] samples = new long[n][commands];
+		// commands sent by each thread, and why it stopped early
+		final int[] sent = new int[n];
+		final String[] errors = new String[n];
+		final CountDownLatch go = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(n);
+		for (int i = 0; i < n; i++) {
+			final int c = i;
+			factory.newThread(new Runnable() {
+				public void run () {
+					SSIPCommand command = new SSIPCommand("SET", "self", "RATE", "0");
+					try {
+						go.await();
+						for (int j = 0; j < commands; j++) {
+							long t = System.nanoTime();
+							connections[c].sendCommand(command);
+							samples[c][j] = System.nanoTime() - t;
+							sent[c]++;
+						}
+					} catch (Exception e) {
+						// the remaining commands count as errors, their samples are left out
+						errors[c] = e.getClass().getSimpleName();
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		start = System.nanoTime();
+		go.countDown();
+		done.await();
+		long runNanos = System.nanoTime() - start;
+
+		for (SSIPConnection connection : connections)
+			connection.disconnect();
+
+		int total = 0;
+		for (int i = 0; i < n; i++)
+			total += sent[i];
+		long[] all = new long[total];
+		Map<String, Long> failed = new TreeMap<String, Long>();
+		for (int i = 0, k = 0; i < n; i++) {
+			System.arraycopy(samples[i], 0, all, k, sent[i]);
+			k += sent[i];
+			if (errors[i] != null) {
+				Long e = failed.get(errors[i]);
+				failed.put(errors[i], (e == null ? 0 : e) + commands - sent[i]);
+			}
+		}
+		Arrays.sort(all);
+		System.out.printf("%-8s conns=%-4d connect=%.1fms platformThreads=%-4d throughput=%.0f/s p50=%.1fus p99=%.1fus errors=%d%n",
+				mode, n, connectNanos / 1e6, platformThreads, all.length / (runNanos / 1e9),
+				percentile(all, 0.50) / 1e3, percentile(all, 0.99) / 1e3, n * commands - total);
+		if (!failed.isEmpty())
+			System.out.println("errors by type: " + failed);
+	}
+
+	private static long percentile (long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		int i = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * TransportBenchmark.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.bench;
+
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import speechd.ssip.SSIPCommand;
+import speechd.ssip.SSIPConnection;
+import speechd.ssip.SSIPException;
+import speechd.tests.FakeSSIPServer;
+
+/**
+ * Compares command round trip latency over TCP and over unix domain sockets.
+ * A {@link FakeSSIPServer} listens on both transports, so the numbers only reflect the client and the kernel's socket stack.
+ * <p>Usage: {@code TransportBenchmark [iterations]}</p>
+ *
+ * @author ragb
+ */
+public class TransportBenchmark {
+	public static void main (String[] args) throws Exception {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+
+		FakeSSIPServer server = new FakeSSIPServer();
+		Path dir = Files.createTempDirectory("speechd-bench");
+		Path path = dir.resolve("speechd.sock");
+		try {
+			SocketAddress tcp = server.listenTcp(0);
+			SocketAddress unix = server.listenUnix(path);
+			// two rounds, the first one warms up the JIT
+			for (int round = 0; round < 2; round++) {
+				report("tcp", run(tcp, iterations));
+				report("unix", run(unix, iterations));
+			}
+		} finally {
+			server.close();
+			Files.deleteIfExists(dir);
+		}
+	}
+
+	/**
+	 * Sends {@code iterations} commands one after another.
+	 * @return the round trip time of each command in nanoseconds
+	 */
+	private static long[] run (SocketAddress address, int iterations) throws SSIPException {
+		SSIPConnection connection = new SSIPConnection(address);
+		connection.connect();
+		SSIPCommand command = new SSIPCommand("SET", "self", "RATE", "0");
+		long[] samples = new long[iterations];
+		try {
+			for (int i = 0; i < iterations; i++) {
+				long start = System.nanoTime();
+				connection.sendCommand(command);
+				samples[i] = System.nanoTime() - start;
+			}
+		} finally {
+			connection.disconnect();
+		}
+		return samples;
+	}
+
+	private static void report (String transport, long[] samples) {
+		long[] sorted = samples.clone();
+		Arrays.sort(sorted);
+		long total = 0;
+		for (long s : sorted)
+			total += s;
+		System.out.printf("%-5s n=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus%n", transport, sorted.length,
+				total / 1e3 / sorted.length, percentile(sorted, 0.50) / 1e3, percentile(sorted, 0.99) / 1e3,
+				sorted[sorted.length - 1] / 1e3);
+	}
+
+	private static long percentile (long[] sorted, double p) {
+		int i = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+	}
+}
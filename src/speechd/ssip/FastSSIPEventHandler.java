@@ -0,0 +1,44 @@
+/*
+ * FastSSIPEventHandler.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.ssip;
+
+/**
+ * Implementors of this interface receive SSIP events without any allocation, for high event rates like an index mark on every word.
+ * <p>Unlike {@link SSIPEventHandler}, the event is a reused mutable {@link SSIPEventView}, valid only while {@link #handleSSIPEvent(SSIPEventView)} runs.
+ * Handlers that keep events must copy them, see {@link SSIPEventView#toEvent()}.</p>
+ * <ul>
+ * <li>Handlers run on the connection's communications thread, before the event dispatcher. They must return quickly and must not wait for SSIP responses, responses to commands are read by that same thread.
+ * <li>Both kinds of handler can be used at once, the {@link SSIPEventHandler} still receives every event as an {@link SSIPEvent}.
+ *</ul>
+ *
+ * @author ragb
+ *
+ * @see SSIPConnection#setFastEventHandler(FastSSIPEventHandler)
+ * @see SSIPClient#setFastEventHandler(FastSSIPEventHandler)
+ * @see SSIPEventView
+ */
+public interface FastSSIPEventHandler {
+	/**
+	 * Handles an event.
+	 * @param event the event, valid only during this call.
+	 */
+	void handleSSIPEvent (SSIPEventView event);
+}
@@ -0,0 +1,296 @@
+/*
+ * SSIPAdmissionController.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.ssip;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Sheds low priority speech when the synthesizer falls behind, so announcements that still get through aren't heard seconds late.
+ * <p>The controller measures the time from sending each message with {@link SSIPClient#say(SSIPPriority, String)}, {@link SSIPClient#sayAsync(SSIPPriority, String)} or {@link SSIPClient#sayStream(SSIPPriority, CharSequence)} to its {@code BEGIN} event.
+ * The latency is the smoothed average of these times, or the time the oldest message not yet begun has been waiting when that is longer, so a stalled synthesizer is noticed before any message begins.
+ * When no message is waiting or being spoken the latency is zero.
+ * A message whose events never come, because the event dispatcher dropped them or notifications were turned off behind the client's back, is forgotten after a maximum age, so the latency doesn't grow without bound; the client also forgets all the messages followed when its dispatcher drops events.</p>
+ * <p>The shedding level follows the latency:</p>
+ * <ul>
+ * <li>{@link #ADMIT_ALL} up to the latency target;</li>
+ * <li>{@link #SHED_BACKGROUND} above the target, {@link SSIPPriority#PROgRESS} and {@link SSIPPriority#NOTIFICATION} messages are shed;</li>
+ * <li>{@link #SHED_TEXT} above twice the target, {@link SSIPPriority#TEXT} messages are shed too.</li>
+ * </ul>
+ * <p>{@link SSIPPriority#IMPORTANT} and {@link SSIPPriority#MESSAGE} messages are never shed.
+ * A shed {@code say} returns {@code -1} without sending anything; characters, keys and sound icons are shed the same way.
+ * A message shed by {@code sayAsync} has the id {@code -1} and cancelled begin and end futures, and a stream is shed whole, before its first sentence.
+ * This class is safe for multi threaded use.</p>
+ *
+ * @author ragb
+ *
+ * @see SSIPClient#setAdmissionController(SSIPAdmissionController)
+ */
+public final class SSIPAdmissionController {
+	/**
+	 * Level where every message is sent.
+	 */
+	public static final int ADMIT_ALL = 0;
+
+	/**
+	 * Level where progress and notification messages are shed.
+	 */
+	public static final int SHED_BACKGROUND = 1;
+
+	/**
+	 * Level where text messages are shed too.
+	 */
+	public static final int SHED_TEXT = 2;
+
+	/**
+	 * Weight of the latest sample in the average latency.
+	 */
+	private static final double SMOOTHING = 0.25;
+
+	/**
+	 * Default maximum age of a message followed, in latency targets.
+	 */
+	private static final int MAX_AGE_TARGETS = 20;
+
+	private final long _target;
+	private final long _maxAge;
+	/**
+	 * Send time of the messages without a {@code BEGIN} event, in sending order.
+	 */
+	private final LinkedHashMap<Integer, Long> _waiting = new LinkedHashMap<Integer, Long>();
+	/**
+	 * Begin time of the messages begun and not yet ended.
+	 */
+	private final Map<Integer, Long> _speaking = new HashMap<Integer, Long>();
+	private double _average;
+	private int _level = ADMIT_ALL;
+	private final EnumMap<SSIPPriority, AtomicLong> _shed = new EnumMap<SSIPPriority, AtomicLong>(SSIPPriority.class);
+
+	private Logger _logger = Logger.getLogger("speechd.ssip.SSIPAdmissionController");
+
+	/**
+	 * Constructs a new controller, forgetting the messages whose events don't come after twenty times the latency target.
+	 * @param latencyTarget the latency above which messages are shed
+	 * @param unit the unit of {@code latencyTarget}
+	 */
+	public SSIPAdmissionController (long latencyTarget, TimeUnit unit) {
+		this(latencyTarget, MAX_AGE_TARGETS * latencyTarget, unit);
+	}
+
+	/**
+	 * Constructs a new controller.
+	 * @param latencyTarget the latency above which messages are shed
+	 * @param maxAge the time after which a message not begun, or begun and not ended, is forgotten
+	 * @param unit the unit of {@code latencyTarget} and {@code maxAge}
+	 */
+	public SSIPAdmissionController (long latencyTarget, long maxAge, TimeUnit unit) {
+		if (latencyTarget <= 0)
+			throw new IllegalArgumentException("latency target must be positive");
+		if (maxAge <= 0)
+			throw new IllegalArgumentException("maximum age must be positive");
+		_target = unit.toNanos(latencyTarget);
+		_maxAge = unit.toNanos(maxAge);
+		for (SSIPPriority priority : SSIPPriority.values())
+			_shed.put(priority, new AtomicLong());
+	}
+
+	/**
+	 * Gets the latency target.
+	 * @param unit the unit of the result
+	 * @return the target
+	 */
+	public long getLatencyTarget (TimeUnit unit) {
+		return unit.convert(_target, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Gets the maximum age of a message followed.
+	 * @param unit the unit of the result
+	 * @return the maximum age
+	 */
+	public long getMaxAge (TimeUnit unit) {
+		return unit.convert(_maxAge, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Gets the current latency, see above.
+	 * @param unit the unit of the result
+	 * @return the latency
+	 */
+	public synchronized long getLatency (TimeUnit unit) {
+		return unit.convert(latency(System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Gets the current shedding level.
+	 * @return {@link #ADMIT_ALL}, {@link #SHED_BACKGROUND} or {@link #SHED_TEXT}
+	 */
+	public synchronized int getLevel () {
+		return update(System.nanoTime());
+	}
+
+	/**
+	 * Gets the number of messages sent and not yet ended or cancelled.
+	 * @return the count
+	 */
+	public synchronized int getInFlightCount () {
+		expire(System.nanoTime());
+		return _waiting.size() + _speaking.size();
+	}
+
+	/**
+	 * Gets the number of messages of a priority shed.
+	 * @param priority the priority
+	 * @return the count
+	 */
+	public long getShedCount (SSIPPriority priority) {
+		return _shed.get(priority).get();
+	}
+
+	/**
+	 * Decides if a message is sent, counting it when shed.
+	 * @param priority the message priority
+	 * @return {@code true} if the message may be sent
+	 */
+	boolean admit (SSIPPriority priority) {
+		int level;
+		synchronized (this) {
+			level = update(System.nanoTime());
+		}
+		boolean shed;
+		switch (priority) {
+		case PROgRESS:
+		case NOTIFICATION:
+			shed = level >= SHED_BACKGROUND;
+			break;
+		case TEXT:
+			shed = level >= SHED_TEXT;
+			break;
+		default:
+			shed = false;
+		}
+		if (shed)
+			_shed.get(priority).incrementAndGet();
+		return !shed;
+	}
+
+	/**
+	 * Starts following a message sent.
+	 * @param id the message id
+	 * @param sent when the message was sent, from {@link System#nanoTime()}
+	 */
+	synchronized void sent (int id, long sent) {
+		_waiting.put(id, sent);
+	}
+
+	/**
+	 * Follows the messages through their events.
+	 * @param event the event
+	 */
+	synchronized void handle (SSIPEvent event) {
+		Integer id = event.getMsgId();
+		switch (event.getType()) {
+		case BEGIN:
+			Long sent = _waiting.remove(id);
+			if (sent != null) {
+				long now = System.nanoTime();
+				_average += SMOOTHING * ((now - sent) - _average);
+				_speaking.put(id, now);
+			}
+			break;
+		case END:
+		case CANCEL:
+			_waiting.remove(id);
+			_speaking.remove(id);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Forgets the messages followed, for example when their connection was lost.
+	 */
+	synchronized void reset () {
+		_waiting.clear();
+		_speaking.clear();
+		_average = 0;
+	}
+
+	/**
+	 * Forgets the messages followed for longer than the maximum age, their events were lost. Must be called holding the lock.
+	 */
+	private void expire (long now) {
+		int expired = 0;
+		for (Iterator<Long> it = _waiting.values().iterator(); it.hasNext(); ) {
+			if (now - it.next() > _maxAge) {
+				it.remove();
+				expired++;
+			}
+		}
+		for (Iterator<Long> it = _speaking.values().iterator(); it.hasNext(); ) {
+			if (now - it.next() > _maxAge) {
+				it.remove();
+				expired++;
+			}
+		}
+		if (expired > 0)
+			_logger.warning(String.format("Forgot %d messages without events for %d ms", expired,
+					TimeUnit.NANOSECONDS.toMillis(_maxAge)));
+	}
+
+	/**
+	 * Gets the latency in nanoseconds. Must be called holding the lock.
+	 */
+	private long latency (long now) {
+		expire(now);
+		if (_waiting.isEmpty() && _speaking.isEmpty()) {
+			// nothing queued on the server, the next message begins at once
+			_average = 0;
+			return 0;
+		}
+		long latency = (long) _average;
+		Iterator<Long> oldest = _waiting.values().iterator();
+		if (oldest.hasNext())
+			latency = Math.max(latency, now - oldest.next());
+		return latency;
+	}
+
+	/**
+	 * Updates the level from the latency. Must be called holding the lock.
+	 */
+	private int update (long now) {
+		long latency = latency(now);
+		int level = (latency > 2 * _target) ? SHED_TEXT : (latency > _target) ? SHED_BACKGROUND : ADMIT_ALL;
+		if (level != _level) {
+			_logger.info(String.format("Shedding level changed from %d to %d, latency %d ms", _level, level,
+					TimeUnit.NANOSECONDS.toMillis(latency)));
+			_level = level;
+		}
+		return level;
+	}
+}
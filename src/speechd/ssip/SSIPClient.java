@@ -20,9 +20,28 @@
  */
 package speechd.ssip;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.CharBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 /**
@@ -30,6 +49,7 @@ import java.util.logging.Logger;
  *  This is the recomended way to communicate with SSIP servers in java, almost all SSIP commands are supported directly. A {@code SSIPClient} instance represents a connection to one SSIP server, it can be used for speaking, changing speech parameters, etc... without knowning about SSIP protocole details, altough familiarity with SSIP concepts is useful.
  *  When this class doesn't provide the needed functionality, clients can subclass it and/or use {@link SSIPConnection} objects to send and receive raw SSIP data.<br/>
  *  SSIP events are also supported, see the {@link SSIPEventHandler} interface, {@link SSIPClient#setNotification(boolean)}, {@link SSIPClient#setNotification(boolean, speechd.ssip.SSIPEvent.EventType)} and {@link SSIPClient#setEventHandler(SSIPEventHandler)} methods.
+ *  To follow a single message, {@link SSIPClient#sayAsync(SSIPPriority, String)} returns a {@link SSIPMessage} with futures completing on its events.
  *  A {@code SSIPClient} instance should be used just for one connection, when closed it must be discarded.
  *  We recomend closing connections after using them, it will free network resources earlier.
  *  This class is safe for multi threaded use.
@@ -44,10 +64,15 @@ import java.util.logging.Logger;
  * <li>Java system properties</li>
  * <li>Environment variables</li>
  * <li>Default values</li>
- * </ol></p>
+ * </ol>
+ * Speech-dispatcher style addresses are also supported through the {@code speechd.address} property and the {@code SPEECHD_ADDRESS} environment variable, checked before host and port.
+ * An address is either {@code unix_socket:/path/to/socket} or {@code inet_socket:host:port}, see {@link SSIPClient#parseAddress(String)}. Unix sockets are the default transport of speech-dispatcher and have lower latency than TCP for local servers.</p>
  * <p>the name, component and user values to the constructor have the same meaning as in speech-dispatcher documentation: see {@link SSIPClient#SSIPClient(String, String, String)} for explanation.</p>
  * <p>Message priorities are defined when calling speaking methods ({@link SSIPClient#say(SSIPPriority, String)}, {@link SSIPClient#sayChar(SSIPPriority, char)},...) and not directly, although SSIPClient subclasses are allowed to use the {@link SSIPClient#setPriority(SSIPPriority)} method.</p>
  * <p>Commands that need a target (like all parameter setting commands) need previous target definition, see @{link {@link SSIPClient#setTarget(Target)} and {@link SSIPClient.Target}. In most cases this feature should not be used, the SELF default is the only needed target most times.
+ * <p>Parameter values set for this client (priority, rate, voice, notifications, ...) are remembered, and setting a parameter to the value it already has sends nothing to the server.
+ * Settings changed by other clients aren't seen though, use {@link SSIPClient#invalidateParameterCache()} if other clients may change this client's settings.
+ * <p>By default a lost connection stays lost and every call fails. With {@link SSIPClient#setReconnectPolicy(SSIPReconnectPolicy)} the client reconnects with backoff on the next call, replaying these remembered settings in one burst.
  * 
  * <h4>Example:</h4>
  * <code><pre>
@@ -79,6 +104,36 @@ public class SSIPClient {
 		SELF, ALL
 	};
 
+	/**
+	 * Maximum number of requests {@link #sayStream(SSIPPriority, Reader)} sends ahead of their responses.
+	 */
+	private static final int MAX_STREAM_PENDING = 64;
+
+	/**
+	 * Event types followed by {@link #sayAsync(SSIPPriority, String)}.
+	 */
+	private static final SSIPEvent.EventType[] MESSAGE_EVENTS = {
+		SSIPEvent.EventType.BEGIN, SSIPEvent.EventType.END, SSIPEvent.EventType.CANCEL
+	};
+
+	/**
+	 * Completes the futures of messages spoken asynchronously with their events, then passes the events of the types the application turned on to its handler.
+	 * Runs on the connection's event dispatcher thread.
+	 */
+	private class MessageTracker implements SSIPEventHandler {
+		public void handleSSIPEvent (SSIPEvent event) {
+			SSIPAdmissionController admission = _admission;
+			if (admission != null)
+				admission.handle(event);
+			SSIPMessage message = _messages.get(event.getMsgId());
+			if (message != null && message.handle(event))
+				_messages.remove(event.getMsgId());
+			SSIPEventHandler handler = _eventHandler;
+			if (handler != null && _notifications.contains(event.getType()))
+				handler.handleSSIPEvent(event);
+		}
+	}
+
 	/**
 	 * Default host where SSIP server is running.
 	 */
@@ -89,6 +144,16 @@ public class SSIPClient {
 	 */
 	public static final String DEFAULT_PORT = "6560";
 
+	/**
+	 * Prefix of speech-dispatcher addresses for unix domain sockets.
+	 */
+	public static final String UNIX_SOCKET_METHOD = "unix_socket";
+
+	/**
+	 * Prefix of speech-dispatcher addresses for TCP sockets.
+	 */
+	public static final String INET_SOCKET_METHOD = "inet_socket";
+
 	/**
 	 * The {@link SSIPConnection} used to handle raw SSIP communication.
 	 */
@@ -115,25 +180,128 @@ public class SSIPClient {
 	private String _user;
 
 	/**
-	 * SSIP server host
+	 * SSIP server address
 	 */
-	private String _host;
+	private SocketAddress _address;
 
 	/**
-	 * Port where SSIP server is listening
+	 * Client id
 	 */
-	private int _port;
+	private int _clientId;
 
 	/**
-	 * Client id
+	 * Parameter values set for this client, to skip redundant SET commands.
 	 */
-	private int _clientId;
+	private final SSIPParameterCache _parameters = new SSIPParameterCache();
+
+	/**
+	 * Messages spoken with {@link #sayAsync(SSIPPriority, String)} waiting for their end.
+	 */
+	private final SSIPMessageTable _messages = new SSIPMessageTable();
+
+	/**
+	 * The application's event handler, events go to the messages first.
+	 */
+	private volatile SSIPEventHandler _eventHandler = null;
+
+	/**
+	 * Event types the application turned on with {@link #setNotification(boolean)}, the only ones passed to its handler.
+	 * The parameter cache can't tell them apart from those turned on for {@link #sayAsync(SSIPPriority, String)} and the admission controller.
+	 */
+	private final Set<SSIPEvent.EventType> _notifications = Collections.synchronizedSet(EnumSet.noneOf(SSIPEvent.EventType.class));
+
+	/**
+	 * Handler set on the connection once events are needed, so clients using just a {@link FastSSIPEventHandler} don't pay for {@link SSIPEvent} objects.
+	 * It has a slot of its own on the connection, see {@link SSIPConnection#setClientEventHandler(SSIPEventHandler)}, so a handler the application sets on the connection doesn't replace it.
+	 */
+	private final MessageTracker _tracker = new MessageTracker();
+
+	/**
+	 * Voices of the output module in use, {@code null} until listed or once invalidated.
+	 */
+	private SSIPVoiceCatalogue _voiceCatalogue = null;
+
+	/**
+	 * When {@link #_voiceCatalogue} was listed, from {@link System#nanoTime()}.
+	 */
+	private long _voiceCatalogueTime;
+
+	/**
+	 * Incremented on each invalidation, so lists started before aren't kept.
+	 */
+	private long _voiceCatalogueGeneration;
+
+	/**
+	 * How long voice catalogues are kept, in nanoseconds, {@code 0} for ever.
+	 */
+	private long _voiceCatalogueTtl = 0;
+
+	/**
+	 * Lock of the voice catalogue fields.
+	 */
+	private final Object _voiceLock = new Object();
+
+	/**
+	 * Held while speech and settings are sent, which wait there for the end of the stream being sent, so those of other threads don't land inside the stream's block.
+	 * It also makes checking the parameter cache and sending the command atomic.
+	 * A lock rather than a monitor, so virtual threads waiting for a stream don't pin their carrier thread.
+	 */
+	private final ReentrantLock _streamLock = new ReentrantLock();
+	private final Condition _streamEnded = _streamLock.newCondition();
+
+	/**
+	 * The thread sending a stream, {@code null} if none. Guarded by {@code _streamLock}.
+	 */
+	private Thread _streamOwner = null;
+
+	/**
+	 * Sheds low priority messages when speech lags, {@code null} to send every message.
+	 */
+	private volatile SSIPAdmissionController _admission = null;
+	/**
+	 * Events dropped by the event dispatcher when the admission controller was last used.
+	 */
+	private volatile long _droppedEvents = 0;
+
+	/**
+	 * How to reconnect after losing the connection, {@code null} to never reconnect.
+	 */
+	private volatile SSIPReconnectPolicy _reconnectPolicy = null;
+
+	/**
+	 * Lock held while reconnecting, so only one thread reconnects.
+	 */
+	private final Object _reconnectLock = new Object();
+
+	/**
+	 * Set while reconnecting, the connection is connected before the session is restored.
+	 */
+	private volatile boolean _reconnecting = false;
+
+	/**
+	 * Set by {@link #close()}, closed clients never reconnect.
+	 */
+	private volatile boolean _closed = false;
 
 	/**
 	 * LOGGER.
 	 */
 	private Logger _logger = Logger.getLogger("speechd.ssip.SSIPClient");
 
+	/**
+	 * Constructs a new {@code SSIPClient} and connects it to the SSIP server.
+	 * The server address is found with the default mechanism explained above.
+	 * 
+	 * @param name client name.
+	 * @param component Component for this connection, if {@code null} the "main" default value will be used.
+	 * @param user the client user name, if {@code null} the current user name will be used.
+	 * @throws SSIPException when SSIP communication errors are enconterered when connecting to server.
+	 */
+	public SSIPClient (String name, String component, String user)
+	throws SSIPException {
+		this(name, component, user, (String) null, (String) null);
+	}
+
 	/**
 	 * Constructs a new {@code SSIPClient} and connects it to the SSIP server.
 	 * For setting server host and port see explanation above.
@@ -146,6 +314,22 @@ public class SSIPClient {
 	 * @throws SSIPException when SSIP communication errors are enconterered when connecting to server.
 	 */
 	public SSIPClient (String name, String component, String user, String host, String port)
+	throws SSIPException {
+		this(name, component, user, findAddress(host, port));
+	}
+
+	/**
+	 * Constructs a new {@code SSIPClient} and connects it to the SSIP server at the given address.
+	 * Use a {@link UnixDomainSocketAddress} to connect over an unix domain socket, or an {@link InetSocketAddress} to connect over TCP.
+	 * 
+	 * @param name client name.
+	 * @param component Component for this connection, if {@code null} the "main" default value will be used.
+	 * @param user the client user name, if {@code null} the current user name will be used.
+	 * @param address the server address, if {@code null} default mechanism applies
+	 * @throws SSIPException when SSIP communication errors are enconterered when connecting to server.
+	 * @see #parseAddress(String)
+	 */
+	public SSIPClient (String name, String component, String user, SocketAddress address)
 	throws SSIPException {
 		if (name == null) {
 			throw new NullPointerException("SSIP connection's name can't be null");
@@ -169,27 +353,12 @@ public class SSIPClient {
 		}
 		_logger.fine(String.format("Defining user as %s", _user));
 
-		// Find host where spd is running:
-		if ((_host = host) == null) {
-			if ((_host = System.getProperty("speechd.host")) == null) {
-				if ((_host = System.getenv("SPEECHD_HOST")) == null)
-					_host = DEFAULT_HOST;
-			}
-		}
-		_logger.fine(String.format("Defining host as %s", _host));
-
-		// Find default port:
-		String portStr = port;
-		if (portStr == null) {
-			if ((portStr = System.getProperty("speechd.port")) == null) {
-				if ((portStr = System.getenv("SPEECHD_PORT")) == null)
-					portStr = DEFAULT_PORT;
-			}
-		};
-		_port = Integer.parseInt(portStr);
+		if ((_address = address) == null)
+			_address = findAddress(null, null);
+		_logger.fine(String.format("Defining address as %s", _address));
 
 		// create connection and connect it:
-		_connection = new SSIPConnection(_host, _port);
+		_connection = new SSIPConnection(_address);
 		_connection.connect();
 		_logger.info("connected to host");
 
@@ -202,6 +371,7 @@ public class SSIPClient {
 		SSIPResponse res = _connection.sendCommand(new SSIPCommand("HISTORY",
 				"GET", "CLIENT_ID"));
 		_clientId = getIntResponse(res);
+		_parameters.setSelfId(_clientId);
 		_logger.fine(String.format("Client id is %d", _clientId));
 	}
 
@@ -219,34 +389,267 @@ public class SSIPClient {
 	 * @throws SSIPException on SSIP Errors.
 	 */
 	public void close () throws SSIPException {
+		_closed = true;
 		if (_connection.isConnected()) {
 			_connection.sendCommand(new SSIPCommand("quit"));
 			_connection.disconnect();
 			_logger.info("Disconnected from host");
 		}
+		_parameters.clear();
+		for (SSIPMessage message : _messages.clear())
+			message.fail(new SSIPCommunicationException("connection closed"));
+		SSIPAdmissionController admission = _admission;
+		if (admission != null)
+			admission.reset();
 	}
 
 	/**
 	 *  Speaks a message with given priority.
 	 * @param priority message priority
 	 * @param text the message to speak
-	 * @return imessage id of spoken message to be possibly used with callbacks.
+	 * @return imessage id of spoken message to be possibly used with callbacks, {@code -1} if the message was shed.
 	 * @throws SSIPException on SSIP errors.
 	 * @see SSIPPriority
+	 * @see #setAdmissionController(SSIPAdmissionController)
 	 */
 	public int say (SSIPPriority priority, String text) throws SSIPException {
-		setPriority(priority);
-
-		// send speak command:
+		final SSIPAdmissionController admission = admission();
+		if (admission != null && !admission.admit(priority)) {
+			_logger.info(String.format("Shedding message:\n%s", text));
+			return -1;
+		}
 		_logger.info(String.format("Saying message:\n%s", text));
-		_connection.sendCommand(new SSIPCommand("speak"));
-		// send data and extract msg id from the response:
-		SSIPResponse response = _connection.sendData(text);
+		CompletableFuture<SSIPResponse> queued = follow(admission, new CompletableFuture<SSIPResponse>());
+		// priority and speak command go in one write, the data once they are accepted, extract msg id from the data response:
+		SSIPResponse response = sendWithPriority(priority, (admission != null) ? MESSAGE_EVENTS : null,
+				new SSIPCommand("speak"), text, queued);
 		int id =  getIntResponse(response);
 		_logger.fine(String.format("Message id is %d", id));
 		return id;
 	}
 
+	/**
+	 * Speaks a message with given priority without waiting, following it through its events.
+	 * Notifications of {@code BEGIN}, {@code END} and {@code CANCEL} events are turned on if needed, sent in the same write as the message.
+	 * These events reach the handler set with {@link #setEventHandler(SSIPEventHandler)} only if turned on with {@link #setNotification(boolean)}, and turning them off cancels the begin and end futures of the messages not ended yet.
+	 * Errors sending the message complete the returned message's futures exceptionally, nothing is thrown.
+	 * A message shed by the admission controller is never sent, see {@link SSIPMessage#getQueued()}.
+	 * @param priority message priority
+	 * @param text the message to speak
+	 * @return the message, with futures for its queuing, begin and end
+	 * @see SSIPMessage
+	 * @see SSIPPriority
+	 */
+	public SSIPMessage sayAsync (SSIPPriority priority, String text) {
+		final SSIPMessage message = new SSIPMessage();
+		final SSIPAdmissionController admission = admission();
+		if (admission != null && !admission.admit(priority)) {
+			_logger.info(String.format("Shedding message:\n%s", text));
+			message.shed();
+			return message;
+		}
+		_logger.info(String.format("Saying message asynchronously:\n%s", text));
+		_connection.setClientEventHandler(_tracker);
+		final long sent = System.nanoTime();
+		// registered on the communications thread, before the message's events can be read
+		CompletableFuture<SSIPResponse> queued = new CompletableFuture<SSIPResponse>();
+		queued.whenComplete((response, e) -> {
+			if (e != null) {
+				message.fail(e);
+				return;
+			}
+			int id = getIntResponse(response);
+			if (admission != null)
+				admission.sent(id, sent);
+			_messages.put(id, message);
+			message.getQueued().complete(id);
+		});
+		List<String> settings = new ArrayList<String>(4);
+		List<CompletableFuture<SSIPResponse>> futures;
+		try {
+			futures = queueWithPriority(connection(), priority, MESSAGE_EVENTS,
+					Collections.singletonList(new SSIPCommand("speak")), text,
+					queued, settings);
+		} catch (SSIPCommunicationException e) {
+			message.fail(e);
+			return message;
+		}
+		for (int i = 0; i < settings.size(); i++) {
+			final String param = settings.get(i);
+			// not on the communications thread, senders may hold the cache while waiting for it
+			futures.get(i).whenCompleteAsync((response, e) -> {
+				if (e != null)
+					_parameters.invalidate(param);
+			});
+		}
+		return message;
+	}
+
+	/**
+	 * Speaks a long text read incrementally, such as a document, sentence by sentence.
+	 * <p>The text is split in sentences, using the rules of the language set with {@link #setLanguage(String)} or else of the default locale, and each sentence is sent as a message inside a block, see {@link #beginBlock()}.
+	 * The first sentence is sent as soon as it is read, so speech starts after the same short delay whatever the text's length, and only a few kilobytes of the text are held in memory at a time.
+	 * Sentences are sent without waiting for each response, the call returns when all are queued.</p>
+	 * <p>If a sentence is rejected, or reading fails, no more sentences are sent and the block is ended; sentences sent already are still spoken.</p>
+	 * <p>With an admission controller the whole stream is shed or sent, depending on the level when it starts: a shed stream returns no message ids.</p>
+	 * <p>Other threads sharing this client wait for the whole stream to be sent before sending speech or settings, which aren't allowed inside a block or would be spoken in the middle of the text.
+	 * The stream holds the client while reading its text too, so a slow reader, such as a network stream, holds back the speech of the other threads; read such text into memory first, or give the stream a client of its own.
+	 * Other commands, such as {@link #cancel()}, are sent right away.
+	 * An event handler can't wait for the stream, as the stream may wait for the events to be handled: speech or settings sent from a handler during another thread's stream fail at once with a {@link SSIPCommunicationException}.</p>
+	 * @param priority message priority
+	 * @param text the text, read until its end but not closed
+	 * @return the message ids of the sentences, in order, empty if the stream was shed
+	 * @throws SSIPException on SSIP errors
+	 * @throws IOException if reading the text fails
+	 * @see #sayStream(SSIPPriority, CharSequence)
+	 * @see #setAdmissionController(SSIPAdmissionController)
+	 */
+	public List<Integer> sayStream (SSIPPriority priority, Reader text) throws SSIPException, IOException {
+		_logger.info("Saying stream");
+		return sayChunks(priority, text);
+	}
+
+	/**
+	 * Speaks a long text sentence by sentence, like {@link #sayStream(SSIPPriority, Reader)}, without copying it.
+	 * @param priority message priority
+	 * @param text the text
+	 * @return the message ids of the sentences, in order, empty if the stream was shed
+	 * @throws SSIPException on SSIP errors
+	 */
+	public List<Integer> sayStream (SSIPPriority priority, CharSequence text) throws SSIPException {
+		_logger.info(String.format("Saying stream of %d characters", text.length()));
+		try {
+			return sayChunks(priority, CharBuffer.wrap(text));
+		} catch (IOException e) {
+			// reading a char sequence doesn't fail
+			throw new AssertionError(e);
+		}
+	}
+
+	private List<Integer> sayChunks (SSIPPriority priority, Readable text) throws SSIPException, IOException {
+		// a block is spoken whole or not at all
+		final SSIPAdmissionController admission = admission();
+		if (admission != null && !admission.admit(priority)) {
+			_logger.info("Shedding stream");
+			return Collections.emptyList();
+		}
+		String language = _parameters.get("language");
+		SSIPSentenceChunker chunker = new SSIPSentenceChunker(text,
+				(language != null) ? Locale.forLanguageTag(language) : Locale.getDefault());
+		SSIPCommand speak = new SSIPCommand("speak");
+		List<CompletableFuture<SSIPResponse>> all = new ArrayList<CompletableFuture<SSIPResponse>>();
+		List<CompletableFuture<SSIPResponse>> ids = new ArrayList<CompletableFuture<SSIPResponse>>();
+		// the priority can't be set inside a block, it goes first with the block start and the first sentence
+		List<String> settings = new ArrayList<String>(1);
+		// taken before the stream, reconnecting waits for its end to replay the session
+		SSIPConnection connection = connection();
+		// read before taking the client, the reader may be slow
+		String chunk = chunker.next();
+		if (chunk == null)
+			return Collections.emptyList();
+		_streamLock.lock();
+		try {
+			awaitStream();
+			_streamOwner = Thread.currentThread();
+		} finally {
+			_streamLock.unlock();
+		}
+		try {
+			CompletableFuture<SSIPResponse> first = follow(admission, new CompletableFuture<SSIPResponse>());
+			all.addAll(queueWithPriority(connection, priority, (admission != null) ? MESSAGE_EVENTS : null,
+					Arrays.asList(new SSIPCommand("BLOCK", "BEGIN"), speak), chunk, first, settings));
+			ids.add(first);
+			try {
+				// bounds the sentences sent ahead of their responses
+				ArrayDeque<CompletableFuture<SSIPResponse>> window = new ArrayDeque<CompletableFuture<SSIPResponse>>(all);
+				boolean failed = false;
+				while (!failed && (chunk = chunker.next()) != null) {
+					CompletableFuture<SSIPResponse> id = follow(admission, new CompletableFuture<SSIPResponse>());
+					List<CompletableFuture<SSIPResponse>> futures = connection.sendBatchAsync(
+							Collections.singletonList(speak), chunk, id);
+					all.addAll(futures);
+					window.addAll(futures);
+					ids.add(id);
+					while (window.size() > MAX_STREAM_PENDING) {
+						CompletableFuture<SSIPResponse> oldest = window.poll();
+						oldest.handle((response, e) -> null).join();
+						failed |= oldest.isCompletedExceptionally();
+					}
+					failed |= failed(window);
+				}
+			} finally {
+				all.add(connection.sendBatchAsync(Collections.singletonList(new SSIPCommand("BLOCK", "END")),
+						null, null).get(0));
+			}
+		} finally {
+			_streamLock.lock();
+			try {
+				_streamOwner = null;
+				_streamEnded.signalAll();
+			} finally {
+				_streamLock.unlock();
+			}
+		}
+		try {
+			SSIPConnection.awaitAll(all);
+		} catch (SSIPException e) {
+			for (int i = 0; i < settings.size(); i++) {
+				if (all.get(i).isCompletedExceptionally())
+					_parameters.invalidate(settings.get(i));
+			}
+			throw e;
+		}
+		List<Integer> result = new ArrayList<Integer>(ids.size());
+		for (CompletableFuture<SSIPResponse> id : ids)
+			result.add(getIntResponse(id.join()));
+		return result;
+	}
+
+	/**
+	 * Waits for the end of the stream another thread is sending. Must be called holding {@code _streamLock}.
+	 * The event dispatcher thread doesn't wait: the stream may need the communications thread, which may be waiting for the dispatcher.
+	 * @throws SSIPCommunicationException if interrupted while waiting, or called from the event dispatcher thread during a stream
+	 */
+	private void awaitStream () throws SSIPCommunicationException {
+		while (_streamOwner != null && _streamOwner != Thread.currentThread()) {
+			if (_connection.getEventDispatcher().isDispatcherThread())
+				throw new SSIPCommunicationException("can't wait for a stream in an event handler");
+			try {
+				_streamEnded.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SSIPCommunicationException(e);
+			}
+		}
+	}
+
+	/**
+	 * Makes the admission controller follow a message from its sending, when the server answers with its id.
+	 * @param admission the controller, or {@code null}
+	 * @param queued the future message id response, not sent yet
+	 * @return {@code queued}
+	 */
+	private CompletableFuture<SSIPResponse> follow (final SSIPAdmissionController admission,
+			CompletableFuture<SSIPResponse> queued) {
+		if (admission != null) {
+			final long sent = System.nanoTime();
+			// registered on the communications thread, before the message's events can be read
+			queued.thenAccept(r -> admission.sent(getIntResponse(r), sent));
+		}
+		return queued;
+	}
+
+	/**
+	 * Checks if a request already failed, without waiting.
+	 */
+	private static boolean failed (Iterable<CompletableFuture<SSIPResponse>> futures) {
+		for (CompletableFuture<SSIPResponse> f : futures) {
+			if (f.isCompletedExceptionally())
+				return true;
+		}
+		return false;
+	}
+
 	/**
 	 * Speaks a formated message with given priority (utility method).
 	 * @param priority message priority
@@ -271,14 +674,15 @@ public class SSIPClient {
 	 */
 	public void sayChar (SSIPPriority priority, char c) throws SSIPException {
 		String s;
-		setPriority(priority);
 		if (c == ' ')
 			s = "space";
 		else
 			s = Character.toString(c);
 
+		if (shed(priority))
+			return;
 		_logger.info(String.format("Saying character %s", s));
-		_connection.sendCommand(new SSIPCommand("CHAR", s));
+		sendWithPriority(priority, new SSIPCommand("CHAR", s), null);
 	}
 
 	/**
@@ -289,9 +693,10 @@ public class SSIPClient {
 	 * @see SSIPPriority
 	 */
 	public void sayKey (SSIPPriority priority, String key) throws SSIPException {
-		setPriority(priority);
+		if (shed(priority))
+			return;
 		_logger.info(String.format("Saying key %s", key));
-		_connection.sendCommand(new SSIPCommand("KEY", key));
+		sendWithPriority(priority, new SSIPCommand("KEY", key), null);
 	}
 
 	/**
@@ -303,9 +708,35 @@ public class SSIPClient {
 	 */
 	public void soundIcon (SSIPPriority priority, String iconName)
 	throws SSIPException {
-		setPriority(priority);
+		if (shed(priority))
+			return;
 		_logger.info(String.format("Playing sound icon %s", iconName));
-		_connection.sendCommand(new SSIPCommand("SOUND_ICON", iconName));
+		sendWithPriority(priority, new SSIPCommand("SOUND_ICON", iconName), null);
+	}
+
+	/**
+	 * Checks if a message is shed by the admission controller.
+	 */
+	private boolean shed (SSIPPriority priority) {
+		SSIPAdmissionController admission = admission();
+		return admission != null && !admission.admit(priority);
+	}
+
+	/**
+	 * Gets the admission controller, reset first if the event dispatcher dropped events since, they may end messages it follows.
+	 * @return the controller, or {@code null}
+	 */
+	private SSIPAdmissionController admission () {
+		SSIPAdmissionController admission = _admission;
+		if (admission != null) {
+			long dropped = _connection.getEventDispatcher().getDroppedCount();
+			if (dropped != _droppedEvents) {
+				_droppedEvents = dropped;
+				_logger.warning("Events dropped, the admission controller forgets the messages it follows");
+				admission.reset();
+			}
+		}
+		return admission;
 	}
 
 	/**
@@ -314,7 +745,7 @@ public class SSIPClient {
 	 */
 	public void stop () throws SSIPException {
 		_logger.info("stopping");
-		_connection.sendCommand(new SSIPCommand("STOP", _target));
+		connection().sendCommand(new SSIPCommand("STOP", _target));
 	}
 
 	/**
@@ -323,7 +754,7 @@ public class SSIPClient {
 	 */
 	public void cancel () throws SSIPException {
 		_logger.info("caceling");
-		_connection.sendCommand(new SSIPCommand("CANCEL", _target));
+		connection().sendCommand(new SSIPCommand("CANCEL", _target));
 	}
 
 	/**
@@ -332,7 +763,7 @@ public class SSIPClient {
 	 */
 	public void pause () throws SSIPException {
 		_logger.info("Pausing");
-		_connection.sendCommand(new SSIPCommand("pause", _target));
+		connection().sendCommand(new SSIPCommand("pause", _target));
 	}
 
 	/**
@@ -341,7 +772,7 @@ public class SSIPClient {
 	 */
 	public void resume () throws SSIPException {
 		_logger.info("Pause");
-		_connection.sendCommand(new SSIPCommand("resume", _target));
+		connection().sendCommand(new SSIPCommand("resume", _target));
 	}
 
 	/**
@@ -351,7 +782,7 @@ public class SSIPClient {
 	 */
 	public void beginBlock () throws SSIPException {
 		_logger.info("Begin of block");
-		_connection.sendCommand(new SSIPCommand("BLOCK", "BEGIN"));
+		connection().sendCommand(new SSIPCommand("BLOCK", "BEGIN"));
 	}
 
 	/**
@@ -361,7 +792,7 @@ public class SSIPClient {
 	 */
 	public void endBlock () throws SSIPException {
 		_logger.info("End of block");
-		_connection.sendCommand(new SSIPCommand("BLOCK", "END"));
+		connection().sendCommand(new SSIPCommand("BLOCK", "END"));
 	}
 
 	/**
@@ -405,7 +836,11 @@ public class SSIPClient {
 	 * @throws SSIPException  on error
 	 */
 	public void setOutputModule (String module) throws SSIPException {
+		boolean changed = !_parameters.isCurrent(_target, "OUTPUT_MODULE", module);
 		setParameter(_target, "OUTPUT_MODULE", module);
+		// the synthesis voices are the module's
+		if (changed)
+			invalidateVoiceCatalogue();
 	}
 
 	/**
@@ -491,7 +926,7 @@ public class SSIPClient {
 	 */
 	public List<String> getOutputModules () throws SSIPException {
 		_logger.info("Listing output modules");
-		SSIPResponse res = _connection.sendCommand(new SSIPCommand("LIST",
+		SSIPResponse res = connection().sendCommand(new SSIPCommand("LIST",
 		"OUTPUT_MODULES"));
 		List<String> ret = getListResponse(res);
 		_logger.fine(String.format("Output modules are: %s", ret.toString()));
@@ -505,27 +940,145 @@ public class SSIPClient {
 	 */
 	public List<String> getVoices () throws SSIPException {
 		_logger.info("Getting voice names list");
-		return getListResponse(_connection.sendCommand(new SSIPCommand("LIST",
+		return getListResponse(connection().sendCommand(new SSIPCommand("LIST",
 		"VOICES")));
 	}
 
 	/**
 	 * Gets information about all specific voices supported by the synthesizer in use.
+	 * Each call asks the server, see {@link #getVoiceCatalogue()} for a cached and indexed list.
 	 * @return the supported voices information as an unmodifiable list of {@link SSIPSynthesisVoice} objects.
 	 * @throws SSIPException on SSIP error.
 	 * @see SSIPSynthesisVoice
 	 */
 	public List<SSIPSynthesisVoice> getSynthesisVoices () throws SSIPException {
 		_logger.info("Getting synthesis voices");
-		SSIPResponse res = _connection.sendCommand(new SSIPCommand("LIST",
+		SSIPResponse res = connection().sendCommand(new SSIPCommand("LIST",
 		"SYNTHESIS_VOICES"));
-		List<String> data = getListResponse(res);
-		// get voice components and construct a list:
-		List<SSIPSynthesisVoice> voices = new LinkedList<SSIPSynthesisVoice>();
+		return parseSynthesisVoices(getListResponse(res));
+	}
+
+	/**
+	 * Gets the voices of the synthesizer in use, indexed for lookups.
+	 * The catalogue is listed once and kept until the output module is changed with {@link #setOutputModule(String)}, {@link #invalidateVoiceCatalogue()} is called, the connection is restored or the time set with {@link #setVoiceCatalogueTtl(long, TimeUnit)} passes.
+	 * @return the catalogue
+	 * @throws SSIPException on SSIP error
+	 * @see SSIPVoiceCatalogue
+	 */
+	public SSIPVoiceCatalogue getVoiceCatalogue () throws SSIPException {
+		long generation;
+		synchronized (_voiceLock) {
+			if (_voiceCatalogue != null && (_voiceCatalogueTtl == 0
+					|| System.nanoTime() - _voiceCatalogueTime < _voiceCatalogueTtl))
+				return _voiceCatalogue;
+			generation = _voiceCatalogueGeneration;
+		}
+		long time = System.nanoTime();
+		SSIPVoiceCatalogue catalogue = new SSIPVoiceCatalogue(getSynthesisVoices());
+		synchronized (_voiceLock) {
+			if (generation == _voiceCatalogueGeneration) {
+				_voiceCatalogue = catalogue;
+				_voiceCatalogueTime = time;
+			}
+		}
+		return catalogue;
+	}
+
+	/**
+	 * Lists the synthesis voices of every output module, for building a full voice catalogue.
+	 * <p>This client's output module and voice catalogue are left alone: a short-lived connection to the same server lists the modules, then sets each module and lists its voices, all these commands in one write.
+	 * So the discovery takes about two round trips whatever the number of modules, instead of two per module.
+	 * Modules the server refuses to set are left out and logged.</p>
+	 * @return the voices of each module, as an unmodifiable map in the order the modules were listed
+	 * @throws SSIPException on SSIP error
+	 * @see #getVoiceCatalogue()
+	 */
+	public Map<String, SSIPVoiceCatalogue> discoverVoices () throws SSIPException {
+		_logger.info("Discovering synthesis voices of all output modules");
+		SSIPConnection connection = new SSIPConnection(_address);
+		connection.setThreadFactory(_connection.getThreadFactory());
+		connection.connect();
+		try {
+			String self = Target.SELF.toString();
+			List<SSIPCommand> commands = new ArrayList<SSIPCommand>();
+			commands.add(new SSIPCommand("set", self, "client_name", makeFullName()));
+			commands.add(new SSIPCommand("LIST", "OUTPUT_MODULES"));
+			List<SSIPResponse> responses = SSIPConnection.awaitAll(connection.sendBatchAsync(commands, null));
+			List<String> modules = getListResponse(responses.get(1));
+			commands.clear();
+			for (String module : modules) {
+				commands.add(new SSIPCommand("set", self, "OUTPUT_MODULE", module));
+				commands.add(new SSIPCommand("LIST", "SYNTHESIS_VOICES"));
+			}
+			List<CompletableFuture<SSIPResponse>> futures = connection.sendBatchAsync(commands, null);
+			Map<String, SSIPVoiceCatalogue> result = new LinkedHashMap<String, SSIPVoiceCatalogue>();
+			for (int i = 0; i < modules.size(); i++) {
+				String module = modules.get(i);
+				try {
+					// when the module isn't set, the list that follows is the previous module's
+					SSIPConnection.await(futures.get(2 * i), SSIPCommandException.class);
+					SSIPResponse voices = SSIPConnection.await(futures.get(2 * i + 1), SSIPCommandException.class);
+					result.put(module, new SSIPVoiceCatalogue(parseSynthesisVoices(getListResponse(voices))));
+				} catch (SSIPCommandException e) {
+					_logger.warning(String.format("Can't list voices of output module %s: %s", module, e.getMessage()));
+				}
+			}
+			_logger.fine(String.format("Output modules voices are: %s", result));
+			return Collections.unmodifiableMap(result);
+		} finally {
+			// says goodbye like close(), but a failure must not hide the result or the first error
+			try {
+				if (connection.isConnected())
+					connection.sendCommand(new SSIPCommand("quit"));
+			} catch (SSIPException e) {
+				_logger.fine(String.format("Can't quit the discovery connection: %s", e.getMessage()));
+			}
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Forgets the voice catalogue, the next {@link #getVoiceCatalogue()} lists the voices again.
+	 * Needed when the output module is changed by other clients.
+	 */
+	public void invalidateVoiceCatalogue () {
+		synchronized (_voiceLock) {
+			_voiceCatalogue = null;
+			_voiceCatalogueGeneration++;
+		}
+	}
+
+	/**
+	 * Sets how long voice catalogues are kept.
+	 * @param ttl the time, {@code 0} (the default) to keep them until invalidated
+	 * @param unit the unit of {@code ttl}
+	 * @see #getVoiceCatalogue()
+	 */
+	public void setVoiceCatalogueTtl (long ttl, TimeUnit unit) {
+		if (ttl < 0)
+			throw new IllegalArgumentException("ttl can't be negative");
+		synchronized (_voiceLock) {
+			_voiceCatalogueTtl = unit.toNanos(ttl);
+		}
+	}
+
+	/**
+	 * Parses the lines of a {@code LIST SYNTHESIS_VOICES} response.
+	 * Fields are separated by tabs, as sent by recent speech-dispatcher versions, or else by spaces; then the language and variant are the last two fields, so names may contain spaces.
+	 * Lines with less than three fields are skipped.
+	 * @param data the response lines, one voice each
+	 * @return the voices, as an unmodifiable list
+	 */
+	static List<SSIPSynthesisVoice> parseSynthesisVoices (List<String> data) {
+		List<SSIPSynthesisVoice> voices = new ArrayList<SSIPSynthesisVoice>(data.size());
 		for (String s : data) {
-			String[] tmp = s.split(" ");
-			assert (tmp.length == 3);
-			voices.add(new SSIPSynthesisVoice(tmp[0], tmp[1], tmp[2]));
+			char separator = (s.indexOf('\t') >= 0) ? '\t' : ' ';
+			int second = s.lastIndexOf(separator);
+			int first = (second > 0) ? s.lastIndexOf(separator, second - 1) : -1;
+			if (first <= 0)
+				continue;
+			voices.add(new SSIPSynthesisVoice(s.substring(0, first), s.substring(first + 1, second),
+					s.substring(second + 1)));
 		}
 		return Collections.unmodifiableList(voices);
 	}
@@ -537,6 +1090,16 @@ public class SSIPClient {
 	public SSIPConnection getConnection() {
 		return _connection;
 	}
+
+	/**
+	 * Gets the counters and latency histograms of this client's connection.
+	 * The {@code DATA} latency measures {@link #say(SSIPPriority, String)} calls.
+	 * @return the metrics
+	 * @see SSIPMetrics#registerMBean(String)
+	 */
+	public SSIPMetrics getMetrics() {
+		return _connection.getMetrics();
+	}
 	
 	/**
 	 * Sets the current target for setting paramenters. allowed values are {@link Target#SELF} and {@link Target#ALL}, see {@link #setTarget(int)} to set targets for specific clients.
@@ -558,10 +1121,65 @@ public class SSIPClient {
 
 	/**
 	 * Sets the {@code SSIPEventHandler} that will receive event notifications for this client.
+	 * The handler receives only the events of the types turned on with {@link #setNotification(boolean)} or {@link #setNotification(boolean, speechd.ssip.SSIPEvent.EventType)}, not those turned on by {@link #sayAsync(SSIPPriority, String)} or the admission controller for their own use.
+	 * It is called on the event dispatcher thread, after the futures of the event's message are completed.
+	 * A handler set directly on the connection, see {@link SSIPConnection#setEventHandler(SSIPEventHandler)}, is left alone and receives every event after this one.
 	 * @param eventHandler the {@code SSIPEventHandler} to set, <@code null} for no handler.
 	 */
 	public void setEventHandler (SSIPEventHandler eventHandler) {
-		_connection.setEventHandler(eventHandler);
+		_eventHandler = eventHandler;
+		if (eventHandler != null)
+			_connection.setClientEventHandler(_tracker);
+	}
+
+	/**
+	 * Sets the {@code FastSSIPEventHandler} that will receive event notifications for this client on the communications thread, without allocations.
+	 * @param eventHandler the {@code FastSSIPEventHandler} to set, {@code null} for no handler.
+	 * @see FastSSIPEventHandler
+	 */
+	public void setFastEventHandler (FastSSIPEventHandler eventHandler) {
+		_connection.setFastEventHandler(eventHandler);
+	}
+
+	/**
+	 * Sets the admission controller shedding low priority messages when speech lags behind, see {@link SSIPAdmissionController}.
+	 * Notifications of {@code BEGIN}, {@code END} and {@code CANCEL} events are turned on with the next message, the controller follows messages spoken with {@link #say(SSIPPriority, String)}, {@link #sayAsync(SSIPPriority, String)} and {@link #sayStream(SSIPPriority, CharSequence)} through them.
+	 * When the event dispatcher drops events the controller is reset before the next message, the messages it follows may never end otherwise.
+	 * @param admission the controller, {@code null} (the default) to send every message
+	 */
+	public void setAdmissionController (SSIPAdmissionController admission) {
+		_droppedEvents = _connection.getEventDispatcher().getDroppedCount();
+		_admission = admission;
+		if (admission != null)
+			_connection.setClientEventHandler(_tracker);
+	}
+
+	/**
+	 * Gets the admission controller.
+	 * @return the controller, {@code null} if none
+	 * @see #setAdmissionController(SSIPAdmissionController)
+	 */
+	public SSIPAdmissionController getAdmissionController () {
+		return _admission;
+	}
+
+	/**
+	 * Sets how this client reconnects when the connection is lost, for example when speech-dispatcher restarts.
+	 * Reconnection is lazy: the call that finds the connection lost reconnects, with backoff, and restores the session (client name, parameters, notifications) before sending its own command.
+	 * Event handlers and the target are kept. Commands that were waiting for a response when the connection was lost still fail, they are never sent twice.
+	 * @param policy the policy, {@code null} (the default) to never reconnect
+	 * @see SSIPReconnectPolicy#DEFAULT
+	 */
+	public void setReconnectPolicy (SSIPReconnectPolicy policy) {
+		_reconnectPolicy = policy;
+	}
+
+	/**
+	 * Gets the reconnect policy.
+	 * @return the policy, {@code null} if this client never reconnects
+	 */
+	public SSIPReconnectPolicy getReconnectPolicy () {
+		return _reconnectPolicy;
 	}
 
 	/**
@@ -570,9 +1188,14 @@ public class SSIPClient {
 	 * @throws SSIPException on SSIP error
 	 */
 	public void setNotification (boolean value) throws SSIPException {
-
-		_connection.sendCommand(new SSIPCommand("SET", Target.SELF.toString(),
-				"NOTIFICATION", "ALL", value ? "on" : "off"));
+		String onOff = value ? "on" : "off";
+		sendParameter(Target.SELF.toString(), SSIPParameterCache.NOTIFICATION + "ALL", onOff,
+				new SSIPCommand("SET", Target.SELF.toString(), "NOTIFICATION", "ALL", onOff),
+				value ? null : this::dropMessages);
+		if (value)
+			_notifications.addAll(EnumSet.allOf(SSIPEvent.EventType.class));
+		else
+			_notifications.clear();
 	}
 
 	/**
@@ -583,8 +1206,109 @@ public class SSIPClient {
 	 */
 	public void setNotification (boolean value, SSIPEvent.EventType type)
 	throws SSIPException {
-		_connection.sendCommand(new SSIPCommand("SET", Target.SELF.toString(),
-				"NOTIFICATION", type.toString().toUpperCase(), value ? "on" : "off"));
+		String onOff = value ? "on" : "off";
+		sendParameter(Target.SELF.toString(), SSIPParameterCache.NOTIFICATION + type, onOff,
+				new SSIPCommand("SET", Target.SELF.toString(), "NOTIFICATION",
+						type.toString().toUpperCase(), onOff),
+				(value || !Arrays.asList(MESSAGE_EVENTS).contains(type)) ? null : this::dropMessages);
+		if (value)
+			_notifications.add(type);
+		else
+			_notifications.remove(type);
+	}
+
+	/**
+	 * Forgets the messages followed through their events once these are turned off, their events would never come.
+	 * Runs on the communications thread when the server accepted the setting, so exactly the messages sent before it are dropped.
+	 */
+	private void dropMessages () {
+		final List<SSIPMessage> messages = _messages.clear();
+		SSIPAdmissionController admission = _admission;
+		if (admission != null)
+			admission.reset();
+		if (!messages.isEmpty()) {
+			// not on the communications thread, dependent actions may block
+			CompletableFuture.runAsync(() -> {
+				for (SSIPMessage message : messages)
+					message.cancel();
+			});
+		}
+	}
+
+	/**
+	 * Forgets all the parameter values remembered for this client, so the next setting of each parameter is sent to the server even if it seems to have that value already.
+	 * Useful when other clients may have changed this client's settings. The voice catalogue is forgotten too.
+	 */
+	public void invalidateParameterCache () {
+		_parameters.clear();
+		invalidateVoiceCatalogue();
+	}
+
+	/**
+	 * Parses a speech-dispatcher address, as found in the {@code SPEECHD_ADDRESS} environment variable.
+	 * Supported forms are {@code unix_socket[:path]} and {@code inet_socket[:host[:port]]}; missing parts take default values, the unix socket path defaults to {@link #getDefaultUnixSocketPath()}.
+	 * @param address the address to parse
+	 * @return the socket address to connect to
+	 * @throws IllegalArgumentException if the address method is unknown or the port is not a number
+	 */
+	public static SocketAddress parseAddress (String address) {
+		String[] parts = address.trim().split(":", 3);
+		if (parts[0].equals(UNIX_SOCKET_METHOD)) {
+			// paths may contain ':' themselves:
+			int i = address.indexOf(':');
+			Path path = (i < 0) ? getDefaultUnixSocketPath()
+					: Paths.get(address.substring(i + 1).trim());
+			return UnixDomainSocketAddress.of(path);
+		} else if (parts[0].equals(INET_SOCKET_METHOD)) {
+			String host = (parts.length > 1 && parts[1].length() > 0) ? parts[1] : DEFAULT_HOST;
+			String port = (parts.length > 2 && parts[2].length() > 0) ? parts[2] : DEFAULT_PORT;
+			return new InetSocketAddress(host, Integer.parseInt(port));
+		}
+		throw new IllegalArgumentException("unknown speech-dispatcher address method: " + parts[0]);
+	}
+
+	/**
+	 * Gets the path of the unix socket where speech-dispatcher listens by default, {@code $XDG_RUNTIME_DIR/speech-dispatcher/speechd.sock}.
+	 * When {@code XDG_RUNTIME_DIR} is not defined the {@code ~/.cache} directory is used instead, like speech-dispatcher does.
+	 * @return the default socket path
+	 */
+	public static Path getDefaultUnixSocketPath () {
+		String runtimeDir = System.getenv("XDG_RUNTIME_DIR");
+		Path base = (runtimeDir != null) ? Paths.get(runtimeDir)
+				: Paths.get(System.getProperty("user.home"), ".cache");
+		return base.resolve("speech-dispatcher").resolve("speechd.sock");
+	}
+
+	/**
+	 * Finds the server address with the mechanism explained above.
+	 * When neither {@code host} nor {@code port} are given, a speech-dispatcher address from the {@code speechd.address} property or {@code SPEECHD_ADDRESS} environment variable is preferred.
+	 * @param host the host name or {@code null}
+	 * @param port the port or {@code null}
+	 * @return the address to connect to
+	 */
+	private static SocketAddress findAddress (String host, String port) {
+		if (host == null && port == null) {
+			String address;
+			if ((address = System.getProperty("speechd.address")) == null)
+				address = System.getenv("SPEECHD_ADDRESS");
+			if (address != null && address.length() > 0)
+				return parseAddress(address);
+		}
+		// Find host where spd is running:
+		if (host == null) {
+			if ((host = System.getProperty("speechd.host")) == null) {
+				if ((host = System.getenv("SPEECHD_HOST")) == null)
+					host = DEFAULT_HOST;
+			}
+		}
+		// Find default port:
+		if (port == null) {
+			if ((port = System.getProperty("speechd.port")) == null) {
+				if ((port = System.getenv("SPEECHD_PORT")) == null)
+					port = DEFAULT_PORT;
+			}
+		}
+		return new InetSocketAddress(host, Integer.parseInt(port));
 	}
 
 	/**
@@ -623,8 +1347,46 @@ public class SSIPClient {
 	 */
 	protected void setParameter (String target, String param, String value)
 	throws SSIPException {
-		_logger.info(String.format("Setting parameter %s to target %s with value %s", param, target, value));
-		_connection.sendCommand(new SSIPCommand("set", target, param, value));
+		sendParameter(target, param, value, new SSIPCommand("set", target, param, value), null);
+	}
+
+	/**
+	 * Sends a parameter setting command unless the parameter is known to have that value already.
+	 * @param target the target
+	 * @param param the parameter name, as known by the parameter cache
+	 * @param value the parameter value
+	 * @param command the command setting the parameter
+	 * @param accepted run on the communications thread when the server accepts the command, or {@code null}
+	 * @throws SSIPException on SSIP error
+	 */
+	private void sendParameter (String target, String param, String value, SSIPCommand command,
+			Runnable accepted)
+	throws SSIPException {
+		CompletableFuture<SSIPResponse> response;
+		SSIPConnection connection = connection();
+		// check and send atomically, so commands sent by other threads meanwhile see the same state as the server
+		_streamLock.lock();
+		try {
+			awaitStream();
+			if (_parameters.isCurrent(target, param, value)) {
+				_logger.fine(String.format("Parameter %s already has value %s, not setting it", param, value));
+				return;
+			}
+			_logger.info(String.format("Setting parameter %s to target %s with value %s", param, target, value));
+			response = connection.sendCommandAsync(command);
+			// registered before later commands can be sent, if already completed it runs here
+			if (accepted != null)
+				response.thenRun(accepted);
+			_parameters.update(target, param, value);
+		} finally {
+			_streamLock.unlock();
+		}
+		try {
+			SSIPConnection.await(response, SSIPException.class);
+		} catch (SSIPException e) {
+			_parameters.invalidate(param);
+			throw e;
+		}
 	}
 
 	/**
@@ -661,6 +1423,198 @@ public class SSIPClient {
 		setParameter(Target.SELF.toString(), "priority", priority.toString());
 	}
 
+	/**
+	 * Sends a speech command preceded by the priority setting, when it changes, in one single write, and possibly followed by data once they are accepted.
+	 * Waiting for each response in turn would cost one round trip per command, which dominates latency for short messages; the data waits, or a rejected command would leave the server reading it as commands.
+	 * Errors are reported like when sending the commands one by one: a rejected priority or speech command raises a {@link SSIPCommandException} with that command, rejected data a {@link SSIPDataException}.
+	 * @param priority the message priority
+	 * @param command the speech command
+	 * @param data data to send after the command, or {@code null}
+	 * @return the response to the last command or data sent
+	 * @throws SSIPException on SSIP error
+	 * @see SSIPConnection#sendBatch(List, String)
+	 */
+	protected SSIPResponse sendWithPriority (SSIPPriority priority, SSIPCommand command, String data)
+	throws SSIPException {
+		return sendWithPriority(priority, null, command, data, new CompletableFuture<SSIPResponse>());
+	}
+
+	private SSIPResponse sendWithPriority (SSIPPriority priority, SSIPEvent.EventType[] notifications,
+			SSIPCommand command, String data, CompletableFuture<SSIPResponse> dataFuture)
+	throws SSIPException {
+		List<String> settings = new ArrayList<String>(4);
+		List<CompletableFuture<SSIPResponse>> futures = queueWithPriority(connection(), priority, notifications,
+				Collections.singletonList(command), data, dataFuture, settings);
+		List<SSIPResponse> responses;
+		try {
+			responses = SSIPConnection.awaitAll(futures);
+		} catch (SSIPException e) {
+			for (int i = 0; i < settings.size(); i++) {
+				if (futures.get(i).isCompletedExceptionally())
+					_parameters.invalidate(settings.get(i));
+			}
+			throw e;
+		}
+		return responses.get(responses.size() - 1);
+	}
+
+	/**
+	 * Sends speech commands, preceded by the notification and priority settings that change, in one single write. The data is written once they are all accepted, see {@link SSIPConnection#sendBatchAsync(List, String)}.
+	 * @param connection the connection, from {@link #connection()} called without holding any lock
+	 * @param priority the message priority
+	 * @param notifications event types whose notification must be on, or {@code null}
+	 * @param speech the speech commands, the data follows the last one
+	 * @param data data to send after the command, or {@code null}
+	 * @param dataFuture the future for the data response
+	 * @param settings receives the cache names of the parameters set, in the order of their futures
+	 * @return the future responses, the settings first
+	 * @throws SSIPCommunicationException if the connection is lost
+	 */
+	private List<CompletableFuture<SSIPResponse>> queueWithPriority (SSIPConnection connection,
+			SSIPPriority priority, SSIPEvent.EventType[] notifications, List<SSIPCommand> speech, String data,
+			CompletableFuture<SSIPResponse> dataFuture, List<String> settings)
+	throws SSIPCommunicationException {
+		String self = Target.SELF.toString();
+		String value = priority.toString();
+		List<SSIPCommand> commands = new ArrayList<SSIPCommand>(speech.size() + 1);
+		_streamLock.lock();
+		try {
+			awaitStream();
+			if (notifications != null) {
+				for (SSIPEvent.EventType type : notifications) {
+					if (!_parameters.isCurrent(self, SSIPParameterCache.NOTIFICATION + type, "on")) {
+						commands.add(new SSIPCommand("SET", self, "NOTIFICATION", type.toString(), "on"));
+						settings.add(SSIPParameterCache.NOTIFICATION + type);
+					}
+				}
+			}
+			// the priority is only set when it changes
+			if (!_parameters.isCurrent(self, "priority", value)) {
+				commands.add(new SSIPCommand("set", self, "priority", value));
+				settings.add("priority");
+			}
+			commands.addAll(speech);
+			List<CompletableFuture<SSIPResponse>> futures = connection.sendBatchAsync(commands, data, dataFuture);
+			for (String param : settings) {
+				_parameters.update(self, param,
+						param.equals("priority") ? value : "on");
+			}
+			return futures;
+		} finally {
+			_streamLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the connection to send commands on, reconnecting first when it was lost and a reconnect policy is set.
+	 * While another thread reconnects, waits until the session is restored.
+	 * Must not be called holding {@code _streamLock}, reconnecting takes it.
+	 * @return the connection
+	 * @throws SSIPCommunicationException if the connection can't be restored
+	 * @see #setReconnectPolicy(SSIPReconnectPolicy)
+	 */
+	protected SSIPConnection connection () throws SSIPCommunicationException {
+		if ((_reconnecting || !_connection.isConnected()) && _reconnectPolicy != null && !_closed)
+			reconnect();
+		return _connection;
+	}
+
+	/**
+	 * Reconnects with backoff, then replays the session.
+	 * @throws SSIPCommunicationException if all attempts failed
+	 */
+	private void reconnect () throws SSIPCommunicationException {
+		synchronized (_reconnectLock) {
+			SSIPReconnectPolicy policy = _reconnectPolicy;
+			if (_connection.isConnected() || policy == null)
+				return;
+			// connection() waits on the lock until the session is restored
+			_reconnecting = true;
+			try {
+				// messages of the old connection will never end
+				for (SSIPMessage message : _messages.clear())
+					message.fail(new SSIPCommunicationException("disconnected from server"));
+				SSIPAdmissionController admission = _admission;
+				if (admission != null)
+					admission.reset();
+				// the server may have restarted with other modules
+				invalidateVoiceCatalogue();
+				for (int attempt = 1; ; attempt++) {
+					try {
+						replay();
+						_logger.info(String.format("Reconnected to host after %d attempt(s)", attempt));
+						return;
+					} catch (SSIPException e) {
+						_connection.disconnect();
+						_logger.warning(String.format("Reconnect attempt %d failed: %s", attempt, e.getMessage()));
+						if (attempt >= policy.getMaxAttempts())
+							throw new SSIPCommunicationException("can't reconnect to host", e);
+					}
+					try {
+						TimeUnit.NANOSECONDS.sleep(policy.getDelay(attempt, TimeUnit.NANOSECONDS));
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SSIPCommunicationException(e);
+					}
+				}
+			} finally {
+				_reconnecting = false;
+			}
+		}
+	}
+
+	/**
+	 * Connects and restores the session on the new connection: client name, every parameter and notification set for this client, in the order they were set, and the new client id.
+	 * All commands go in one write, the server answers them in a single round trip.
+	 * Connecting and sending hold the locks of the senders, so a command another thread sends on the connection comes after the session is restored.
+	 * Settings the new server rejects are forgotten and logged. The event handlers stay with the connection object, and the target is kept, following the client id if it was this client's own.
+	 * @throws SSIPException on communication errors
+	 */
+	private void replay () throws SSIPException {
+		String self = Target.SELF.toString();
+		List<SSIPCommand> commands = new ArrayList<SSIPCommand>();
+		List<String> settings = new ArrayList<String>();
+		List<CompletableFuture<SSIPResponse>> futures;
+		_streamLock.lock();
+		try {
+			// a stream's block dies with the old connection, its sentences mustn't go on in the new session
+			awaitStream();
+			_connection.connect();
+			commands.add(new SSIPCommand("set", self, "client_name", makeFullName()));
+			settings.add("CLIENT_NAME");
+			for (Map.Entry<String, String> entry : _parameters.snapshot().entrySet()) {
+				String param = entry.getKey();
+				if (param.equals("CLIENT_NAME"))
+					continue;
+				if (param.startsWith(SSIPParameterCache.NOTIFICATION)) {
+					commands.add(new SSIPCommand("SET", self, "NOTIFICATION",
+							param.substring(SSIPParameterCache.NOTIFICATION.length()), entry.getValue()));
+				} else {
+					commands.add(new SSIPCommand("set", self, param, entry.getValue()));
+				}
+				settings.add(param);
+			}
+			commands.add(new SSIPCommand("HISTORY", "GET", "CLIENT_ID"));
+			futures = _connection.sendBatchAsync(commands, null);
+		} finally {
+			_streamLock.unlock();
+		}
+		for (int i = 0; i < settings.size(); i++) {
+			try {
+				SSIPConnection.await(futures.get(i), SSIPCommandException.class);
+			} catch (SSIPCommandException e) {
+				_logger.warning(String.format("Server rejected %s when restoring the session", commands.get(i)));
+				_parameters.invalidate(settings.get(i));
+			}
+		}
+		int oldId = _clientId;
+		_clientId = getIntResponse(SSIPConnection.await(futures.get(futures.size() - 1), SSIPCommandException.class));
+		_parameters.setSelfId(_clientId);
+		if (_target.equals(Integer.toString(oldId)))
+			_target = Integer.toString(_clientId);
+		_logger.fine(String.format("Session restored with %d command(s), client id is %d", commands.size(), _clientId));
+	}
+
 	/**
 	 * Gets the integer value from a {@code SSIP} object.
 	 * @param response the response
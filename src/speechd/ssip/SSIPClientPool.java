@@ -0,0 +1,325 @@
+/*
+ * SSIPClientPool.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.ssip;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of {@link SSIPClient} connections sharing the same name, component and user, for applications speaking from many threads.
+ * <p>Each connection handles one request at a time from the server's point of view, so threads sharing a single client wait for each other.
+ * With a pool each thread borrows its own client with {@link #borrow()}, uses it, and gives it back with {@link #release(SSIPClient)}:
+ * <code><pre>
+ * SSIPClient spd = pool.borrow();
+ * try {
+ *     spd.say(SSIPPriority.MESSAGE, "Hello");
+ * } finally {
+ *     pool.release(spd);
+ * }
+ * </pre></code>
+ * At most {@code size} clients exist at once, borrowers wait when all of them are in use. Clients are opened lazily when needed, or up front with {@link #prewarm(int)}.
+ * Clients found disconnected when released are discarded, and a new one is opened next time one is needed.</p>
+ * <p>The pool keeps usage metrics: connections open and in use, number of borrows and time spent waiting for a client.</p>
+ * <p>Settings made on a borrowed client (rate, voice, ...) stay with it for the next borrowers; the target is reset to {@link SSIPClient.Target#SELF} on release.
+ * This class is safe for multi threaded use.</p>
+ *
+ * @author ragb
+ *
+ * @see SSIPClient
+ */
+public class SSIPClientPool {
+	private final String _name;
+	private final String _component;
+	private final String _user;
+	/**
+	 * Server address, {@code null} for the default mechanism of {@link SSIPClient}.
+	 */
+	private final SocketAddress _address;
+	private final int _size;
+
+	/**
+	 * Permits for borrowing, one per client that may exist.
+	 */
+	private final Semaphore _permits;
+	/**
+	 * Clients not in use, most recently used first.
+	 */
+	private final ConcurrentLinkedDeque<SSIPClient> _idle = new ConcurrentLinkedDeque<SSIPClient>();
+	/**
+	 * Clients borrowed and not yet released, by identity.
+	 */
+	private final Set<SSIPClient> _borrowed = Collections.synchronizedSet(
+			Collections.newSetFromMap(new IdentityHashMap<SSIPClient, Boolean>()));
+	private final AtomicInteger _open = new AtomicInteger();
+	private final AtomicInteger _active = new AtomicInteger();
+	private final AtomicLong _borrowCount = new AtomicLong();
+	private final AtomicLong _timeoutCount = new AtomicLong();
+	private final AtomicLong _waitNanos = new AtomicLong();
+	private final AtomicLong _maxWaitNanos = new AtomicLong();
+	private volatile boolean _closed = false;
+
+	private Logger _logger = Logger.getLogger("speechd.ssip.SSIPClientPool");
+
+	/**
+	 * Constructs a new pool connecting to the server found by the default mechanism of {@link SSIPClient}. No connection is opened yet.
+	 * @param name client name.
+	 * @param component Component for the connections, if {@code null} the "main" default value will be used.
+	 * @param user the client user name, if {@code null} the current user name will be used.
+	 * @param size the maximum number of connections
+	 */
+	public SSIPClientPool (String name, String component, String user, int size) {
+		this(name, component, user, null, size);
+	}
+
+	/**
+	 * Constructs a new pool connecting to the given server address. No connection is opened yet.
+	 * @param name client name.
+	 * @param component Component for the connections, if {@code null} the "main" default value will be used.
+	 * @param user the client user name, if {@code null} the current user name will be used.
+	 * @param address the server address, if {@code null} the default mechanism of {@link SSIPClient} applies
+	 * @param size the maximum number of connections
+	 * @throws IllegalArgumentException if {@code size} is not positive
+	 */
+	public SSIPClientPool (String name, String component, String user, SocketAddress address, int size) {
+		if (name == null)
+			throw new NullPointerException("SSIP connection's name can't be null");
+		if (size <= 0)
+			throw new IllegalArgumentException("pool size must be positive");
+		_name = name;
+		_component = component;
+		_user = user;
+		_address = address;
+		_size = size;
+		_permits = new Semaphore(size, true);
+	}
+
+	/**
+	 * Opens connections up front, so the first borrowers don't pay for connecting.
+	 * @param count the number of connections that should be open, at most the pool size
+	 * @throws SSIPException when SSIP communication errors are found connecting
+	 */
+	public void prewarm (int count) throws SSIPException {
+		count = Math.min(count, _size);
+		List<SSIPClient> clients = new ArrayList<SSIPClient>(count);
+		try {
+			while (_open.get() < count) {
+				if (!_permits.tryAcquire())
+					break; // the remaining connections are in use
+				try {
+					clients.add(open());
+				} catch (SSIPException e) {
+					_permits.release();
+					throw e;
+				}
+			}
+		} finally {
+			for (SSIPClient client : clients) {
+				_idle.addLast(client);
+				_permits.release();
+			}
+		}
+		_logger.info(String.format("Prewarmed pool, %d connections open", _open.get()));
+	}
+
+	/**
+	 * Borrows a client, waiting until one is available.
+	 * @return the client, to be given back with {@link #release(SSIPClient)}
+	 * @throws SSIPException when SSIP communication errors are found connecting a new client
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public SSIPClient borrow () throws SSIPException, InterruptedException {
+		long start = System.nanoTime();
+		_permits.acquire();
+		return acquired(start);
+	}
+
+	/**
+	 * Borrows a client, waiting at most the given time for one to be available.
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of {@code timeout}
+	 * @return the client, to be given back with {@link #release(SSIPClient)}, or {@code null} if none was available in time
+	 * @throws SSIPException when SSIP communication errors are found connecting a new client
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public SSIPClient borrow (long timeout, TimeUnit unit) throws SSIPException, InterruptedException {
+		long start = System.nanoTime();
+		if (!_permits.tryAcquire(timeout, unit)) {
+			_timeoutCount.incrementAndGet();
+			recordWait(System.nanoTime() - start);
+			return null;
+		}
+		return acquired(start);
+	}
+
+	/**
+	 * Gives back a borrowed client. Clients that were disconnected are discarded.
+	 * @param client the client
+	 * @throws IllegalStateException if the client isn't borrowed from this pool, or was released already
+	 */
+	public void release (SSIPClient client) {
+		if (!_borrowed.remove(client))
+			throw new IllegalStateException("client not borrowed from this pool");
+		_active.decrementAndGet();
+		try {
+			if (_closed || !client.getConnection().isConnected()) {
+				discard(client);
+			} else {
+				client.setTarget(SSIPClient.Target.SELF);
+				_idle.addFirst(client);
+			}
+		} finally {
+			_permits.release();
+		}
+	}
+
+	/**
+	 * Closes the pool and all the idle connections. Borrowed clients are closed when released.
+	 */
+	public void close () {
+		_closed = true;
+		SSIPClient client;
+		while ((client = _idle.poll()) != null)
+			discard(client);
+		_logger.info("Closed pool");
+	}
+
+	/**
+	 * Gets the maximum number of connections.
+	 * @return the pool size
+	 */
+	public int getSize () {
+		return _size;
+	}
+
+	/**
+	 * Gets the number of open connections, idle or in use.
+	 * @return the number of open connections
+	 */
+	public int getOpenCount () {
+		return _open.get();
+	}
+
+	/**
+	 * Gets the number of connections currently borrowed.
+	 * @return the number of active connections
+	 */
+	public int getActiveCount () {
+		return _active.get();
+	}
+
+	/**
+	 * Gets the number of open connections not in use.
+	 * @return the number of idle connections
+	 */
+	public int getIdleCount () {
+		return _idle.size();
+	}
+
+	/**
+	 * Gets the number of successful borrows since the pool was created.
+	 * @return the borrow count
+	 */
+	public long getBorrowCount () {
+		return _borrowCount.get();
+	}
+
+	/**
+	 * Gets the number of borrows that timed out without getting a client.
+	 * @return the timeout count
+	 */
+	public long getTimeoutCount () {
+		return _timeoutCount.get();
+	}
+
+	/**
+	 * Gets the total time borrowers spent waiting for a client, including connecting new clients.
+	 * @param unit the unit of the result
+	 * @return the total wait time
+	 */
+	public long getTotalWaitTime (TimeUnit unit) {
+		return unit.convert(_waitNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Gets the longest time a borrower waited for a client.
+	 * @param unit the unit of the result
+	 * @return the maximum wait time
+	 */
+	public long getMaxWaitTime (TimeUnit unit) {
+		return unit.convert(_maxWaitNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Hands out an idle client or opens a new one, once a permit was acquired.
+	 */
+	private SSIPClient acquired (long start) throws SSIPException {
+		SSIPClient client = null;
+		try {
+			if (_closed)
+				throw new IllegalStateException("pool is closed");
+			while ((client = _idle.poll()) != null && !client.getConnection().isConnected())
+				discard(client);
+			if (client == null)
+				client = open();
+		} finally {
+			if (client == null)
+				_permits.release();
+		}
+		_borrowed.add(client);
+		_active.incrementAndGet();
+		_borrowCount.incrementAndGet();
+		recordWait(System.nanoTime() - start);
+		return client;
+	}
+
+	private SSIPClient open () throws SSIPException {
+		SSIPClient client = new SSIPClient(_name, _component, _user, _address);
+		_open.incrementAndGet();
+		return client;
+	}
+
+	private void discard (SSIPClient client) {
+		_open.decrementAndGet();
+		try {
+			client.close();
+		} catch (SSIPException e) {
+			_logger.log(Level.FINE, "error closing pooled client", e);
+		}
+	}
+
+	private void recordWait (long nanos) {
+		_waitNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = _maxWaitNanos.get()) && !_maxWaitNanos.compareAndSet(max, nanos))
+			;
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * SSIPCoalescingChannel.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.ssip;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends messages through a {@link SSIPClient}, keeping only the latest message of each key while earlier ones wait.
+ * <p>Messages such as progress updates ("45%", "46%", ...) or focus changes often come faster than they can be spoken, and speech-dispatcher would throw most of them away anyway.
+ * Messages put in the channel are sent one at a time by a sender thread of its own; while a message is being sent, a newer message with the same key replaces the older one still waiting, which is never sent.
+ * Waiting messages are sent in the order their keys first arrived, so a key updated all the time doesn't delay the others.</p>
+ * <p>{@link #say(String, SSIPPriority, String)} never blocks. Errors sending a message are logged and counted, see {@link #getFailedCount()}.
+ * Every message submitted is either sent, shed, failed, coalesced, discarded on close or still waiting.
+ * This class is safe for multi threaded use.</p>
+ *
+ * @author ragb
+ *
+ * @see SSIPPriority#PROgRESS
+ */
+public final class SSIPCoalescingChannel {
+	/**
+	 * A message waiting to be sent.
+	 */
+	private static final class Message {
+		final SSIPPriority priority;
+		final String text;
+
+		Message (SSIPPriority priority, String text) {
+			this.priority = priority;
+			this.text = text;
+		}
+	}
+
+	private final SSIPClient _client;
+	/**
+	 * Messages waiting, by key, in the order the keys arrived.
+	 */
+	private final LinkedHashMap<String, Message> _pending = new LinkedHashMap<String, Message>();
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _notEmpty = _lock.newCondition();
+	private boolean _closed;
+
+	private final AtomicLong _submitted = new AtomicLong();
+	private final AtomicLong _sent = new AtomicLong();
+	private final AtomicLong _shed = new AtomicLong();
+	private final AtomicLong _coalesced = new AtomicLong();
+	private final AtomicLong _failed = new AtomicLong();
+	private final AtomicLong _discarded = new AtomicLong();
+
+	private Logger _logger = Logger.getLogger("speechd.ssip.SSIPCoalescingChannel");
+
+	/**
+	 * Constructs a new channel, its sender thread created by the default thread factory.
+	 * @param client the client sending the messages
+	 * @see SSIPConnection#getDefaultThreadFactory()
+	 */
+	public SSIPCoalescingChannel (SSIPClient client) {
+		this(client, SSIPConnection.getDefaultThreadFactory());
+	}
+
+	/**
+	 * Constructs a new channel.
+	 * @param client the client sending the messages
+	 * @param threadFactory the factory creating the sender thread
+	 */
+	public SSIPCoalescingChannel (SSIPClient client, ThreadFactory threadFactory) {
+		if (client == null)
+			throw new NullPointerException("client can't be null");
+		_client = client;
+		Thread thread = threadFactory.newThread(new Runnable() {
+			public void run () {
+				sendLoop();
+			}
+		});
+		thread.setName("SSIP coalescing sender");
+		thread.start();
+	}
+
+	/**
+	 * Queues a message, replacing the message of the same key still waiting, if any.
+	 * @param key the key, messages with the same key replace each other
+	 * @param priority the message priority
+	 * @param text the message
+	 * @throws IllegalStateException if the channel is closed
+	 */
+	public void say (String key, SSIPPriority priority, String text) {
+		if (key == null || priority == null || text == null)
+			throw new NullPointerException("key, priority and text can't be null");
+		Message message = new Message(priority, text);
+		_lock.lock();
+		try {
+			if (_closed)
+				throw new IllegalStateException("channel closed");
+			_submitted.incrementAndGet();
+			// replacing a value keeps the key's place in the order
+			if (_pending.put(key, message) != null)
+				_coalesced.incrementAndGet();
+			_notEmpty.signal();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes this channel, waiting messages are discarded. The client is not closed.
+	 */
+	public void close () {
+		_lock.lock();
+		try {
+			_closed = true;
+			_discarded.addAndGet(_pending.size());
+			_pending.clear();
+			_notEmpty.signal();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of messages put in the channel.
+	 * @return the count
+	 */
+	public long getSubmittedCount () {
+		return _submitted.get();
+	}
+
+	/**
+	 * Gets the number of messages sent to the server and queued by it. Messages shed or failed are not counted.
+	 * @return the count
+	 */
+	public long getSentCount () {
+		return _sent.get();
+	}
+
+	/**
+	 * Gets the number of messages shed by the admission controller of the client, never sent.
+	 * @return the count
+	 * @see SSIPClient#setAdmissionController(SSIPAdmissionController)
+	 */
+	public long getShedCount () {
+		return _shed.get();
+	}
+
+	/**
+	 * Gets the number of messages replaced by a newer one before being sent.
+	 * @return the count
+	 */
+	public long getCoalescedCount () {
+		return _coalesced.get();
+	}
+
+	/**
+	 * Gets the number of messages that failed to be sent.
+	 * @return the count
+	 */
+	public long getFailedCount () {
+		return _failed.get();
+	}
+
+	/**
+	 * Gets the number of messages still waiting when the channel was closed, never sent.
+	 * @return the count
+	 */
+	public long getDiscardedCount () {
+		return _discarded.get();
+	}
+
+	/**
+	 * Gets the number of messages waiting to be sent.
+	 * @return the count, at most one per key
+	 */
+	public int getPendingCount () {
+		_lock.lock();
+		try {
+			return _pending.size();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the oldest waiting message.
+	 * @return the message, {@code null} when closed
+	 */
+	private Message take () throws InterruptedException {
+		_lock.lock();
+		try {
+			while (_pending.isEmpty()) {
+				if (_closed)
+					return null;
+				_notEmpty.await();
+			}
+			Iterator<Map.Entry<String, Message>> it = _pending.entrySet().iterator();
+			Message message = it.next().getValue();
+			it.remove();
+			return message;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	private void sendLoop () {
+		try {
+			Message message;
+			while ((message = take()) != null) {
+				try {
+					if (_client.say(message.priority, message.text) >= 0)
+						_sent.incrementAndGet();
+					else
+						_shed.incrementAndGet();
+				} catch (SSIPException | RuntimeException e) {
+					// the thread must outlive a failing message, or nothing is sent anymore
+					_failed.incrementAndGet();
+					_logger.log(Level.WARNING, "Can't send message", e);
+				}
+			}
+		} catch (InterruptedException e) {
+			_logger.log(Level.WARNING, "coalescing sender thread interrupted");
+		}
+	}
+}
@@ -20,12 +20,23 @@
  */
 package speechd.ssip;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -46,14 +57,22 @@ import java.util.logging.Logger;
  * active, see {@link SSIPConnection#setEventHandler} to define the
  * {@link SSIPEventHandler} and {@link SSIPEventParser} for more information.
  * Note that all exceptions not catched in the event callback will be discarded.
- * The event dispatching is processed in SSIPConnection's communications thread,
- * no complicated stuff are allowed nor sending of SSIP commands. Effects for
- * this practice are undefined. Clients are responsible for sending the specific
- * commands to activate and deactivate SSIP events.<br/> The
- * {@link SSIPConnection#sendCommand} and {@link SSIPConnection#sendData}
- * methods are synchronized on the connection to avoid concurrency problems,
- * when sending a command or data, no other thread can send something before the
- * first gets its response.<br/> All methods that do input/output can throw
+ * Events are handed by the communications thread to a
+ * {@link SSIPEventDispatcher}, which runs the handler on a thread of its own,
+ * so handlers can take their time and send SSIP commands, see
+ * {@link SSIPConnection#setEventDispatcher} to configure its buffer. Clients
+ * are responsible for sending the specific commands to activate and
+ * deactivate SSIP events.<br/> Commands and data
+ * can be sent asynchronously with {@link SSIPConnection#sendCommandAsync} and
+ * {@link SSIPConnection#sendDataAsync}, several of them can be on the wire at
+ * once (pipelining). SSIP servers answer in order, so responses are matched to
+ * requests through a FIFO queue. {@link SSIPConnection#sendCommand} and
+ * {@link SSIPConnection#sendData} are the blocking counterparts, waiting just
+ * for their own response. Writes are serialized, so concurrent threads never
+ * interleave their frames, but a sequence of commands that must not be
+ * interleaved with other threads' commands (like <code>SPEAK</code> followed by
+ * its data) needs external synchronization.<br/> All methods that do
+ * input/output can throw
  * subclasses of {@link SSIPException} on error. For example
  * {@link SSIPConnection#sendCommand} can throw a {@link SSIPCommandException}
  * when the response code is not on the 200-299 range, as defined in SSIP
@@ -66,6 +85,12 @@ import java.util.logging.Logger;
  * of all SSIP details.
  * 
  * <h3>note</h3>
+ * Connections can be made over TCP (see
+ * {@link SSIPConnection#SSIPConnection(String, int)}) or over an unix domain
+ * socket, the default transport of speech-dispatcher, by passing an
+ * {@link java.net.UnixDomainSocketAddress} to
+ * {@link SSIPConnection#SSIPConnection(SocketAddress)}. Unix sockets avoid the
+ * TCP loopback stack and give lower round trip times for local servers.
  * If in the future SSIP changes for another kind of communication (d-bus,
  * pypes, ...) we could extract this class's interface and create another
  * connection types, requiring no or few changes in clients.
@@ -92,87 +117,296 @@ public class SSIPConnection {
 	 * 
 	 */
 	private class InputThread implements Runnable {
+		/**
+		 * lines of the event being read so far
+		 */
+		private int _eventLines = 0;
+		private int _eventMsgId;
+		private int _eventClientId;
+		private String _eventMark;
+		/**
+		 * <code>true</code> when the view's buffer holds the current event's
+		 * index mark name
+		 */
+		private boolean _viewHasMark;
+		/**
+		 * view reused for every event given to the fast event handler
+		 */
+		private final SSIPEventView _view = new SSIPEventView();
+
 		public void run() {
-			while (SSIPConnection.this.isConnected()) {
-				java.util.List<String> data = new LinkedList<String>();
-				int code;
-				// read lines
-				try {
-					while (_reader.ready()) {
-						String line = readLine();
-						assert (line.length() >= 4 && (line.charAt(3) == '-' || line
-								.charAt(3) == ' '));
-						char c = line.charAt(3);
-						code = Integer.parseInt(line.substring(0, 3));
-						if (c == ' ') {
-							SSIPResponse res;
-							String msg = line.substring(4);
-							if (data.isEmpty())
-								res = new SSIPResponse(code, msg);
-							else
-								res = new SSIPResponse(code, msg, data);
-							dispatch(res);
-						} else if (c == '-') {
-							data.add(line.substring(4));
-						}
+			java.util.List<String> data = new LinkedList<String>();
+			try {
+				// readLine blocks until a whole line is available, so an idle
+				// connection costs nothing. It returns false when the server
+				// closes the connection or when disconnect() closes the channel.
+				while (_lines.readLine()) {
+					int code = _lines.getCode();
+					if (_logger.isLoggable(Level.FINEST))
+						_logger.finest(String.format("Read line %d %s", code,
+								_lines.getPayload()));
+					if (code / 100 == 7) {
+						readEventLine(code);
+					} else if (_lines.isLast()) {
+						SSIPResponse res;
+						String msg = _lines.getPayload();
+						if (data.isEmpty())
+							res = new SSIPResponse(code, msg);
+						else
+							res = new SSIPResponse(code, msg, data);
+						dispatch(res);
+						data = new LinkedList<String>();
+					} else {
+						data.add(_lines.getPayload());
+					}
+				}
+			} catch (IOException e) {
+				// closing the channel on disconnect also lands here
+				if (isConnected())
+					_logger.log(Level.WARNING, "I/O error reading from server", e);
+			} catch (InterruptedException e) {
+				_logger.log(Level.WARNING, "communications thread interrupted");
+			} finally {
+				SSIPConnection.this.disconnect();
+			}
+		}
+
+		/**
+		 * Reads a line of an event straight from the line reader, without
+		 * building a response: message id, client id, index mark name for
+		 * index marks, and the last line with the event name.
+		 */
+		private void readEventLine(int code) throws IOException,
+				InterruptedException {
+			if (!_lines.isLast()) {
+				switch (_eventLines++) {
+				case 0:
+					_eventMsgId = _lines.getPayloadInt();
+					break;
+				case 1:
+					_eventClientId = _lines.getPayloadInt();
+					break;
+				default:
+					// no String for the fast handler, the mark is decoded in
+					// the view's buffer
+					if (_fastEventHandler != null) {
+						_view.setMarkBuffer(_lines.decodePayload(_view
+								.getMarkBuffer()));
+						_viewHasMark = true;
 					}
-					Thread.yield();
-				} catch (IOException e) {
-					Thread.currentThread().interrupt();
-					SSIPConnection.this.disconnect();
-				} catch (InterruptedException e) {
-					SSIPConnection.this.disconnect();
+					if (_eventHandler != null || _clientEventHandler != null)
+						_eventMark = _lines.getPayload();
 				}
+				return;
 			}
+			SSIPEvent.EventType type = SSIPEventParser.getInstance().getType(
+					code);
+			if (type == null || _eventLines < 2) {
+				_logger.warning(String.format("Unexpected event %d %s from server",
+						code, _lines.getPayload()));
+				resetEvent();
+				return;
+			}
+			_metrics.event(type);
+			FastSSIPEventHandler fastHandler = _fastEventHandler;
+			if (fastHandler != null) {
+				_view.set(type, _eventMsgId, _eventClientId, _viewHasMark
+						&& type == SSIPEvent.EventType.INDEX_MARK);
+				try {
+					fastHandler.handleSSIPEvent(_view);
+				} catch (Exception e) {
+					_logger.log(Level.SEVERE, "Exception in user callback", e);
+				}
+			}
+			if (_eventHandler != null || _clientEventHandler != null) {
+				// the handler runs on the dispatcher thread, responses keep
+				// flowing
+				SSIPEvent event;
+				if (type == SSIPEvent.EventType.INDEX_MARK)
+					event = new SSIPEvent(type, _eventMsgId, _eventClientId,
+							_eventMark);
+				else
+					event = new SSIPEvent(type, _eventMsgId, _eventClientId);
+				_eventDispatcher.put(event);
+			}
+			resetEvent();
+		}
+
+		private void resetEvent() {
+			_eventLines = 0;
+			_eventMark = null;
+			_viewHasMark = false;
 		}
 	}
 
 	/**
-	 * end of line sequence
+	 * A request waiting for its response from the server.
 	 */
-	static private final String CRLF = "\r\n";
+	private static class PendingResponse {
+		/**
+		 * the command sent, <code>null</code> when data was sent
+		 */
+		private final SSIPCommand _command;
+		/**
+		 * the data sent, <code>null</code> when a command was sent
+		 */
+		private final String _data;
+		private final CompletableFuture<SSIPResponse> _future;
+		/**
+		 * data block following this command in the same batch, set on each
+		 * command of the batch. The block is written only once the last
+		 * command is answered, if all of them were accepted.
+		 */
+		private PendingResponse _dataAfter;
+		/**
+		 * <code>true</code> for the command right before the data block, its
+		 * response decides whether the block is written
+		 */
+		private boolean _gate;
+		/**
+		 * first error of the commands before this data block
+		 */
+		private SSIPException _error;
+		/**
+		 * responses still to be discarded before this request is done, set
+		 * when an empty block is written in place of this data block
+		 */
+		private int _discard;
+		/**
+		 * latency histogram of the command or data, set when written
+		 */
+		private SSIPHistogram _histogram;
+		/**
+		 * time the request was written, in {@link System#nanoTime()} units
+		 */
+		private long _sent;
+
+		PendingResponse(SSIPCommand command, String data,
+				CompletableFuture<SSIPResponse> future) {
+			_command = command;
+			_data = data;
+			_future = future;
+		}
+
+		/**
+		 * Completes the future with the response, or with the appropriate
+		 * exception when the server returned an error code.
+		 */
+		void complete(SSIPResponse res) {
+			if (res.getCode() / 100 == 2) {
+				_future.complete(res);
+				return;
+			}
+			SSIPException e;
+			if (_command != null)
+				e = new SSIPCommandException(_command, res);
+			else
+				e = new SSIPDataException(_data, res);
+			// the data block fails with the first error, see releaseData
+			if (_dataAfter != null && _dataAfter._error == null)
+				_dataAfter._error = e;
+			_future.completeExceptionally(e);
+		}
+	}
+
 	/**
-	 * SSIP end of data sequence
+	 * charset of all SSIP communication, SSIP mandates UTF-8 whatever the
+	 * platform's default charset is.
 	 */
-	static private final String END_OF_DATA = CRLF + "." + CRLF;
+	static final Charset CHARSET = StandardCharsets.UTF_8;
 	/**
-	 * socket used to comunicate with SSIP server
+	 * channel used to comunicate with SSIP server, either a TCP or an unix
+	 * domain socket
 	 */
-	private Socket _socket;
+	private SocketChannel _channel;
 	/**
-	 * reader to read characters from the socket instead of bytes
+	 * reader splitting the bytes received from the server into response lines
 	 */
-	private BufferedReader _reader;
+	private SSIPLineReader _lines;
 	/**
 	 * writer to write characters to the socket instead of plain bytes
 	 */
-	private BufferedWriter _writer;
+	private SSIPWriter _writer;
 	/**
-	 * server host
+	 * server host, when connecting over TCP
 	 */
 	private String _host;
 	/**
-	 * SSIP server port
+	 * SSIP server port, when connecting over TCP
 	 */
 	private int _port;
+	/**
+	 * server address, <code>null</code> when it is resolved from host and
+	 * port on connection
+	 */
+	private SocketAddress _address;
 	/**
 	 * flag to see if this <code>SSIPConnection</code> is connected, it is used
 	 * to stop comunications thread smoothly.
 	 */
-	private boolean _connected;
+	private volatile boolean _connected;
+	/**
+	 * requests sent and waiting for their responses, in sending order.
+	 */
+	private final Queue<PendingResponse> _pending = new ConcurrentLinkedQueue<PendingResponse>();
+	/**
+	 * lock serializing writes, so requests are queued in the same order they
+	 * go on the wire.
+	 */
+	private final ReentrantLock _writeLock = new ReentrantLock();
 	/**
-	 * variable to hold the Response wich the communications thread parsed and
-	 * the main thread wants to get.
+	 * command whose data block waits for its response before being written,
+	 * <code>null</code> if none. Guarded by the write lock.
 	 */
-	private SSIPResponse _currentResponse;
+	private PendingResponse _gate;
+	/**
+	 * batches sent while a data block waits, written after it so they are
+	 * never read as data. Guarded by the write lock.
+	 */
+	private final Queue<List<PendingResponse>> _held = new LinkedList<List<PendingResponse>>();
+	/**
+	 * counters and latency histograms, kept across reconnections
+	 */
+	private final SSIPMetrics _metrics = new SSIPMetrics();
 	/**
 	 * Thread to run the communications task.
 	 */
 	private Thread _thread;
+	/**
+	 * lock guarding the transition to the disconnected state, so the channel
+	 * is closed only once when both the communications thread and a client
+	 * thread disconnect.
+	 */
+	private final Object _closeLock = new Object();
 	/**
 	 * object wich handles events received from the server
 	 */
-	private SSIPEventHandler _eventHandler = null;
+	private volatile SSIPEventHandler _eventHandler = null;
+	/**
+	 * handler of the {@link SSIPClient} owning this connection, receiving
+	 * every event before the application's handler
+	 */
+	private volatile SSIPEventHandler _clientEventHandler = null;
+	/**
+	 * object wich handles events on the communications thread, without
+	 * allocations
+	 */
+	private volatile FastSSIPEventHandler _fastEventHandler = null;
+	/**
+	 * object running the event handler out of the communications thread
+	 */
+	private volatile SSIPEventDispatcher _eventDispatcher;
+
+	/**
+	 * factory for the connections created from now on, see
+	 * {@link SSIPThreads}
+	 */
+	private static volatile ThreadFactory _defaultThreadFactory = SSIPThreads
+			.fromProperty();
+	/**
+	 * factory creating the communications and event dispatcher threads
+	 */
+	private ThreadFactory _threadFactory = _defaultThreadFactory;
 
 	/**
 	 * logger object used by this connection to log activities.
@@ -192,7 +426,27 @@ public class SSIPConnection {
 		_host = host;
 		_port = port;
 		_connected = false;
-		_socket = null;
+		_channel = null;
+		setEventDispatcher(new SSIPEventDispatcher());
+		_logger.log(Level.FINEST, "created connection");
+	}
+
+	/**
+	 * Constructs a new <code>SSIPConnection</code> wich will connect to a
+	 * socket address. Both {@link InetSocketAddress} (TCP) and
+	 * {@link java.net.UnixDomainSocketAddress} (unix domain sockets) are
+	 * supported. On creation the instance is disconnected.
+	 * 
+	 * @param address
+	 *            the SSIP server address
+	 */
+	public SSIPConnection(SocketAddress address) {
+		if (address == null)
+			throw new NullPointerException("address can't be null");
+		_address = address;
+		_connected = false;
+		_channel = null;
+		setEventDispatcher(new SSIPEventDispatcher());
 		_logger.log(Level.FINEST, "created connection");
 	}
 
@@ -204,52 +458,95 @@ public class SSIPConnection {
 	 *             when a network error is found initializing connections.
 	 */
 	public void connect() throws SSIPException {
+		SocketAddress address = _address;
+		if (address == null)
+			address = new InetSocketAddress(_host, _port);
+		else if (address instanceof InetSocketAddress
+				&& ((InetSocketAddress) address).isUnresolved()) {
+			// try again, the name may be resolvable now
+			InetSocketAddress inet = (InetSocketAddress) address;
+			address = new InetSocketAddress(inet.getHostString(), inet.getPort());
+		}
+		if (address instanceof InetSocketAddress
+				&& ((InetSocketAddress) address).isUnresolved()) {
+			_logger.log(Level.SEVERE, String.format("can't resolve %s", address));
+			throw new SSIPCommunicationException("can't connect to host");
+		}
+		SocketChannel channel = null;
 		try {
-			_socket = new Socket(_host, _port);
-			_logger.log(Level.INFO, String.format("connected to %s port %d",
-					_host, _port));
-			_socket.setTcpNoDelay(true);
-			_reader = new BufferedReader(new InputStreamReader(_socket
-					.getInputStream()));
-			_writer = new BufferedWriter(new java.io.OutputStreamWriter(_socket
-					.getOutputStream()));
-
+			channel = SocketChannel.open(address);
+			_logger.log(Level.INFO, String.format("connected to %s", address));
+			if (address instanceof InetSocketAddress)
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			_lines = new SSIPLineReader(channel, CHARSET, _metrics);
+			_writer = new SSIPWriter(channel, CHARSET, _metrics);
 		} catch (IOException e) {
 			_logger.log(Level.SEVERE, String.format(
-					"I/O error connecting to %s port %d: %s", _host, _port, e
-							.getMessage()));
-			throw new SSIPCommunicationException("can't connect to host");
+					"I/O error connecting to %s: %s", address, e.getMessage()));
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e2) {
+					// nothing more to do
+				}
+			}
+			throw new SSIPCommunicationException("can't connect to host", e);
+		}
+		Thread thread = _threadFactory.newThread(new InputThread());
+		thread.setName("SSIP communications");
+		// published together, a disconnect() from another thread sees the
+		// channel to close and the thread to join as soon as it sees the
+		// connection established
+		synchronized (_closeLock) {
+			_channel = channel;
+			_thread = thread;
+			_connected = true;
+			_eventDispatcher.start(_threadFactory);
+			thread.start();
 		}
-		_connected = true;
-		_thread = new Thread(new InputThread());
-		_thread.setDaemon(true);
-		_thread.start();
 		_logger.log(Level.INFO, "started communications thread");
 	}
 
 	/**
-	 * Disconnects from the SSIP server.
+	 * Disconnects from the SSIP server. The channel is closed right away, which
+	 * unblocks the communications thread, and all requests still waiting for a
+	 * response fail with a {@link SSIPCommunicationException}.
 	 */
 	public void disconnect() {
-		if (!_connected)
-			return;
-		_connected = false;
+		Thread thread;
+		SocketChannel channel;
+		synchronized (_closeLock) {
+			if (!_connected)
+				return;
+			_connected = false;
+			thread = _thread;
+			channel = _channel;
+			_thread = null;
+			_channel = null;
+		}
 		try {
-			_logger.log(Level.FINE, "joining communications thread");
-			_thread.join();
-			_socket.close();
+			channel.close();
 			_logger.info("disconnected from host");
-		} catch (InterruptedException e) {
-			// don't care....
-			_logger.log(Level.WARNING,
-					"interrupted exception when disconnecting", e);
 		} catch (IOException e) {
 			// we tryed but...
 			_logger.log(Level.WARNING, "I/O exception when disconnecting", e);
-		} finally {
-			_thread = null;
-			_socket = null;
 		}
+		// events already received are still handled
+		_eventDispatcher.stop();
+		// the communications thread can't join itself, it may be disconnecting
+		// from a callback run when a response arrives.
+		if (thread != Thread.currentThread()) {
+			try {
+				_logger.log(Level.FINE, "joining communications thread");
+				thread.join();
+			} catch (InterruptedException e) {
+				// don't care....
+				_logger.log(Level.WARNING,
+						"interrupted exception when disconnecting", e);
+				Thread.currentThread().interrupt();
+			}
+		}
+		failPending();
 	}
 
 	/**
@@ -257,6 +554,7 @@ public class SSIPConnection {
 	 * errors are found.
 	 * 
 	 * @see SSIPCommand
+	 * @see #sendCommandAsync(SSIPCommand)
 	 * 
 	 * @param command
 	 *            the command to send
@@ -267,47 +565,32 @@ public class SSIPConnection {
 	 *             when a communication error arrives when talking to server or
 	 *             connection is not established.
 	 */
-	public synchronized SSIPResponse sendCommand(SSIPCommand command)
+	public SSIPResponse sendCommand(SSIPCommand command)
 			throws SSIPCommandException, SSIPCommunicationException {
-		if (!_connected)
-			throw new SSIPCommunicationException("not connected to server");
-		try {
-			_logger.log(Level.FINE, "Sending command %s", command.toString());
-			_writer.write(command.toString());
-			_writer.write(CRLF);
-			_writer.flush();
-			_logger.log(Level.FINE, "command sent");
-			SSIPResponse res = null;
-			_logger.fine("receiving response");
-			while (_currentResponse == null) {
-				wait();
-				res = _currentResponse;
-				_logger.fine(String.format("Received response %s", res));
-			}
-			_currentResponse = null;
-			if (res.getCode() / 100 != 2) {// code not in 200-299
-				_logger.warning(String.format(
-						"Error code %d returned from server", res.getCode()));
-				throw new SSIPCommandException(command, res);
-			}
-			return res;
-		} catch (IOException e) {
-			_logger.log(Level.SEVERE, "I/O when sending command", e);
-			disconnect();
-			throw new SSIPCommunicationException("disconnected from server");
-		} catch (InterruptedException e) {
-			_logger.log(Level.SEVERE,
-					"Communications thread interrupted when sending command");
-			disconnect();
-			throw new SSIPCommunicationException(e);
-		}
+		return await(sendCommandAsync(command), SSIPCommandException.class);
+	}
+
+	/**
+	 * Sends a command to the SSIP server without waiting for the response.
+	 * The returned future completes with the server response, or
+	 * exceptionally with a {@link SSIPCommandException} if the server returns
+	 * an error response or a {@link SSIPCommunicationException} on
+	 * communication errors. Dependent actions run on the communications
+	 * thread unless an executor is given, so they must not block.
+	 * 
+	 * @param command
+	 *            the command to send
+	 * @return the future server response
+	 */
+	public CompletableFuture<SSIPResponse> sendCommandAsync(SSIPCommand command) {
+		return sendBatchAsync(Collections.singletonList(command), null).get(0);
 	}
 
 	/**
 	 * Sends data over this <code>SSIPConnection</code> and returns the server
 	 * response if no errors are found. Data will be escaped aconrding to SSIP
 	 * escaping rules.
-	 * g
+	 * 
 	 * @param data
 	 *            the data string to send
 	 * @return the server response
@@ -315,99 +598,350 @@ public class SSIPConnection {
 	 *             if server returns an error
 	 * @throws SSIPCommunicationException
 	 *             if a communication error arises. or is not connected.
+	 * @see #sendDataAsync(String)
 	 */
-	public synchronized SSIPResponse sendData(String data)
+	public SSIPResponse sendData(String data)
 			throws SSIPDataException, SSIPCommunicationException {
-		if (!_connected)
-			throw new SSIPCommunicationException("not connected to server");
-		String dataEscaped = escapeData(data);
+		return await(sendDataAsync(data), SSIPDataException.class);
+	}
+
+	/**
+	 * Sends data over this <code>SSIPConnection</code> without waiting for the
+	 * response. The returned future completes with the server response, or
+	 * exceptionally with a {@link SSIPDataException} if the server returns an
+	 * error or a {@link SSIPCommunicationException} on communication errors.
+	 * 
+	 * @param data
+	 *            the data string to send
+	 * @return the future server response
+	 * @see #sendCommandAsync(SSIPCommand)
+	 */
+	public CompletableFuture<SSIPResponse> sendDataAsync(String data) {
+		List<SSIPCommand> none = Collections.emptyList();
+		return sendBatchAsync(none, data).get(0);
+	}
+
+	/**
+	 * Sends several commands, optionally followed by a data block, and waits
+	 * for all the responses. See {@link #sendBatchAsync(List, String)}.
+	 * 
+	 * @param commands
+	 *            the commands to send
+	 * @param data
+	 *            the data to send after the commands, or <code>null</code>
+	 * @return the server responses, one per command followed by the data
+	 *         response
+	 * @throws SSIPCommandException
+	 *             if the server returns an error response to a command
+	 * @throws SSIPDataException
+	 *             if the server returns an error response to the data
+	 * @throws SSIPCommunicationException
+	 *             on communication errors
+	 */
+	public List<SSIPResponse> sendBatch(List<SSIPCommand> commands, String data)
+			throws SSIPException {
+		return awaitAll(sendBatchAsync(commands, data));
+	}
+
+	/**
+	 * Sends several commands, optionally followed by a data block, with one
+	 * single write and flush, without waiting for the responses. Concurrent
+	 * requests from other threads are never interleaved within the batch, so
+	 * settings can be sent together with a command putting the server in data
+	 * mode (<code>SPEAK</code>), saving round trips.
+	 * <p>
+	 * The data block is written by the communications thread once the last
+	 * command is answered, and only if all the commands were accepted, so the
+	 * data is never read as commands nor spoken with settings that failed.
+	 * When the last command is rejected nothing is written; when it was
+	 * accepted after an earlier command was rejected an empty block ends the
+	 * data mode. Either way the data future fails with the first
+	 * {@link SSIPCommandException}. Requests sent meanwhile are held and
+	 * written after the data block.
+	 * </p>
+	 * 
+	 * @param commands
+	 *            the commands to send
+	 * @param data
+	 *            the data to send after the commands, or <code>null</code>
+	 * @return the future responses, one per command followed by the data
+	 *         response
+	 */
+	public List<CompletableFuture<SSIPResponse>> sendBatchAsync(
+			List<SSIPCommand> commands, String data) {
+		return sendBatchAsync(commands, data,
+				new CompletableFuture<SSIPResponse>());
+	}
+
+	/**
+	 * Sends several commands followed by a data block, like
+	 * {@link #sendBatchAsync(List, String)}, completing the given future with
+	 * the data response. Dependent actions already attached to the future run
+	 * on the communications thread before any later response or event is
+	 * read.
+	 * 
+	 * @param commands
+	 *            the commands to send
+	 * @param data
+	 *            the data to send after the commands, or <code>null</code>
+	 * @param dataFuture
+	 *            the future for the data response, unused without data
+	 * @return the future responses, one per command followed by the data
+	 *         response
+	 */
+	List<CompletableFuture<SSIPResponse>> sendBatchAsync(
+			List<SSIPCommand> commands, String data,
+			CompletableFuture<SSIPResponse> dataFuture) {
+		List<PendingResponse> batch = new ArrayList<PendingResponse>(commands
+				.size() + 1);
+		for (SSIPCommand command : commands)
+			batch.add(new PendingResponse(command, null,
+					new CompletableFuture<SSIPResponse>()));
+		if (data != null) {
+			PendingResponse pending = new PendingResponse(null, data,
+					dataFuture);
+			for (PendingResponse command : batch)
+				command._dataAfter = pending;
+			if (!batch.isEmpty())
+				batch.get(batch.size() - 1)._gate = true;
+			batch.add(pending);
+		}
+		boolean failed = false;
+		_writeLock.lock();
 		try {
-			_writer.write(dataEscaped);
-			_writer.write(END_OF_DATA);
-			_writer.flush();
-			// get response:
-			SSIPResponse res = null;
-			while (_currentResponse == null) {
-				wait();
-				res = _currentResponse;
+			for (PendingResponse pending : batch)
+				pending._histogram = _metrics.latency(pending._command != null
+						? pending._command.getCommand() : SSIPMetrics.DATA);
+			if (!_connected) {
+				for (PendingResponse pending : batch)
+					pending._future.completeExceptionally(new SSIPCommunicationException(
+							"not connected to server"));
+			} else if (_gate != null) {
+				_held.add(batch);
+			} else {
+				write(batch);
+				_writer.flush();
 			}
-			_currentResponse = null;
-			if (res.getCode() / 100 != 2) // error:
-				throw new SSIPDataException(data, res);
-			return res;
 		} catch (IOException e) {
-			disconnect();
-			throw new SSIPCommunicationException(e);
-		} catch (InterruptedException e) {
-			disconnect();
-			throw new SSIPCommunicationException(e);
+			_logger.log(Level.SEVERE, "I/O when sending to server", e);
+			failed = true;
+		} finally {
+			_writeLock.unlock();
 		}
+		// disconnect outside the lock, the communications thread may be
+		// running callbacks that send more requests.
+		if (failed)
+			writeFailed();
+		List<CompletableFuture<SSIPResponse>> futures = new ArrayList<CompletableFuture<SSIPResponse>>(
+				batch.size());
+		for (PendingResponse pending : batch)
+			futures.add(pending._future);
+		return futures;
 	}
 
 	/**
-	 * escapes data for sending to SSIP server acording to SSIP rules
+	 * Queues requests for their responses and writes them, up to a data block
+	 * following commands, which waits for their responses. Must be called with
+	 * the write lock held, when no data block is waiting.
 	 * 
-	 * @param data
-	 *            the data
-	 * @return the escaped version of data
+	 * @param batch
+	 *            the requests
+	 * @throws IOException
+	 *             on I/O errors
 	 */
-	private String escapeData(String data) {
-		String escaped = data;
-		if (escaped.startsWith("."))
-			escaped = "." + escaped;
-		escaped = escaped.replaceAll(CRLF + ".", CRLF + "..");
-		return escaped;
+	private void write(List<PendingResponse> batch) throws IOException {
+		_pending.addAll(batch);
+		long now = System.nanoTime();
+		for (PendingResponse pending : batch) {
+			pending._sent = now;
+			if (pending._command != null) {
+				if (_logger.isLoggable(Level.FINE))
+					_logger.fine(String.format("Sending command %s",
+							pending._command));
+				_writer.writeCommand(pending._command);
+				_metrics.commandSent();
+				if (pending._gate) {
+					_gate = pending;
+					return;
+				}
+			} else {
+				// data is escaped while it is written
+				_writer.writeData(pending._data);
+				_metrics.dataSent();
+			}
+		}
 	}
 
 	/**
-	 * Dispatches a response for event handling or for client direct processing
-	 * acconrding to response code. this method is called be the communications
-	 * thread, notifying the main one when event is meant to direct processing.
+	 * Writes or drops the data block waiting for a command's response, then
+	 * the requests held meanwhile. Called by the communications thread once
+	 * the command's future is completed.
 	 * 
+	 * @param command
+	 *            the command right before the data block
 	 * @param response
-	 *            the response do dispatch
-	 * @throws InterruptedException
-	 *             if communications thread is interrupted
+	 *            its response
 	 */
-	private void dispatch(SSIPResponse response) throws InterruptedException {
-		if (response.getCode() / 100 == 7) {// we've got an SSIP event
-			if (_eventHandler != null) {
-				try {
-					_eventHandler.handleSSIPEvent(SSIPEventParser.getInstance()
-							.parse(response));
-				} catch (Exception e) {
-					_logger.severe(String.format(
-							"Exception in user callback: %s\n%s", e
-									.getLocalizedMessage(), e.getStackTrace()));
-				}
+	private void releaseData(PendingResponse command, SSIPResponse response) {
+		PendingResponse data = command._dataAfter;
+		boolean failed = false;
+		_writeLock.lock();
+		try {
+			if (_gate != command)
+				return;
+			_gate = null;
+			if (data._error == null) {
+				data._sent = System.nanoTime();
+				_writer.writeData(data._data);
+				_metrics.dataSent();
+			} else if (response.getCode() / 100 == 2) {
+				// the server is in data mode although an earlier command was
+				// rejected, an empty block ends it and its response is
+				// discarded
+				data._discard = 1;
+				data._future.completeExceptionally(data._error);
+				_writer.writeData("");
+			} else {
+				// never in data mode, nothing was written after the command
+				_pending.remove(data);
+				data._future.completeExceptionally(data._error);
 			}
-		} else {
-			// normal response
-			synchronized (this) {
-				_currentResponse = response;
-				notify();
+			List<PendingResponse> batch;
+			while (_gate == null && (batch = _held.poll()) != null)
+				write(batch);
+			_writer.flush();
+		} catch (IOException e) {
+			_logger.log(Level.SEVERE, "I/O when sending to server", e);
+			failed = true;
+		} finally {
+			_writeLock.unlock();
+		}
+		if (failed)
+			writeFailed();
+	}
+
+	/**
+	 * Handles a write error, disconnecting and failing all pending requests,
+	 * including the one that could not be written.
+	 */
+	private void writeFailed() {
+		disconnect();
+		// disconnect() may have run already, before our request was queued
+		failPending();
+	}
+
+	/**
+	 * Fails all requests waiting for a response, used when disconnected.
+	 */
+	private void failPending() {
+		List<PendingResponse> held = new ArrayList<PendingResponse>();
+		_writeLock.lock();
+		try {
+			_gate = null;
+			List<PendingResponse> batch;
+			while ((batch = _held.poll()) != null)
+				held.addAll(batch);
+		} finally {
+			_writeLock.unlock();
+		}
+		PendingResponse pending;
+		while ((pending = _pending.poll()) != null)
+			pending._future.completeExceptionally(new SSIPCommunicationException(
+					"disconnected from server"));
+		for (PendingResponse h : held)
+			h._future.completeExceptionally(new SSIPCommunicationException(
+					"disconnected from server"));
+	}
+
+	/**
+	 * Waits for several future responses. All responses are awaited, and the
+	 * first error in sending order is reported.
+	 * 
+	 * @param futures
+	 *            the future responses
+	 * @return the responses
+	 * @throws SSIPException
+	 *             the first error found
+	 */
+	static List<SSIPResponse> awaitAll(
+			List<CompletableFuture<SSIPResponse>> futures) throws SSIPException {
+		List<SSIPResponse> responses = new ArrayList<SSIPResponse>(futures
+				.size());
+		SSIPException error = null;
+		for (CompletableFuture<SSIPResponse> f : futures) {
+			try {
+				responses.add(await(f, SSIPException.class));
+			} catch (SSIPException e) {
+				if (error == null)
+					error = e;
 			}
 		}
+		if (error != null)
+			throw error;
+		return responses;
 	}
 
 	/**
-	 * Reads a line from the socket according to SSIP end of line conventions.
+	 * Waits for a future response, unwrapping the exception it completed with.
 	 * 
-	 * @return the line read without the ending cr/lf pair.
-	 * @throws IOException
-	 *             if an io error ocurs.
-	 */
-	private String readLine() throws IOException {
-		// thanks Sérgio Neves for this one
-		StringBuilder sb = new StringBuilder();
-		char c1 = (char) _reader.read(), c2 = (char) _reader.read();
-		while (c1 != '\r' || c2 != '\n') {
-			sb.append(c1);
-			c1 = c2;
-			c2 = (char) _reader.read();
+	 * @param future
+	 *            the future response
+	 * @param errorType
+	 *            the exception type used for server error responses
+	 * @return the response
+	 * @throws E
+	 *             if the server returned an error response
+	 * @throws SSIPCommunicationException
+	 *             on communication errors or if the waiting thread is
+	 *             interrupted
+	 */
+	static <E extends SSIPException> SSIPResponse await(
+			CompletableFuture<SSIPResponse> future, Class<E> errorType)
+			throws E, SSIPCommunicationException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (errorType.isInstance(cause))
+				throw errorType.cast(cause);
+			if (cause instanceof SSIPCommunicationException)
+				throw (SSIPCommunicationException) cause;
+			throw new SSIPCommunicationException(cause);
+		} catch (InterruptedException e) {
+			// the response will still be consumed by the communications
+			// thread, so the connection stays usable.
+			Thread.currentThread().interrupt();
+			throw new SSIPCommunicationException(e);
 		}
-		_logger.finest(String.format("Read line %s", sb.toString()));
-		return sb.toString();
+	}
+
+	/**
+	 * Dispatches a response for client direct processing. this method is
+	 * called be the communications thread, completing the oldest pending
+	 * request. Events never get here, they are read apart.
+	 * 
+	 * @param response
+	 *            the response do dispatch
+	 */
+	private void dispatch(SSIPResponse response) {
+		// SSIP servers answer in order:
+		PendingResponse pending = _pending.peek();
+		if (pending != null && pending._discard > 0) {
+			// the empty block ending a data mode, see releaseData
+			if (--pending._discard == 0)
+				_pending.poll();
+		} else if (pending != null) {
+			_pending.poll();
+			pending._histogram.record(System.nanoTime() - pending._sent);
+			if (response.getCode() / 100 != 2)
+				_metrics.error(response.getCode());
+			pending.complete(response);
+			if (pending._gate)
+				releaseData(pending, response);
+		} else
+			_logger.warning(String.format(
+					"Unexpected response %d %s from server", response
+							.getCode(), response.getMsg()));
 	}
 
 	/**
@@ -432,7 +966,9 @@ public class SSIPConnection {
 
 	/**
 	 * Sets the <code>SSIPEventHandler</code> to handle events comming from the
-	 * server associated with this connection.
+	 * server associated with this connection. A {@link SSIPClient} follows its
+	 * messages with a handler of its own, which setting this one doesn't
+	 * replace.
 	 * 
 	 * @param eventHandler
 	 *            the eventHandler to set
@@ -440,4 +976,142 @@ public class SSIPConnection {
 	public void setEventHandler(SSIPEventHandler eventHandler) {
 		_eventHandler = eventHandler;
 	}
+
+	/**
+	 * Gets the handler of the {@link SSIPClient} owning this connection.
+	 * 
+	 * @return the handler, <code>null</code> if none
+	 */
+	SSIPEventHandler getClientEventHandler() {
+		return _clientEventHandler;
+	}
+
+	/**
+	 * Sets the handler of the {@link SSIPClient} owning this connection, run
+	 * before the handler set with {@link #setEventHandler(SSIPEventHandler)}.
+	 * 
+	 * @param eventHandler
+	 *            the handler
+	 */
+	void setClientEventHandler(SSIPEventHandler eventHandler) {
+		_clientEventHandler = eventHandler;
+	}
+
+	/**
+	 * Gets the factory creating this connection's threads.
+	 * 
+	 * @return the thread factory
+	 */
+	public ThreadFactory getThreadFactory() {
+		return _threadFactory;
+	}
+
+	/**
+	 * Sets the factory creating this connection's communications and event
+	 * dispatcher threads, taking effect on the next connection. See
+	 * {@link SSIPThreads} for platform and virtual thread factories. Threads
+	 * should be daemon threads, so open connections don't keep the virtual
+	 * machine running.
+	 * 
+	 * @param threadFactory
+	 *            the thread factory
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		if (threadFactory == null)
+			throw new NullPointerException("thread factory can't be null");
+		_threadFactory = threadFactory;
+	}
+
+	/**
+	 * Gets the counters and latency histograms of this connection. They keep
+	 * counting across reconnections.
+	 * 
+	 * @return the metrics
+	 */
+	public SSIPMetrics getMetrics() {
+		return _metrics;
+	}
+
+	/**
+	 * Gets the thread factory given to new connections.
+	 * 
+	 * @return the default thread factory
+	 */
+	public static ThreadFactory getDefaultThreadFactory() {
+		return _defaultThreadFactory;
+	}
+
+	/**
+	 * Sets the thread factory given to connections created from now on,
+	 * including the ones created by {@link SSIPClient} constructors. The
+	 * initial default is selected by the <code>speechd.threads</code> system
+	 * property, see {@link SSIPThreads}.
+	 * 
+	 * @param threadFactory
+	 *            the thread factory
+	 */
+	public static void setDefaultThreadFactory(ThreadFactory threadFactory) {
+		if (threadFactory == null)
+			throw new NullPointerException("thread factory can't be null");
+		_defaultThreadFactory = threadFactory;
+	}
+
+	/**
+	 * Gets the <code>FastSSIPEventHandler</code> receiving events from this
+	 * connection, if one exists.
+	 * 
+	 * @return the fast event handler if defined, <code>null</code> if not.
+	 */
+	public FastSSIPEventHandler getFastEventHandler() {
+		return _fastEventHandler;
+	}
+
+	/**
+	 * Sets the <code>FastSSIPEventHandler</code> to handle events comming
+	 * from the server, on the communications thread and without allocating
+	 * an event object per event. It can be used together with the
+	 * <code>SSIPEventHandler</code>.
+	 * 
+	 * @param fastEventHandler
+	 *            the fast event handler to set, <code>null</code> for none
+	 * @see FastSSIPEventHandler
+	 */
+	public void setFastEventHandler(FastSSIPEventHandler fastEventHandler) {
+		_fastEventHandler = fastEventHandler;
+	}
+
+	/**
+	 * Gets the <code>SSIPEventDispatcher</code> running the event handler.
+	 * 
+	 * @return the event dispatcher
+	 */
+	public SSIPEventDispatcher getEventDispatcher() {
+		return _eventDispatcher;
+	}
+
+	/**
+	 * Sets the <code>SSIPEventDispatcher</code> running the event handler,
+	 * to change the buffer capacity or overflow policy. By default events are
+	 * buffered up to {@link SSIPEventDispatcher#DEFAULT_CAPACITY}, blocking
+	 * when full. Events buffered in the previous dispatcher are still handled,
+	 * but may be handled concurrently with the first events of the new one.
+	 * 
+	 * @param eventDispatcher
+	 *            the event dispatcher
+	 * @throws IllegalStateException
+	 *             if the dispatcher is used by another connection
+	 */
+	public void setEventDispatcher(SSIPEventDispatcher eventDispatcher) {
+		if (eventDispatcher == null)
+			throw new NullPointerException("event dispatcher can't be null");
+		eventDispatcher.attach(this);
+		synchronized (_closeLock) {
+			SSIPEventDispatcher old = _eventDispatcher;
+			_eventDispatcher = eventDispatcher;
+			if (old != null && old != eventDispatcher)
+				old.stop();
+			if (_connected)
+				eventDispatcher.start(_threadFactory);
+		}
+	}
 }
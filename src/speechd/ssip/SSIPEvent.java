@@ -23,7 +23,7 @@ package speechd.ssip;
 /**
  * Instances of this class represent SSIP events like defined on section 4.7 of SSIP specifications.
  * SSIP events have a type (see {@link SSIPEvent.EventType}), an associated message id (message to wich belongs the event), client id (id of the associated connection) and an optional index mark string, valid only for <code>INDEXMARK</code> event type.
- * SSIPEvents are usually constructed by an instance of <@link SSIPEventParser}.
+ * SSIPEvents are usually constructed by a {@link SSIPConnection}, typed by {@link SSIPEventParser}.
  * {@link SSIPEventHandler} receive instances of SSIPEvent when notified of speech events.
  * 
  * @author ragb
@@ -0,0 +1,308 @@
+/*
+ * SSIPEventDispatcher.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.ssip;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers the events received by a {@link SSIPConnection} to its {@link SSIPEventHandler}, and to the one of its {@link SSIPClient} first, on a thread of its own.
+ * <p>The communications thread only puts events in a bounded ring buffer, so a slow handler doesn't hold back the responses to pending commands, and handlers can send commands and wait for their responses.
+ * A single dispatcher thread takes the events out in the order they arrived, so the events of a message (begin, index marks, end) are always handled in order.
+ * The thread is started when the connection connects, and ends once the events still buffered at disconnection are delivered.</p>
+ * <p>When the buffer is full the {@link OverflowPolicy} decides what happens, events dropped are counted, see {@link #getDroppedCount()}.</p>
+ *
+ * @author ragb
+ *
+ * @see SSIPConnection#setEventDispatcher(SSIPEventDispatcher)
+ * @see SSIPEventHandler
+ */
+public final class SSIPEventDispatcher {
+	/**
+	 * What to do with a new event when the buffer is full.
+	 *
+	 * @author ragb
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Make the communications thread wait for room in the buffer, no event is lost.
+		 * Responses to commands wait too, so a handler waiting for a response while the buffer is full blocks the connection.
+		 */
+		BLOCK,
+		/**
+		 * Drop the oldest buffered event to make room for the new one.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Drop the new event.
+		 */
+		DROP_NEWEST
+	}
+
+	/**
+	 * Default buffer capacity.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private final OverflowPolicy _policy;
+	/**
+	 * Ring buffer of events, {@code _count} of them starting at {@code _head}.
+	 */
+	private final SSIPEvent[] _buffer;
+	private int _head;
+	private int _count;
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _notEmpty = _lock.newCondition();
+	private final Condition _notFull = _lock.newCondition();
+	/**
+	 * The dispatcher thread, {@code null} when not running.
+	 */
+	private Thread _thread;
+	private boolean _stopped = true;
+	private final AtomicLong _dropped = new AtomicLong();
+
+	/**
+	 * The connection whose handler receives the events.
+	 */
+	private SSIPConnection _connection;
+
+	private Logger _logger = Logger.getLogger("speechd.ssip.SSIPEventDispatcher");
+
+	/**
+	 * Constructs a new dispatcher with the default capacity, blocking when full.
+	 */
+	public SSIPEventDispatcher () {
+		this(DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+	}
+
+	/**
+	 * Constructs a new dispatcher.
+	 * @param capacity the maximum number of events waiting to be handled
+	 * @param policy what to do when the buffer is full
+	 * @throws IllegalArgumentException if {@code capacity} is not positive
+	 */
+	public SSIPEventDispatcher (int capacity, OverflowPolicy policy) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive");
+		if (policy == null)
+			throw new NullPointerException("policy can't be null");
+		_buffer = new SSIPEvent[capacity];
+		_policy = policy;
+	}
+
+	/**
+	 * Gets the buffer capacity.
+	 * @return the maximum number of events waiting to be handled
+	 */
+	public int getCapacity () {
+		return _buffer.length;
+	}
+
+	/**
+	 * Gets the overflow policy.
+	 * @return the policy
+	 */
+	public OverflowPolicy getPolicy () {
+		return _policy;
+	}
+
+	/**
+	 * Gets the number of events dropped because the buffer was full.
+	 * @return the drop count
+	 */
+	public long getDroppedCount () {
+		return _dropped.get();
+	}
+
+	/**
+	 * Gets the number of events waiting to be handled.
+	 * @return the number of buffered events
+	 */
+	public int getPendingCount () {
+		_lock.lock();
+		try {
+			return _count;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Attaches this dispatcher to a connection, a dispatcher serves just one connection.
+	 * @param connection the connection
+	 * @throws IllegalStateException if already attached to another connection
+	 */
+	synchronized void attach (SSIPConnection connection) {
+		if (_connection != null && _connection != connection)
+			throw new IllegalStateException("dispatcher already used by another connection");
+		_connection = connection;
+	}
+
+	/**
+	 * Starts the dispatcher thread, if it isn't running already.
+	 * @param threadFactory the factory creating the thread
+	 */
+	void start (ThreadFactory threadFactory) {
+		_lock.lock();
+		try {
+			_stopped = false;
+			if (_thread == null) {
+				_thread = threadFactory.newThread(new Runnable() {
+					public void run () {
+						dispatchLoop();
+					}
+				});
+				_thread.setName("SSIP event dispatcher");
+				_thread.start();
+			}
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops the dispatcher thread once the buffered events are handled. Doesn't wait for it, the caller may be a handler.
+	 */
+	void stop () {
+		_lock.lock();
+		try {
+			_stopped = true;
+			_notEmpty.signal();
+			// a blocked communications thread must not wait forever:
+			_notFull.signalAll();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Checks if the caller is the dispatcher thread, running a handler.
+	 * @return {@code true} if called from the dispatcher thread
+	 */
+	boolean isDispatcherThread () {
+		_lock.lock();
+		try {
+			return _thread == Thread.currentThread();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Buffers an event to be handled, applying the overflow policy when full. Called by the communications thread.
+	 * @param event the event
+	 * @throws InterruptedException if interrupted while waiting for room
+	 */
+	void put (SSIPEvent event) throws InterruptedException {
+		_lock.lock();
+		try {
+			if (_count == _buffer.length) {
+				switch (_policy) {
+				case BLOCK:
+					while (_count == _buffer.length && !_stopped)
+						_notFull.await();
+					if (_stopped) {
+						_dropped.incrementAndGet();
+						return;
+					}
+					break;
+				case DROP_OLDEST:
+					_buffer[_head] = null;
+					_head = (_head + 1) % _buffer.length;
+					_count--;
+					_dropped.incrementAndGet();
+					break;
+				case DROP_NEWEST:
+					_dropped.incrementAndGet();
+					return;
+				}
+			}
+			_buffer[(_head + _count) % _buffer.length] = event;
+			_count++;
+			_notEmpty.signal();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the next event, waiting for one.
+	 * @return the event, {@code null} when stopped and no event is left
+	 */
+	private SSIPEvent take () throws InterruptedException {
+		_lock.lock();
+		try {
+			while (_count == 0) {
+				if (_stopped) {
+					// decided under the lock, so start() knows whether a new thread is needed
+					_thread = null;
+					return null;
+				}
+				_notEmpty.await();
+			}
+			SSIPEvent event = _buffer[_head];
+			_buffer[_head] = null;
+			_head = (_head + 1) % _buffer.length;
+			_count--;
+			_notFull.signal();
+			return event;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	private void deliver (SSIPEventHandler handler, SSIPEvent event) {
+		if (handler == null)
+			return;
+		try {
+			handler.handleSSIPEvent(event);
+		} catch (Throwable t) {
+			// an Error too, the thread must go on or events are never delivered again
+			_logger.log(Level.SEVERE, "Exception in user callback", t);
+		}
+	}
+
+	private void dispatchLoop () {
+		try {
+			SSIPEvent event;
+			while ((event = take()) != null) {
+				// the client follows its messages before the application sees the event
+				deliver(_connection.getClientEventHandler(), event);
+				deliver(_connection.getEventHandler(), event);
+			}
+		} catch (InterruptedException e) {
+			_logger.log(Level.WARNING, "event dispatcher thread interrupted");
+		} finally {
+			// take() already cleared it on a normal end, otherwise start() must spawn a new thread
+			_lock.lock();
+			try {
+				if (_thread == Thread.currentThread())
+					_thread = null;
+			} finally {
+				_lock.unlock();
+			}
+		}
+	}
+}
@@ -25,7 +25,7 @@ package speechd.ssip;
  *   <p>SSIPEventHandlers must be registed with a {@link SSIPClient} or <@link SSIPConnection} to receive events, and the event notification must be turned on.
  * <p>Clients of this API could implement this interface to suit their needs but must take in acount some issues with multi threading and integration:
  * <ul>
- * <li>Due to the way communications are handled, event notifications are processed on the communications thread. It implies that event handling must be done quickly and no further SSIP communication are allowed.
+ * <li>Event notifications are processed on the connection's event dispatcher thread, one at a time and in the order they were received. Handlers may send SSIP commands, but slow handlers make events pile up in the dispatcher's buffer, see {@link SSIPEventDispatcher} for what happens when it fills up.
  * <li>We could have provided a more complex event handling mechanism, but it would possibly prevent good implementations in some contexts. This way clients are responsible for integrating SSIP event handling with there loops (swing, swt) or any other possible use.
  *</ul>
  * 
@@ -34,6 +34,8 @@ package speechd.ssip;
  * 
  * @see SSIPClient#setEventHandler(SSIPEventHandler)	
  * @see SSIPConnection#setEventHandler(SSIPEventHandler)
+ * @see SSIPEventDispatcher
+ * @see FastSSIPEventHandler
  * @see SSIPEvent
  */
 public interface SSIPEventHandler {
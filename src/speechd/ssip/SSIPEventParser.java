@@ -20,10 +20,10 @@
  */
 package speechd.ssip;
 
-import java.util.Map;
-
 /**
- * This utility class is a kind of factory for events, it creates {@link SSIPEvent} instances from {@link SSIPResponse}. This is a singletone, see {@link SSIPEventParser#getInstance()} to get the single instance.
+ * This utility class gives the {@link SSIPEvent} types of SSIP event codes. This is a singletone, see {@link SSIPEventParser#getInstance()} to get the single instance.
+ * <p>Event types are found in a table indexed by event code, no boxing or hashing is involved.
+ * The communications thread doesn't build responses for events at all, it parses ids straight from the line bytes and builds the events itself.</p>
  * 
  * @author ragb
  * 
@@ -32,23 +32,26 @@ import java.util.Map;
 public final class SSIPEventParser {
   
 	/**
-	 * The single instance
+	 * The single instance, created eagerly so it is safely published to every thread
+	 */
+	private static final SSIPEventParser _instance = new SSIPEventParser();
+
+	/**
+	 * First SSIP event code.
 	 */
-	private static SSIPEventParser _instance = null;
-	
+	static final int FIRST_EVENT_CODE = 700;
+
   /**
- * Map with event codes to event types:
+ * Event types by event code, starting at {@link #FIRST_EVENT_CODE}:
  */
-private static Map<Integer, SSIPEvent.EventType> _eventCodes = new java.util.HashMap<Integer, SSIPEvent.EventType>();
-  // map event codes to event types:
-  static {
-    _eventCodes.put(700, SSIPEvent.EventType.INDEX_MARK);
-    _eventCodes.put(701, SSIPEvent.EventType.BEGIN);
-    _eventCodes.put(702, SSIPEvent.EventType.END);
-    _eventCodes.put(703, SSIPEvent.EventType.CANCEL);
-    _eventCodes.put(704, SSIPEvent.EventType.PAUSE);
-    _eventCodes.put(705, SSIPEvent.EventType.RESUME);
-  }
+private static final SSIPEvent.EventType[] _eventCodes = {
+    SSIPEvent.EventType.INDEX_MARK, // 700
+    SSIPEvent.EventType.BEGIN, // 701
+    SSIPEvent.EventType.END, // 702
+    SSIPEvent.EventType.CANCEL, // 703
+    SSIPEvent.EventType.PAUSE, // 704
+    SSIPEvent.EventType.RESUME // 705
+  };
 
   /**
  * constructs a new SSIPEventParser
@@ -61,27 +64,16 @@ private SSIPEventParser () {
  * @return the single instance
  */
 static SSIPEventParser getInstance () {
-    if (_instance == null)
-      _instance = new SSIPEventParser();
     return _instance;
   }
 
   /**
-   * Parses a {@code SSIPEvent} from a <@code SSIPResponse}
- * @param response the response
- * @return the <@code SSIPEvent} parsed from the {@code response}
+   * Gets the event type of an event code.
+ * @param code the response code
+ * @return the event type, {@code null} if the code is not a known event code
  */
-SSIPEvent parse (SSIPResponse response) {
-    assert (response.getData().size() == 2 || response.getData().size() == 3);
-    SSIPEvent.EventType type = _eventCodes.get(response.getCode());
-    assert (type != null);
-    int msgId = Integer.parseInt(response.getData().get(0));
-    int clientId = Integer.parseInt(response.getData().get(1));
-    // when we have an index mark event we must construct it with one more
-    // parameter
-    if (type == SSIPEvent.EventType.INDEX_MARK)
-      return new SSIPEvent(type, msgId, clientId, response.getData().get(2));
-    // no index mark:
-    return new SSIPEvent(type, msgId, clientId);
+SSIPEvent.EventType getType (int code) {
+    int i = code - FIRST_EVENT_CODE;
+    return (i >= 0 && i < _eventCodes.length) ? _eventCodes[i] : null;
   }
 }
@@ -0,0 +1,112 @@
+/*
+ * SSIPEventView.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.ssip;
+
+import java.nio.CharBuffer;
+
+/**
+ * A reusable view of an SSIP event, given to {@link FastSSIPEventHandler}s.
+ * <p>One view per connection is filled in again for every event, so nothing is allocated per event.
+ * The values are only valid while the handler runs, the index mark name in particular is a {@code CharSequence} over a buffer that the next index mark overwrites.
+ * Use {@link #toEvent()} to keep an event.</p>
+ *
+ * @author ragb
+ *
+ * @see FastSSIPEventHandler
+ * @see SSIPEvent
+ */
+public final class SSIPEventView {
+	private SSIPEvent.EventType _type;
+	private int _msgId;
+	private int _clientId;
+	/**
+	 * Characters of the index mark name, between position and limit.
+	 */
+	private CharBuffer _mark = CharBuffer.allocate(64);
+	private boolean _hasMark;
+
+	SSIPEventView () {
+	}
+
+	/**
+	 * @return the type
+	 */
+	public SSIPEvent.EventType getType () {
+		return _type;
+	}
+
+	/**
+	 * @return the msgId
+	 */
+	public int getMsgId () {
+		return _msgId;
+	}
+
+	/**
+	 * @return the clientId
+	 */
+	public int getClientId () {
+		return _clientId;
+	}
+
+	/**
+	 * Gets the index mark name, for {@code INDEX_MARK} events.
+	 * @return the index mark name, valid only during the handler call, {@code null} for other event types
+	 */
+	public CharSequence getIndexMark () {
+		return _hasMark ? _mark : null;
+	}
+
+	/**
+	 * Copies this view into a new event, that can be kept.
+	 * @return the event
+	 */
+	public SSIPEvent toEvent () {
+		if (_hasMark)
+			return new SSIPEvent(_type, _msgId, _clientId, _mark.toString());
+		return new SSIPEvent(_type, _msgId, _clientId);
+	}
+
+	/**
+	 * Gets the buffer to decode the next index mark name into.
+	 */
+	CharBuffer getMarkBuffer () {
+		return _mark;
+	}
+
+	/**
+	 * Replaces the index mark buffer, when a longer name needed a bigger one.
+	 */
+	void setMarkBuffer (CharBuffer mark) {
+		_mark = mark;
+	}
+
+	/**
+	 * Fills in the view for the next event.
+	 * @param hasMark {@code true} if the mark buffer holds this event's index mark name
+	 */
+	void set (SSIPEvent.EventType type, int msgId, int clientId, boolean hasMark) {
+		_type = type;
+		_msgId = msgId;
+		_clientId = clientId;
+		_hasMark = hasMark;
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * SSIPHistogram.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.ssip;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram with log-linear buckets, in the style of HdrHistogram.
+ * <p>Values are nanoseconds. Each power of two range is split in 64 linear sub-buckets, so any recorded value is known within 1/64 (about 1.6%) of its real value, from 1 nanosecond up to about 36 minutes; longer values are counted in the last bucket.
+ * Recording is lock free and allocation free, a bucket counter increment, so it can stay on in production.</p>
+ * <p>Percentiles report the highest value of the bucket they fall in, never less than the real value.
+ * {@link #copy()} takes a snapshot; values recorded while it is taken may or may not be included.</p>
+ * <p>Applications can also keep histograms of their own, for example of the time from a message being sent to its {@code BEGIN} event.</p>
+ *
+ * @author ragb
+ *
+ * @see SSIPMetrics
+ */
+public final class SSIPHistogram {
+	/**
+	 * log2 of the number of sub-buckets of each power of two range, doubled for the first range.
+	 */
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF = SUB_BUCKETS / 2;
+	/**
+	 * Highest bit of the largest value tracked exactly.
+	 */
+	private static final int MAX_BIT = 40;
+	private static final long MAX_VALUE = (1L << (MAX_BIT + 1)) - 1;
+	private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+	private final AtomicLongArray _counts;
+	private final LongAdder _total = new LongAdder();
+	private final LongAdder _sum = new LongAdder();
+
+	/**
+	 * Constructs a new empty histogram.
+	 */
+	public SSIPHistogram () {
+		_counts = new AtomicLongArray(BUCKETS);
+	}
+
+	/**
+	 * Records a value.
+	 * @param nanos the value, in nanoseconds, negative values count as 0
+	 */
+	public void record (long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		_counts.incrementAndGet(index(Math.min(nanos, MAX_VALUE)));
+		_total.increment();
+		_sum.add(nanos);
+	}
+
+	/**
+	 * Forgets all values.
+	 */
+	void reset () {
+		for (int i = 0; i < BUCKETS; i++)
+			_counts.set(i, 0);
+		_total.reset();
+		_sum.reset();
+	}
+
+	/**
+	 * Copies this histogram, the copy doesn't change with new values.
+	 * @return the copy
+	 */
+	public SSIPHistogram copy () {
+		SSIPHistogram copy = new SSIPHistogram();
+		for (int i = 0; i < BUCKETS; i++) {
+			long n = _counts.get(i);
+			if (n != 0) {
+				copy._counts.set(i, n);
+				copy._total.add(n);
+			}
+		}
+		copy._sum.add(_sum.sum());
+		return copy;
+	}
+
+	/**
+	 * Gets the number of values recorded.
+	 * @return the count
+	 */
+	public long getCount () {
+		return _total.sum();
+	}
+
+	/**
+	 * Gets the mean of the values recorded.
+	 * @param unit the unit of the result
+	 * @return the mean, 0 if there are no values
+	 */
+	public double getMean (TimeUnit unit) {
+		long count = _total.sum();
+		if (count == 0)
+			return 0;
+		return (double) _sum.sum() / count / unit.toNanos(1);
+	}
+
+	/**
+	 * Gets the value below which a percentage of the values fall.
+	 * @param percentile the percentage, between 0 and 100
+	 * @param unit the unit of the result
+	 * @return the value, 0 if there are no values
+	 */
+	public long getValueAtPercentile (double percentile, TimeUnit unit) {
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			count += counts[i] = _counts.get(i);
+		if (count == 0)
+			return 0;
+		// multiplied first: 99.9 / 100 * 1000 rounds up to the 1000th value
+		long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) * count / 100.0));
+		long seen = 0;
+		int i = 0;
+		for (; i < BUCKETS - 1; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				break;
+		}
+		return unit.convert(highestValue(i), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Gets the largest value recorded, within the histogram's precision.
+	 * @param unit the unit of the result
+	 * @return the maximum, 0 if there are no values
+	 */
+	public long getMax (TimeUnit unit) {
+		for (int i = BUCKETS - 1; i >= 0; i--) {
+			if (_counts.get(i) != 0)
+				return unit.convert(highestValue(i), TimeUnit.NANOSECONDS);
+		}
+		return 0;
+	}
+
+	/**
+	 * Index of the bucket holding a value: values below {@link #SUB_BUCKETS} have a bucket each, larger ones are shifted down to their top {@link #SUB_BUCKET_BITS} bits.
+	 */
+	private static int index (long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+		return SUB_BUCKETS + (shift - 1) * HALF + (int) ((value >>> shift) - HALF);
+	}
+
+	/**
+	 * Highest value falling in a bucket.
+	 */
+	private static long highestValue (int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = (index - SUB_BUCKETS) / HALF + 1;
+		long sub = (index - SUB_BUCKETS) % HALF + HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+}
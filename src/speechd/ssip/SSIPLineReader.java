@@ -0,0 +1,255 @@
+/*
+ * SSIPLineReader.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.ssip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reads SSIP response lines from a channel, working on bytes.
+ * <p>Every SSIP response line is made of a three digit code, a separator ({@code '-'} when more lines follow, a space on the last line of a response) and a payload, ended by a cr/lf pair.
+ * Lines are found by scanning a reusable direct buffer in bulk, the code and separator are parsed straight from the bytes, and the payload stays in the buffer until a {@code String} is asked for with {@link #getPayload()}.
+ * Payloads are decoded with a reusable decoder into a reusable character buffer, ASCII payloads are just copied.
+ * A line is valid until the next call to {@link #readLine()}.</p>
+ * <p>Instances are not thread safe, they are meant to be used by a connection's communications thread.</p>
+ *
+ * @author ragb
+ *
+ * @see SSIPConnection
+ */
+final class SSIPLineReader {
+	/**
+	 * Initial buffer size, lines longer than this make the buffer grow.
+	 */
+	private static final int INITIAL_CAPACITY = 8192;
+
+	private final ReadableByteChannel _channel;
+	private final CharsetDecoder _decoder;
+	/**
+	 * Bytes read from the channel, between position and limit.
+	 */
+	private ByteBuffer _buffer;
+	/**
+	 * Decoded payload characters.
+	 */
+	private CharBuffer _chars;
+	/**
+	 * Index where the search for the end of the current line continues, so
+	 * bytes aren't scanned twice while waiting for more input.
+	 */
+	private int _scan;
+	/**
+	 * The current line's code.
+	 */
+	private int _code;
+	/**
+	 * {@code true} if the current line is the last of a response.
+	 */
+	private boolean _last;
+	/**
+	 * Start (inclusive) and end (exclusive) of the current line's payload in
+	 * the buffer.
+	 */
+	private int _payloadStart, _payloadEnd;
+	/**
+	 * Metrics counting the bytes read.
+	 */
+	private final SSIPMetrics _metrics;
+
+	/**
+	 * Constructs a new line reader.
+	 * @param channel the channel to read from
+	 * @param charset the charset used to decode payloads
+	 * @param metrics the metrics counting the bytes read
+	 */
+	SSIPLineReader (ReadableByteChannel channel, Charset charset, SSIPMetrics metrics) {
+		_channel = channel;
+		_metrics = metrics;
+		_decoder = charset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		_buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+		_buffer.flip();
+		_chars = CharBuffer.allocate(INITIAL_CAPACITY);
+		_scan = 0;
+	}
+
+	/**
+	 * Reads the next line, blocking until it is fully received.
+	 * @return {@code true} if a line was read, {@code false} at end of stream
+	 * @throws IOException on I/O errors, or if the line is not a valid SSIP response line
+	 */
+	boolean readLine () throws IOException {
+		int end;
+		while ((end = findLineEnd()) < 0) {
+			if (!fill())
+				return false;
+		}
+		ByteBuffer b = _buffer;
+		int start = b.position();
+		if (end - start < 4 || !isDigit(b.get(start)) || !isDigit(b.get(start + 1))
+				|| !isDigit(b.get(start + 2))
+				|| (b.get(start + 3) != '-' && b.get(start + 3) != ' ')) {
+			_payloadStart = start;
+			_payloadEnd = end;
+			throw new IOException("invalid response line: " + getPayload());
+		}
+		_code = (b.get(start) - '0') * 100 + (b.get(start + 1) - '0') * 10 + (b.get(start + 2) - '0');
+		_last = b.get(start + 3) == ' ';
+		_payloadStart = start + 4;
+		_payloadEnd = end;
+		// skip the line and its cr/lf pair:
+		_buffer.position(end + 2);
+		_scan = end + 2;
+		return true;
+	}
+
+	/**
+	 * Gets the code of the current line.
+	 * @return the code
+	 */
+	int getCode () {
+		return _code;
+	}
+
+	/**
+	 * Checks if the current line is the last line of a response.
+	 * @return {@code true} for the last line, {@code false} if more lines follow
+	 */
+	boolean isLast () {
+		return _last;
+	}
+
+	/**
+	 * Decodes the payload of the current line.
+	 * @return the payload, without code, separator and line end
+	 */
+	String getPayload () {
+		_chars = decodePayload(_chars);
+		return _chars.toString();
+	}
+
+	/**
+	 * Decodes the payload of the current line into a reusable character buffer, without creating a {@code String}.
+	 * ASCII payloads, like most index mark names, are copied byte by byte, others go through the decoder.
+	 * @param chars the buffer to decode into
+	 * @return the buffer holding the payload between position and limit, {@code chars} or a bigger one when it was too small
+	 */
+	CharBuffer decodePayload (CharBuffer chars) {
+		int length = _payloadEnd - _payloadStart;
+		// a byte never decodes to more than one character with SSIP's UTF-8
+		if (chars.capacity() < length)
+			chars = CharBuffer.allocate(Math.max(length, chars.capacity() * 2));
+		chars.clear();
+		ByteBuffer b = _buffer;
+		int i = _payloadStart;
+		for (; i < _payloadEnd; i++) {
+			byte c = b.get(i);
+			if (c < 0)
+				break;
+			chars.put((char) c);
+		}
+		if (i < _payloadEnd) {
+			// not ASCII, decode the rest
+			int position = b.position(), limit = b.limit();
+			b.limit(_payloadEnd).position(i);
+			_decoder.reset();
+			_decoder.decode(b, chars, true);
+			_decoder.flush(chars);
+			b.limit(limit).position(position);
+		}
+		chars.flip();
+		return chars;
+	}
+
+	/**
+	 * Parses the payload of the current line as a non negative decimal number, straight from the bytes.
+	 * @return the number
+	 * @throws IOException if the payload is not a number
+	 */
+	int getPayloadInt () throws IOException {
+		int value = 0;
+		for (int i = _payloadStart; i < _payloadEnd; i++) {
+			byte b = _buffer.get(i);
+			if (!isDigit(b) || value > (Integer.MAX_VALUE - 9) / 10)
+				throw new IOException("invalid number in response line: " + getPayload());
+			value = value * 10 + (b - '0');
+		}
+		if (_payloadStart == _payloadEnd)
+			throw new IOException("empty number in response line");
+		return value;
+	}
+
+	/**
+	 * Finds the end of the current line.
+	 * @return the index of the line's cr/lf pair in the buffer, or -1 if it wasn't fully received yet
+	 */
+	private int findLineEnd () {
+		ByteBuffer b = _buffer;
+		int limit = b.limit();
+		for (int i = Math.max(_scan, b.position() + 1); i < limit; i++) {
+			if (b.get(i) == '\n' && b.get(i - 1) == '\r')
+				return i - 1;
+		}
+		// the last byte may be the cr of a pair still to come:
+		_scan = Math.max(limit, _buffer.position() + 1);
+		return -1;
+	}
+
+	/**
+	 * Reads more bytes from the channel, making room in the buffer first.
+	 * @return {@code false} at end of stream
+	 * @throws IOException on I/O errors
+	 */
+	private boolean fill () throws IOException {
+		int consumed = _buffer.position();
+		if (consumed > 0) {
+			_buffer.compact();
+			_scan -= consumed;
+		} else if (_buffer.limit() == _buffer.capacity()) {
+			// a single line fills the buffer
+			ByteBuffer bigger = ByteBuffer.allocateDirect(_buffer.capacity() * 2);
+			bigger.put(_buffer);
+			_buffer = bigger;
+		} else {
+			_buffer.position(_buffer.limit());
+			_buffer.limit(_buffer.capacity());
+		}
+		int n;
+		try {
+			n = _channel.read(_buffer);
+		} finally {
+			_buffer.flip();
+		}
+		if (n > 0)
+			_metrics.bytesIn(n);
+		return n >= 0;
+	}
+
+	private static boolean isDigit (byte b) {
+		return b >= '0' && b <= '9';
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * SSIPMessage.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.ssip;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A message spoken with {@link SSIPClient#sayAsync(SSIPPriority, String)}, followed through its SSIP events.
+ * <p>Each stage of the message has a future:
+ * <ul>
+ * <li>{@link #getQueued()} completes with the message id once the server accepted the message.
+ * <li>{@link #getBegin()} completes with the {@code BEGIN} event when the message starts being spoken.
+ * <li>{@link #getEnd()} completes with the {@code END} event when the message was fully spoken, or with the {@code CANCEL} event when it was stopped or canceled before.
+ * </ul>
+ * A canceled message may never begin, so its begin future is completed with the {@code CANCEL} event too.
+ * If notifications of its events are turned off before it ends, its begin and end futures are cancelled, they would never complete.
+ * If the message can't be sent or the connection is closed first, the futures complete exceptionally with a {@link SSIPException}.</p>
+ * <p>Dependent actions of the queued future run on the communications thread and must not block, event futures complete on the event dispatcher thread, see {@link SSIPEventDispatcher}.</p>
+ * <code><pre>
+ * spd.sayAsync(SSIPPriority.TEXT, "Hello").getEnd().thenRun(() -&gt; nextStep());
+ * </pre></code>
+ *
+ * @author ragb
+ *
+ * @see SSIPClient#sayAsync(SSIPPriority, String)
+ */
+public final class SSIPMessage {
+	private final CompletableFuture<Integer> _queued = new CompletableFuture<Integer>();
+	private final CompletableFuture<SSIPEvent> _begin = new CompletableFuture<SSIPEvent>();
+	private final CompletableFuture<SSIPEvent> _end = new CompletableFuture<SSIPEvent>();
+
+	SSIPMessage () {
+	}
+
+	/**
+	 * Gets the future message id.
+	 * @return the future completing when the server queued the message, with {@code -1} if the message was shed
+	 */
+	public CompletableFuture<Integer> getQueued () {
+		return _queued;
+	}
+
+	/**
+	 * Gets the future begin event.
+	 * @return the future completing when the message begins, cancelled if the message was shed or its notifications turned off
+	 */
+	public CompletableFuture<SSIPEvent> getBegin () {
+		return _begin;
+	}
+
+	/**
+	 * Gets the future end or cancel event.
+	 * @return the future completing when the message ends or is canceled, cancelled if the message was shed or its notifications turned off
+	 */
+	public CompletableFuture<SSIPEvent> getEnd () {
+		return _end;
+	}
+
+	/**
+	 * Updates the futures with an event of this message.
+	 * @param event the event
+	 * @return {@code true} if the message is done and no more events are expected
+	 */
+	boolean handle (SSIPEvent event) {
+		switch (event.getType()) {
+		case BEGIN:
+			_begin.complete(event);
+			return false;
+		case END:
+		case CANCEL:
+			_begin.complete(event);
+			_end.complete(event);
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Completes the futures of a message shed by the admission controller: the id is {@code -1}, the begin and end are cancelled.
+	 */
+	void shed () {
+		// the queued future last, a thread woken by it finds the others done
+		_begin.cancel(false);
+		_end.cancel(false);
+		_queued.complete(-1);
+	}
+
+	/**
+	 * Cancels the begin and end futures of a message whose events will never come.
+	 */
+	void cancel () {
+		_begin.cancel(false);
+		_end.cancel(false);
+	}
+
+	/**
+	 * Fails all the futures not completed yet.
+	 * @param e the cause
+	 */
+	void fail (Throwable e) {
+		// the queued future last, see shed()
+		_begin.completeExceptionally(e);
+		_end.completeExceptionally(e);
+		_queued.completeExceptionally(e);
+	}
+}
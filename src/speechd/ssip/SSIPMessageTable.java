@@ -0,0 +1,162 @@
+/*
+ * SSIPMessageTable.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.ssip;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Messages being spoken, by message id, waiting for their events.
+ * <p>An open addressing hash table with linear probing over an {@code int} array of keys, so looking up the message of every event boxes nothing.
+ * Removal shifts the following entries back instead of leaving tombstones, the table never degrades however many messages go through it.</p>
+ * <p>All methods are synchronized: messages are added by the communications thread and looked up by the event dispatcher thread.</p>
+ *
+ * @author ragb
+ *
+ * @see SSIPMessage
+ */
+final class SSIPMessageTable {
+	/**
+	 * Initial number of slots, always a power of two.
+	 */
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int[] _keys = new int[INITIAL_CAPACITY];
+	/**
+	 * Messages by slot, {@code null} for free slots.
+	 */
+	private SSIPMessage[] _values = new SSIPMessage[INITIAL_CAPACITY];
+	private int _size;
+
+	/**
+	 * Adds a message.
+	 * @param id the message id
+	 * @param message the message
+	 */
+	synchronized void put (int id, SSIPMessage message) {
+		// at most half full, so probe sequences stay short
+		if ((_size + 1) * 2 > _values.length)
+			resize(_values.length * 2);
+		int mask = _values.length - 1;
+		int i = slot(id, mask);
+		while (_values[i] != null && _keys[i] != id)
+			i = (i + 1) & mask;
+		if (_values[i] == null)
+			_size++;
+		_keys[i] = id;
+		_values[i] = message;
+	}
+
+	/**
+	 * Gets a message.
+	 * @param id the message id
+	 * @return the message, {@code null} if not found
+	 */
+	synchronized SSIPMessage get (int id) {
+		int i = find(id);
+		return (i < 0) ? null : _values[i];
+	}
+
+	/**
+	 * Removes a message.
+	 * @param id the message id
+	 * @return the message removed, {@code null} if not found
+	 */
+	synchronized SSIPMessage remove (int id) {
+		int i = find(id);
+		if (i < 0)
+			return null;
+		SSIPMessage message = _values[i];
+		int mask = _values.length - 1;
+		// shift back the entries that probed past the freed slot
+		int free = i;
+		for (int j = (i + 1) & mask; _values[j] != null; j = (j + 1) & mask) {
+			int home = slot(_keys[j], mask);
+			// move j unless its home lies cyclically in (free, j]
+			if (free <= j ? (home <= free || home > j) : (home <= free && home > j)) {
+				_keys[free] = _keys[j];
+				_values[free] = _values[j];
+				free = j;
+			}
+		}
+		_values[free] = null;
+		_size--;
+		return message;
+	}
+
+	/**
+	 * Removes all messages.
+	 * @return the messages removed
+	 */
+	synchronized List<SSIPMessage> clear () {
+		List<SSIPMessage> messages = new ArrayList<SSIPMessage>(_size);
+		for (int i = 0; i < _values.length; i++) {
+			if (_values[i] != null) {
+				messages.add(_values[i]);
+				_values[i] = null;
+			}
+		}
+		_size = 0;
+		return messages;
+	}
+
+	/**
+	 * Gets the number of messages.
+	 * @return the size
+	 */
+	synchronized int size () {
+		return _size;
+	}
+
+	private int find (int id) {
+		int mask = _values.length - 1;
+		for (int i = slot(id, mask); _values[i] != null; i = (i + 1) & mask) {
+			if (_keys[i] == id)
+				return i;
+		}
+		return -1;
+	}
+
+	private void resize (int capacity) {
+		int[] keys = _keys;
+		SSIPMessage[] values = _values;
+		_keys = new int[capacity];
+		_values = new SSIPMessage[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				int j = slot(keys[i], mask);
+				while (_values[j] != null)
+					j = (j + 1) & mask;
+				_keys[j] = keys[i];
+				_values[j] = values[i];
+			}
+		}
+	}
+
+	/**
+	 * Home slot of a key, message ids are sequential so they are mixed first.
+	 */
+	private static int slot (int id, int mask) {
+		int h = id * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+}
@@ -0,0 +1,290 @@
+/*
+ * SSIPMetrics.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.ssip;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of a {@link SSIPConnection}.
+ * <p>Every response is timed from the moment its request was queued for sending, and recorded in a {@link SSIPHistogram} for the command verb: {@code SET}, {@code SPEAK}, {@code LIST}, {@code CHAR}, ..., and {@code DATA} for data blocks.
+ * {@link SSIPClient#say(SSIPPriority, String)} sends its data right after the {@code SPEAK} command, so the {@code DATA} latency is the time a say takes.
+ * Counters track commands and data blocks sent, error responses by code, bytes sent and received and events received by type.</p>
+ * <p>Metrics are always on, recording costs a few counter increments per request.
+ * They can be read directly, copied with {@link #snapshot()}, or published through JMX with {@link #registerMBean(String)}.
+ * This class is safe for multi threaded use.</p>
+ *
+ * @author ragb
+ *
+ * @see SSIPConnection#getMetrics()
+ * @see SSIPMetricsMXBean
+ */
+public final class SSIPMetrics implements SSIPMetricsMXBean {
+	/**
+	 * Verb of data blocks.
+	 */
+	public static final String DATA = "DATA";
+
+	/**
+	 * Domain of the JMX object names.
+	 */
+	public static final String JMX_DOMAIN = "speechd.ssip";
+
+	/**
+	 * Histograms by upper case verb.
+	 */
+	private final Map<String, SSIPHistogram> _latencies = new ConcurrentHashMap<String, SSIPHistogram>();
+	/**
+	 * Histograms by command as written, so looking up a histogram doesn't convert the command to upper case.
+	 */
+	private final Map<String, SSIPHistogram> _byCommand = new ConcurrentHashMap<String, SSIPHistogram>();
+	private final LongAdder _commands = new LongAdder();
+	private final LongAdder _data = new LongAdder();
+	private final LongAdder _bytesIn = new LongAdder();
+	private final LongAdder _bytesOut = new LongAdder();
+	/**
+	 * Error responses, indexed by response code.
+	 */
+	private final AtomicLongArray _errors = new AtomicLongArray(1000);
+	private final AtomicLongArray _events = new AtomicLongArray(SSIPEvent.EventType.values().length);
+
+	private ObjectName _objectName;
+
+	SSIPMetrics () {
+	}
+
+	/**
+	 * Copies the current values, the copy doesn't change anymore.
+	 * @return the snapshot
+	 */
+	public SSIPMetrics snapshot () {
+		SSIPMetrics copy = new SSIPMetrics();
+		for (Map.Entry<String, SSIPHistogram> entry : _latencies.entrySet())
+			copy._latencies.put(entry.getKey(), entry.getValue().copy());
+		copy._commands.add(_commands.sum());
+		copy._data.add(_data.sum());
+		copy._bytesIn.add(_bytesIn.sum());
+		copy._bytesOut.add(_bytesOut.sum());
+		for (int i = 0; i < _errors.length(); i++)
+			copy._errors.set(i, _errors.get(i));
+		for (int i = 0; i < _events.length(); i++)
+			copy._events.set(i, _events.get(i));
+		return copy;
+	}
+
+	/**
+	 * Gets the latency histogram of a command verb.
+	 * @param verb the command verb, or {@link #DATA}
+	 * @return the histogram, {@code null} if no such command was answered yet
+	 */
+	public SSIPHistogram getLatency (String verb) {
+		return _latencies.get(verb.toUpperCase(Locale.ROOT));
+	}
+
+	/**
+	 * Gets all latency histograms.
+	 * @return the histograms by upper case command verb, sorted by verb
+	 */
+	public Map<String, SSIPHistogram> getLatencies () {
+		return new TreeMap<String, SSIPHistogram>(_latencies);
+	}
+
+	public long getCommandCount () {
+		return _commands.sum();
+	}
+
+	public long getDataCount () {
+		return _data.sum();
+	}
+
+	public long getErrorCount () {
+		long count = 0;
+		for (int i = 0; i < _errors.length(); i++)
+			count += _errors.get(i);
+		return count;
+	}
+
+	/**
+	 * Gets the number of error responses with a code.
+	 * @param code the response code
+	 * @return the count
+	 */
+	public long getErrorCount (int code) {
+		return (code >= 0 && code < _errors.length()) ? _errors.get(code) : 0;
+	}
+
+	public Map<String, Long> getErrorCounts () {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (int i = 0; i < _errors.length(); i++) {
+			long n = _errors.get(i);
+			if (n != 0)
+				counts.put(Integer.toString(i), n);
+		}
+		return counts;
+	}
+
+	public long getBytesIn () {
+		return _bytesIn.sum();
+	}
+
+	public long getBytesOut () {
+		return _bytesOut.sum();
+	}
+
+	/**
+	 * Gets the number of events received of a type.
+	 * @param type the event type
+	 * @return the count
+	 */
+	public long getEventCount (SSIPEvent.EventType type) {
+		return _events.get(type.ordinal());
+	}
+
+	public Map<String, Long> getEventCounts () {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (SSIPEvent.EventType type : SSIPEvent.EventType.values())
+			counts.put(type.toString(), _events.get(type.ordinal()));
+		return counts;
+	}
+
+	public Map<String, Long> getLatencyCounts () {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, SSIPHistogram> entry : _latencies.entrySet())
+			counts.put(entry.getKey(), entry.getValue().getCount());
+		return counts;
+	}
+
+	public Map<String, Long> getLatencyP50Micros () {
+		return percentiles(50);
+	}
+
+	public Map<String, Long> getLatencyP99Micros () {
+		return percentiles(99);
+	}
+
+	public Map<String, Long> getLatencyP999Micros () {
+		return percentiles(99.9);
+	}
+
+	public Map<String, Long> getLatencyMaxMicros () {
+		Map<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, SSIPHistogram> entry : _latencies.entrySet())
+			values.put(entry.getKey(), entry.getValue().getMax(TimeUnit.MICROSECONDS));
+		return values;
+	}
+
+	public void reset () {
+		for (SSIPHistogram histogram : _latencies.values())
+			histogram.reset();
+		_commands.reset();
+		_data.reset();
+		_bytesIn.reset();
+		_bytesOut.reset();
+		for (int i = 0; i < _errors.length(); i++)
+			_errors.set(i, 0);
+		for (int i = 0; i < _events.length(); i++)
+			_events.set(i, 0);
+	}
+
+	/**
+	 * Publishes these metrics on the platform MBean server, as {@code speechd.ssip:type=SSIPConnection,name=<name>}.
+	 * @param name the name distinguishing this connection, for example the client name
+	 * @return the object name
+	 * @throws JMException if the name is invalid or already registered
+	 */
+	public synchronized ObjectName registerMBean (String name) throws JMException {
+		if (_objectName != null)
+			unregisterMBean();
+		ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=SSIPConnection,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		_objectName = objectName;
+		return objectName;
+	}
+
+	/**
+	 * Removes these metrics from the platform MBean server, if registered.
+	 * @throws JMException on JMX errors
+	 */
+	public synchronized void unregisterMBean () throws JMException {
+		if (_objectName == null)
+			return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(_objectName))
+			server.unregisterMBean(_objectName);
+		_objectName = null;
+	}
+
+	/**
+	 * Gets the histogram of a command, creating it on first use.
+	 * @param command the command as written, or {@link #DATA}
+	 * @return the histogram
+	 */
+	SSIPHistogram latency (String command) {
+		SSIPHistogram histogram = _byCommand.get(command);
+		if (histogram == null) {
+			histogram = _latencies.computeIfAbsent(command.toUpperCase(Locale.ROOT), k -> new SSIPHistogram());
+			_byCommand.put(command, histogram);
+		}
+		return histogram;
+	}
+
+	void commandSent () {
+		_commands.increment();
+	}
+
+	void dataSent () {
+		_data.increment();
+	}
+
+	void error (int code) {
+		if (code >= 0 && code < _errors.length())
+			_errors.incrementAndGet(code);
+	}
+
+	void bytesIn (long n) {
+		_bytesIn.add(n);
+	}
+
+	void bytesOut (long n) {
+		_bytesOut.add(n);
+	}
+
+	void event (SSIPEvent.EventType type) {
+		_events.incrementAndGet(type.ordinal());
+	}
+
+	private Map<String, Long> percentiles (double percentile) {
+		Map<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, SSIPHistogram> entry : _latencies.entrySet())
+			values.put(entry.getKey(), entry.getValue().getValueAtPercentile(percentile, TimeUnit.MICROSECONDS));
+		return values;
+	}
+}
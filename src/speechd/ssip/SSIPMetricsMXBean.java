@@ -0,0 +1,98 @@
+/*
+ * SSIPMetricsMXBean.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.ssip;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link SSIPMetrics}, published through JMX with {@link SSIPMetrics#registerMBean(String)}.
+ * <p>Latencies are given in microseconds by command verb (for example {@code SET}, {@code SPEAK}, {@code DATA} for data blocks), counters are totals since the connection was created or last reset.</p>
+ *
+ * @author ragb
+ *
+ * @see SSIPMetrics
+ */
+public interface SSIPMetricsMXBean {
+	/**
+	 * @return the number of commands sent
+	 */
+	long getCommandCount ();
+
+	/**
+	 * @return the number of data blocks sent
+	 */
+	long getDataCount ();
+
+	/**
+	 * @return the number of error responses received
+	 */
+	long getErrorCount ();
+
+	/**
+	 * @return the number of error responses by response code
+	 */
+	Map<String, Long> getErrorCounts ();
+
+	/**
+	 * @return the number of bytes received
+	 */
+	long getBytesIn ();
+
+	/**
+	 * @return the number of bytes sent
+	 */
+	long getBytesOut ();
+
+	/**
+	 * @return the number of events received by event type
+	 */
+	Map<String, Long> getEventCounts ();
+
+	/**
+	 * @return the number of responses by command verb
+	 */
+	Map<String, Long> getLatencyCounts ();
+
+	/**
+	 * @return the median latency by command verb, in microseconds
+	 */
+	Map<String, Long> getLatencyP50Micros ();
+
+	/**
+	 * @return the 99th percentile latency by command verb, in microseconds
+	 */
+	Map<String, Long> getLatencyP99Micros ();
+
+	/**
+	 * @return the 99.9th percentile latency by command verb, in microseconds
+	 */
+	Map<String, Long> getLatencyP999Micros ();
+
+	/**
+	 * @return the maximum latency by command verb, in microseconds
+	 */
+	Map<String, Long> getLatencyMaxMicros ();
+
+	/**
+	 * Resets all counters and histograms.
+	 */
+	void reset ();
+}
@@ -0,0 +1,169 @@
+/*
+ * SSIPParameterCache.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.ssip;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the parameter values a {@link SSIPClient} has set, so {@code SET} commands that would not change anything on the server can be skipped.
+ * <p>Values are remembered per target, but only the client's own settings can be trusted: the settings of other clients (and so of {@code ALL}) can change at any time without this client knowing.
+ * Setting a parameter on {@code ALL} or on the client's own id also updates the {@code SELF} values, and changing the target with {@link SSIPClient#setTarget(SSIPClient.Target)} just selects which values are looked at.
+ * Some parameters change others on the server (setting the language or the output module may select another synthesis voice), setting one of them forgets the values it affects.</p>
+ * <p>Values are recorded when the {@code SET} command is sent, commands sent afterwards are processed by the server after it, and forgotten again if the server rejects it.
+ * All methods are synchronized on the cache; the client makes a check and the sending of the command atomic with its own send lock.</p>
+ * <p>The client's own values also make up the session journal replayed after reconnecting, see {@link #snapshot()}.</p>
+ *
+ * @author ragb
+ *
+ * @see SSIPClient#setParameter(String, String, String)
+ */
+final class SSIPParameterCache {
+	/**
+	 * Cache key prefix for notification settings, one per event type.
+	 */
+	static final String NOTIFICATION = "NOTIFICATION ";
+
+	/**
+	 * Parameters whose value may change when another parameter is set.
+	 */
+	private static final Map<String, String[]> _affected = new HashMap<String, String[]>();
+	static {
+		_affected.put("LANGUAGE", new String[] { "SYNTHESIS_VOICE" });
+		_affected.put("VOICE", new String[] { "SYNTHESIS_VOICE" });
+		_affected.put("OUTPUT_MODULE", new String[] { "SYNTHESIS_VOICE" });
+		_affected.put("SYNTHESIS_VOICE", new String[] { "LANGUAGE", "VOICE" });
+	}
+
+	/**
+	 * The client's own parameter values, by upper case parameter name, in the order they were last set.
+	 */
+	private final Map<String, String> _self = new LinkedHashMap<String, String>();
+
+	/**
+	 * The client's own id as a target string, {@code null} while unknown.
+	 */
+	private String _selfId;
+
+	/**
+	 * Defines the client's own id, so setting parameters on it is recognized as setting {@code SELF}.
+	 * @param id the client id
+	 */
+	synchronized void setSelfId (int id) {
+		_selfId = Integer.toString(id);
+	}
+
+	/**
+	 * Checks if setting a parameter would leave the value the server already has.
+	 * @param target the target
+	 * @param param the parameter name
+	 * @param value the value to set
+	 * @return {@code true} if the parameter is known to have that value already
+	 */
+	synchronized boolean isCurrent (String target, String param, String value) {
+		if (!isSelf(target))
+			return false;
+		String key = param.toUpperCase();
+		if (key.equals(NOTIFICATION + "ALL")) {
+			for (SSIPEvent.EventType type : SSIPEvent.EventType.values()) {
+				if (!value.equals(_self.get(NOTIFICATION + type)))
+					return false;
+			}
+			return true;
+		}
+		return value.equals(_self.get(key));
+	}
+
+	/**
+	 * Gets the client's own value of a parameter.
+	 * @param param the parameter name
+	 * @return the value, {@code null} if unknown
+	 */
+	synchronized String get (String param) {
+		return _self.get(param.toUpperCase());
+	}
+
+	/**
+	 * Records the value of a parameter that was set.
+	 * @param target the target
+	 * @param param the parameter name
+	 * @param value the value
+	 */
+	synchronized void update (String target, String param, String value) {
+		if (!isSelf(target) && !target.equalsIgnoreCase(SSIPClient.Target.ALL.toString()))
+			return;
+		String key = param.toUpperCase();
+		if (key.equals(NOTIFICATION + "ALL")) {
+			for (SSIPEvent.EventType type : SSIPEvent.EventType.values())
+				_self.put(NOTIFICATION + type, value);
+			return;
+		}
+		forgetAffected(key);
+		// moved to the end, replaying in this order gives the same result
+		_self.remove(key);
+		_self.put(key, value);
+	}
+
+	/**
+	 * Forgets the value of a parameter, used when setting it failed.
+	 * @param param the parameter name
+	 */
+	synchronized void invalidate (String param) {
+		String key = param.toUpperCase();
+		if (key.equals(NOTIFICATION + "ALL")) {
+			for (SSIPEvent.EventType type : SSIPEvent.EventType.values())
+				_self.remove(NOTIFICATION + type);
+			return;
+		}
+		forgetAffected(key);
+		_self.remove(key);
+	}
+
+	/**
+	 * Copies the client's own values, in the order they were last set.
+	 * Setting them again in that order restores the same settings, values changed by a later setting were already forgotten.
+	 * @return the values by upper case parameter name, notification settings have keys starting with {@link #NOTIFICATION}
+	 */
+	synchronized Map<String, String> snapshot () {
+		return new LinkedHashMap<String, String>(_self);
+	}
+
+	/**
+	 * Forgets all values, used when the connection is reset.
+	 */
+	synchronized void clear () {
+		_self.clear();
+	}
+
+	private void forgetAffected (String key) {
+		String[] affected = _affected.get(key);
+		if (affected != null) {
+			for (String a : affected)
+				_self.remove(a);
+		}
+	}
+
+	private boolean isSelf (String target) {
+		return target.equalsIgnoreCase(SSIPClient.Target.SELF.toString())
+				|| target.equals(_selfId);
+	}
+}
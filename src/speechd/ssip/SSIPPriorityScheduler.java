@@ -0,0 +1,275 @@
+/*
+ * SSIPPriorityScheduler.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.ssip;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queues messages by priority and sends them through a {@link SSIPClient} from a single sender thread, applying the SSIP priority rules before the messages are sent.
+ * <p>Threads calling {@link SSIPClient#say(SSIPPriority, String)} directly reach the connection in no particular order, so under load an important message may wait behind text the server will cancel as soon as it arrives.
+ * Here each priority has a queue of its own and the sender always takes the most urgent message waiting: {@link SSIPPriority#IMPORTANT}, then {@link SSIPPriority#MESSAGE}, {@link SSIPPriority#TEXT}, {@link SSIPPriority#PROgRESS} and {@link SSIPPriority#NOTIFICATION}.
+ * The rules of section 4.3 of the SSIP specification are applied to the waiting messages, so messages the server would discard are never sent:</p>
+ * <ul>
+ * <li>an important message or a message discards the text and notifications waiting, the progress message waiting is kept and sent after it;</li>
+ * <li>a text discards the notifications waiting;</li>
+ * <li>a notification is dropped when any message of another priority is waiting or being sent, and replaces a notification waiting;</li>
+ * <li>a progress message replaces the one waiting, so the latest of a sequence is always spoken.</li>
+ * </ul>
+ * <p>{@link #say(SSIPPriority, String)} never blocks. Errors sending a message are logged and counted, see {@link #getFailedCount()}.
+ * This class is safe for multi threaded use.</p>
+ *
+ * @author ragb
+ *
+ * @see SSIPCoalescingChannel
+ */
+public final class SSIPPriorityScheduler {
+	/**
+	 * The order the sender takes messages in.
+	 */
+	private static final SSIPPriority[] URGENCY = { SSIPPriority.IMPORTANT, SSIPPriority.MESSAGE, SSIPPriority.TEXT, SSIPPriority.PROgRESS, SSIPPriority.NOTIFICATION };
+
+	private final SSIPClient _client;
+	private final EnumMap<SSIPPriority, ArrayDeque<String>> _queues = new EnumMap<SSIPPriority, ArrayDeque<String>>(SSIPPriority.class);
+	/**
+	 * Number of messages in all queues.
+	 */
+	private int _waiting;
+	/**
+	 * Priority of the message being sent, {@code null} if none.
+	 */
+	private SSIPPriority _sending;
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _notEmpty = _lock.newCondition();
+	private boolean _closed;
+
+	private final AtomicLong _submitted = new AtomicLong();
+	private final AtomicLong _sent = new AtomicLong();
+	private final AtomicLong _shed = new AtomicLong();
+	private final AtomicLong _failed = new AtomicLong();
+	private final EnumMap<SSIPPriority, AtomicLong> _discarded = new EnumMap<SSIPPriority, AtomicLong>(SSIPPriority.class);
+
+	private Logger _logger = Logger.getLogger("speechd.ssip.SSIPPriorityScheduler");
+
+	/**
+	 * Constructs a new scheduler, its sender thread created by the default thread factory.
+	 * @param client the client sending the messages
+	 * @see SSIPConnection#getDefaultThreadFactory()
+	 */
+	public SSIPPriorityScheduler (SSIPClient client) {
+		this(client, SSIPConnection.getDefaultThreadFactory());
+	}
+
+	/**
+	 * Constructs a new scheduler.
+	 * @param client the client sending the messages
+	 * @param threadFactory the factory creating the sender thread
+	 */
+	public SSIPPriorityScheduler (SSIPClient client, ThreadFactory threadFactory) {
+		if (client == null)
+			throw new NullPointerException("client can't be null");
+		_client = client;
+		for (SSIPPriority priority : SSIPPriority.values()) {
+			_queues.put(priority, new ArrayDeque<String>());
+			_discarded.put(priority, new AtomicLong());
+		}
+		Thread thread = threadFactory.newThread(new Runnable() {
+			public void run () {
+				sendLoop();
+			}
+		});
+		thread.setName("SSIP priority scheduler");
+		thread.start();
+	}
+
+	/**
+	 * Queues a message, discarding the waiting messages it would cancel on the server.
+	 * @param priority the message priority
+	 * @param text the message
+	 * @return {@code true} if the message was queued, {@code false} if it was dropped because of other messages waiting
+	 * @throws IllegalStateException if the scheduler is closed
+	 */
+	public boolean say (SSIPPriority priority, String text) {
+		if (priority == null || text == null)
+			throw new NullPointerException("priority and text can't be null");
+		_lock.lock();
+		try {
+			if (_closed)
+				throw new IllegalStateException("scheduler closed");
+			_submitted.incrementAndGet();
+			switch (priority) {
+			case IMPORTANT:
+			case MESSAGE:
+				// the progress waiting is kept, it is sent after the more urgent message
+				discard(SSIPPriority.TEXT);
+				discard(SSIPPriority.NOTIFICATION);
+				break;
+			case TEXT:
+				discard(SSIPPriority.NOTIFICATION);
+				break;
+			case NOTIFICATION:
+				int notifications = _queues.get(SSIPPriority.NOTIFICATION).size();
+				if (_waiting > notifications || (_sending != null && _sending != SSIPPriority.NOTIFICATION)) {
+					_discarded.get(SSIPPriority.NOTIFICATION).incrementAndGet();
+					return false;
+				}
+				discard(SSIPPriority.NOTIFICATION);
+				break;
+			case PROgRESS:
+				discard(SSIPPriority.PROgRESS);
+				break;
+			}
+			_queues.get(priority).add(text);
+			_waiting++;
+			_notEmpty.signal();
+			return true;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes this scheduler, waiting messages are discarded. The client is not closed.
+	 */
+	public void close () {
+		_lock.lock();
+		try {
+			_closed = true;
+			for (SSIPPriority priority : SSIPPriority.values())
+				discard(priority);
+			_notEmpty.signal();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of messages put in the scheduler.
+	 * @return the count
+	 */
+	public long getSubmittedCount () {
+		return _submitted.get();
+	}
+
+	/**
+	 * Gets the number of messages sent to the server and queued by it. Messages shed or failed are not counted.
+	 * @return the count
+	 */
+	public long getSentCount () {
+		return _sent.get();
+	}
+
+	/**
+	 * Gets the number of messages shed by the admission controller of the client, never sent.
+	 * @return the count
+	 * @see SSIPClient#setAdmissionController(SSIPAdmissionController)
+	 */
+	public long getShedCount () {
+		return _shed.get();
+	}
+
+	/**
+	 * Gets the number of messages that failed to be sent.
+	 * @return the count
+	 */
+	public long getFailedCount () {
+		return _failed.get();
+	}
+
+	/**
+	 * Gets the number of messages of a priority discarded or dropped before being sent.
+	 * @param priority the priority
+	 * @return the count
+	 */
+	public long getDiscardedCount (SSIPPriority priority) {
+		return _discarded.get(priority).get();
+	}
+
+	/**
+	 * Gets the number of messages waiting to be sent.
+	 * @return the count
+	 */
+	public int getPendingCount () {
+		_lock.lock();
+		try {
+			return _waiting;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Discards the messages of a priority waiting. Must be called holding the lock.
+	 */
+	private void discard (SSIPPriority priority) {
+		ArrayDeque<String> queue = _queues.get(priority);
+		_discarded.get(priority).addAndGet(queue.size());
+		_waiting -= queue.size();
+		queue.clear();
+	}
+
+	private void sendLoop () {
+		try {
+			while (true) {
+				SSIPPriority priority = null;
+				String text = null;
+				_lock.lock();
+				try {
+					_sending = null;
+					while (_waiting == 0) {
+						if (_closed)
+							return;
+						_notEmpty.await();
+					}
+					for (SSIPPriority p : URGENCY) {
+						text = _queues.get(p).poll();
+						if (text != null) {
+							priority = p;
+							break;
+						}
+					}
+					_waiting--;
+					_sending = priority;
+				} finally {
+					_lock.unlock();
+				}
+				try {
+					if (_client.say(priority, text) >= 0)
+						_sent.incrementAndGet();
+					else
+						_shed.incrementAndGet();
+				} catch (SSIPException | RuntimeException e) {
+					// the thread must outlive a failing message, or nothing is sent anymore
+					_failed.incrementAndGet();
+					_logger.log(Level.WARNING, "Can't send message", e);
+				}
+			}
+		} catch (InterruptedException e) {
+			_logger.log(Level.WARNING, "priority scheduler thread interrupted");
+		}
+	}
+}
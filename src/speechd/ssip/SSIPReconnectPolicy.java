@@ -0,0 +1,110 @@
+/*
+ * SSIPReconnectPolicy.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.ssip;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Defines how a {@link SSIPClient} reconnects after losing its connection, for example when speech-dispatcher restarts.
+ * <p>The first attempt is made right away. Further attempts wait with exponential backoff, starting at the initial delay and doubling up to the maximum delay.
+ * Each delay is randomly shortened by up to half (jitter), so many clients losing the same server don't all come back at the same instant.
+ * A call gives up after the maximum number of attempts, the next call starts over.</p>
+ * <p>Instances are immutable.</p>
+ *
+ * @author ragb
+ *
+ * @see SSIPClient#setReconnectPolicy(SSIPReconnectPolicy)
+ */
+public final class SSIPReconnectPolicy {
+	/**
+	 * Default policy: up to 8 attempts, waiting from 50 milliseconds up to 2 seconds between them.
+	 */
+	public static final SSIPReconnectPolicy DEFAULT = new SSIPReconnectPolicy(50, 2000, TimeUnit.MILLISECONDS, 8);
+
+	/**
+	 * Fraction of each delay that may be cut at random.
+	 */
+	private static final double JITTER = 0.5;
+
+	private final long _initialDelayNanos;
+	private final long _maxDelayNanos;
+	private final int _maxAttempts;
+
+	/**
+	 * Constructs a new policy.
+	 * @param initialDelay the delay before the second attempt
+	 * @param maxDelay the maximum delay between attempts
+	 * @param unit the unit of the delays
+	 * @param maxAttempts the number of attempts before giving up
+	 * @throws IllegalArgumentException if a delay is negative, or {@code maxAttempts} is not positive
+	 */
+	public SSIPReconnectPolicy (long initialDelay, long maxDelay, TimeUnit unit, int maxAttempts) {
+		if (initialDelay < 0 || maxDelay < initialDelay)
+			throw new IllegalArgumentException("invalid delays");
+		if (maxAttempts <= 0)
+			throw new IllegalArgumentException("maxAttempts must be positive");
+		_initialDelayNanos = unit.toNanos(initialDelay);
+		_maxDelayNanos = unit.toNanos(maxDelay);
+		_maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Gets the number of attempts before giving up.
+	 * @return the maximum number of attempts
+	 */
+	public int getMaxAttempts () {
+		return _maxAttempts;
+	}
+
+	/**
+	 * Gets the delay before the second attempt.
+	 * @param unit the unit of the result
+	 * @return the initial delay
+	 */
+	public long getInitialDelay (TimeUnit unit) {
+		return unit.convert(_initialDelayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Gets the maximum delay between attempts.
+	 * @param unit the unit of the result
+	 * @return the maximum delay
+	 */
+	public long getMaxDelay (TimeUnit unit) {
+		return unit.convert(_maxDelayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Computes the delay after a failed attempt, with jitter.
+	 * @param failedAttempts the number of attempts made so far, at least one
+	 * @param unit the unit of the result
+	 * @return the delay before the next attempt
+	 */
+	public long getDelay (int failedAttempts, TimeUnit unit) {
+		long delay = _initialDelayNanos;
+		for (int i = 1; i < failedAttempts && delay < _maxDelayNanos; i++)
+			delay *= 2;
+		delay = Math.min(delay, _maxDelayNanos);
+		delay -= (long) (delay * JITTER * ThreadLocalRandom.current().nextDouble());
+		return unit.convert(delay, TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * SSIPSentenceChunker.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.ssip;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.text.BreakIterator;
+import java.util.Locale;
+
+/**
+ * Splits text read incrementally into sentences, for streaming speech.
+ * <p>Text is read {@link #MAX_CHUNK} characters at a time, so the first sentence is available as soon as it has been read, whatever the length of the text.
+ * A sentence longer than {@link #MAX_CHUNK} characters is split at the last white space before the limit, or else at the limit but never inside a surrogate pair.
+ * Chunks are trimmed, blank ones are skipped.</p>
+ *
+ * @author ragb
+ *
+ * @see SSIPClient#sayStream(SSIPPriority, java.io.Reader)
+ */
+final class SSIPSentenceChunker {
+	/**
+	 * Maximum length of a chunk, and number of characters read at a time.
+	 */
+	static final int MAX_CHUNK = 4096;
+
+	private final Readable _in;
+	private final BreakIterator _sentences;
+	private final CharBuffer _read = CharBuffer.allocate(MAX_CHUNK);
+	/**
+	 * Text read and not yet returned, from {@link #_position}.
+	 */
+	private String _window = "";
+	private int _position;
+	private boolean _eof;
+
+	/**
+	 * Constructs a new chunker.
+	 * @param in the text
+	 * @param locale the locale of the text, for its sentence rules
+	 */
+	SSIPSentenceChunker (Readable in, Locale locale) {
+		_in = in;
+		_sentences = BreakIterator.getSentenceInstance(locale);
+		_sentences.setText(_window);
+	}
+
+	/**
+	 * Gets the next chunk of text.
+	 * @return the chunk, {@code null} at the end of the text
+	 * @throws IOException if reading fails
+	 */
+	String next () throws IOException {
+		while (true) {
+			int end = _sentences.following(_position);
+			// the window's last sentence may go on in the text not read yet
+			boolean complete = end != BreakIterator.DONE && (end < _window.length() || _eof);
+			if (!complete && !_eof && _window.length() - _position < MAX_CHUNK) {
+				fill();
+				continue;
+			}
+			if (end == BreakIterator.DONE)
+				return null;
+			// no end of sentence in MAX_CHUNK characters
+			if (!complete || end - _position > MAX_CHUNK)
+				end = split(Math.min(end, _position + MAX_CHUNK));
+			String chunk = _window.substring(_position, end).trim();
+			_position = end;
+			if (!chunk.isEmpty())
+				return chunk;
+		}
+	}
+
+	/**
+	 * Reads more text into the window, dropping what was returned already.
+	 */
+	private void fill () throws IOException {
+		_read.clear();
+		int n = _in.read(_read);
+		if (n < 0) {
+			_eof = true;
+			return;
+		}
+		_read.flip();
+		_window = _window.substring(_position) + _read;
+		_position = 0;
+		_sentences.setText(_window);
+	}
+
+	/**
+	 * Finds where to cut an overlong sentence: after the last white space before the limit, or at the limit.
+	 */
+	private int split (int limit) {
+		for (int i = limit; i > _position; i--) {
+			if (Character.isWhitespace(_window.charAt(i - 1)))
+				return i;
+		}
+		// half a surrogate pair would be encoded as a replacement character
+		if (limit - 1 > _position && Character.isHighSurrogate(_window.charAt(limit - 1)))
+			return limit - 1;
+		return limit;
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * SSIPThreads.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.ssip;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread factories for the threads of {@link SSIPConnection}s: the communications thread reading from the server and the event dispatcher thread.
+ * <p>By default each connection runs two platform daemon threads, which is fine for a few connections.
+ * Applications with hundreds of connections (one per user session on a terminal server, for example) can run them on virtual threads instead, on Java 21 and later, see {@link #virtual()}.
+ * Callers waiting for responses just park on a future, so they can be virtual threads too.</p>
+ * <p>The factory for new connections is chosen with {@link SSIPConnection#setDefaultThreadFactory(ThreadFactory)}, or with the {@code speechd.threads} system property, set to {@code platform} or {@code virtual}.
+ * A single connection's factory is set with {@link SSIPConnection#setThreadFactory(ThreadFactory)} before connecting.</p>
+ *
+ * @author ragb
+ *
+ * @see SSIPConnection#setThreadFactory(ThreadFactory)
+ */
+public final class SSIPThreads {
+	/**
+	 * System property selecting the default thread factory.
+	 */
+	public static final String THREADS_PROPERTY = "speechd.threads";
+
+	private static final ThreadFactory PLATFORM = new ThreadFactory() {
+		public Thread newThread (Runnable r) {
+			Thread t = new Thread(r);
+			t.setDaemon(true);
+			return t;
+		}
+	};
+
+	/**
+	 * The virtual thread factory, {@code null} when virtual threads are not supported.
+	 */
+	private static final ThreadFactory VIRTUAL = findVirtual();
+
+	private SSIPThreads () {
+	}
+
+	/**
+	 * Gets the factory of platform daemon threads, the default.
+	 * @return the factory
+	 */
+	public static ThreadFactory platform () {
+		return PLATFORM;
+	}
+
+	/**
+	 * Checks if this Java runtime has virtual threads.
+	 * @return {@code true} if {@link #virtual()} can be used
+	 */
+	public static boolean isVirtualSupported () {
+		return VIRTUAL != null;
+	}
+
+	/**
+	 * Gets a factory of virtual threads.
+	 * @return the factory
+	 * @throws UnsupportedOperationException if the Java runtime has no virtual threads
+	 */
+	public static ThreadFactory virtual () {
+		if (VIRTUAL == null)
+			throw new UnsupportedOperationException("virtual threads need Java 21 or later");
+		return VIRTUAL;
+	}
+
+	/**
+	 * Gets the factory selected by the {@code speechd.threads} system property. Platform threads are used when the property is not set, and when virtual threads are asked for but not supported.
+	 * @return the factory
+	 */
+	static ThreadFactory fromProperty () {
+		String mode = System.getProperty(THREADS_PROPERTY);
+		if (mode == null || mode.equalsIgnoreCase("platform"))
+			return PLATFORM;
+		if (mode.equalsIgnoreCase("virtual")) {
+			if (VIRTUAL != null)
+				return VIRTUAL;
+			Logger.getLogger("speechd.ssip.SSIPThreads").warning("virtual threads not supported, using platform threads");
+			return PLATFORM;
+		}
+		Logger.getLogger("speechd.ssip.SSIPThreads").warning(String.format("unknown %s value %s, using platform threads", THREADS_PROPERTY, mode));
+		return PLATFORM;
+	}
+
+	/**
+	 * Looks up {@code Thread.ofVirtual().factory()}, reflectively so this library still builds and runs on older Java versions.
+	 */
+	private static ThreadFactory findVirtual () {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// preview feature not enabled
+			Logger.getLogger("speechd.ssip.SSIPThreads").log(Level.FINE, "virtual threads not available", e);
+			return null;
+		}
+	}
+}
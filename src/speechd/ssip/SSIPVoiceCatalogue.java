@@ -0,0 +1,157 @@
+/*
+ * SSIPVoiceCatalogue.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.ssip;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable list of synthesis voices, indexed for lookups that don't go to the server.
+ * <p>Voices are found by language, by language and variant, and by name or name prefix. Lookups by language and name take constant time, lookups by prefix logarithmic time in the number of voices.
+ * All lookups ignore case. A language such as {@code en-US} is also found by its primary language, {@code en}.</p>
+ * <p>Catalogues are kept by {@link SSIPClient#getVoiceCatalogue()}, which lists the voices again when the output module changes.</p>
+ *
+ * @author ragb
+ *
+ * @see SSIPSynthesisVoice
+ * @see SSIPClient#getVoiceCatalogue()
+ */
+public final class SSIPVoiceCatalogue {
+	private final List<SSIPSynthesisVoice> _voices;
+	private final Map<String, List<SSIPSynthesisVoice>> _byLanguage = new HashMap<String, List<SSIPSynthesisVoice>>();
+	private final Map<String, List<SSIPSynthesisVoice>> _byLanguageVariant = new HashMap<String, List<SSIPSynthesisVoice>>();
+	/**
+	 * Voices by lower case name, sorted for prefix lookups.
+	 */
+	private final TreeMap<String, List<SSIPSynthesisVoice>> _byName = new TreeMap<String, List<SSIPSynthesisVoice>>();
+
+	/**
+	 * Constructs a new catalogue.
+	 * @param voices the voices, in the order listed by the server
+	 */
+	SSIPVoiceCatalogue (List<SSIPSynthesisVoice> voices) {
+		_voices = Collections.unmodifiableList(new ArrayList<SSIPSynthesisVoice>(voices));
+		for (SSIPSynthesisVoice voice : _voices) {
+			String language = key(voice.getLanguage());
+			add(_byLanguage, language, voice);
+			int dash = language.indexOf('-');
+			if (dash > 0)
+				add(_byLanguage, language.substring(0, dash), voice);
+			add(_byLanguageVariant, language + '\0' + key(voice.getVariant()), voice);
+			add(_byName, key(voice.getName()), voice);
+		}
+		freeze(_byLanguage);
+		freeze(_byLanguageVariant);
+		freeze(_byName);
+	}
+
+	/**
+	 * Gets all the voices.
+	 * @return the voices, as an unmodifiable list in the order listed by the server
+	 */
+	public List<SSIPSynthesisVoice> getVoices () {
+		return _voices;
+	}
+
+	/**
+	 * Gets the voices of a language.
+	 * @param language the language code, such as {@code en} or {@code en-US}
+	 * @return the voices, as an unmodifiable list, empty if none
+	 */
+	public List<SSIPSynthesisVoice> getVoices (String language) {
+		return find(_byLanguage, key(language));
+	}
+
+	/**
+	 * Gets the voices of a language and variant.
+	 * @param language the language code
+	 * @param variant the variant, as listed by the server
+	 * @return the voices, as an unmodifiable list, empty if none
+	 */
+	public List<SSIPSynthesisVoice> getVoices (String language, String variant) {
+		return find(_byLanguageVariant, key(language) + '\0' + key(variant));
+	}
+
+	/**
+	 * Gets a voice by name.
+	 * @param name the voice name
+	 * @return the first voice of that name, {@code null} if none
+	 */
+	public SSIPSynthesisVoice getVoice (String name) {
+		List<SSIPSynthesisVoice> voices = _byName.get(key(name));
+		return (voices != null) ? voices.get(0) : null;
+	}
+
+	/**
+	 * Gets the voices whose name starts with a prefix.
+	 * @param prefix the prefix
+	 * @return the voices, as an unmodifiable list sorted by name, empty if none
+	 */
+	public List<SSIPSynthesisVoice> getVoicesByPrefix (String prefix) {
+		String from = key(prefix);
+		List<SSIPSynthesisVoice> result = new ArrayList<SSIPSynthesisVoice>();
+		for (List<SSIPSynthesisVoice> voices : _byName.subMap(from, from + Character.MAX_VALUE).values())
+			result.addAll(voices);
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * Gets the number of voices.
+	 * @return the count
+	 */
+	public int size () {
+		return _voices.size();
+	}
+
+	/**
+	 * Gets a String representation of this catalogue.
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString () {
+		return _voices.toString();
+	}
+
+	private static String key (String s) {
+		return (s != null) ? s.toLowerCase(Locale.ROOT) : "";
+	}
+
+	private static void add (Map<String, List<SSIPSynthesisVoice>> index, String key, SSIPSynthesisVoice voice) {
+		List<SSIPSynthesisVoice> voices = index.get(key);
+		if (voices == null)
+			index.put(key, voices = new ArrayList<SSIPSynthesisVoice>(1));
+		voices.add(voice);
+	}
+
+	private static void freeze (Map<String, List<SSIPSynthesisVoice>> index) {
+		for (Map.Entry<String, List<SSIPSynthesisVoice>> entry : index.entrySet())
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+	}
+
+	private static List<SSIPSynthesisVoice> find (Map<String, List<SSIPSynthesisVoice>> index, String key) {
+		List<SSIPSynthesisVoice> voices = index.get(key);
+		return (voices != null) ? voices : Collections.<SSIPSynthesisVoice>emptyList();
+	}
+}
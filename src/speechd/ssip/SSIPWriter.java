@@ -0,0 +1,177 @@
+/*
+ * SSIPWriter.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.ssip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+
+/**
+ * Writes SSIP commands and data blocks to a channel, encoding characters with a reusable encoder straight into a reusable direct byte buffer.
+ * <p>Data blocks are escaped while they are written, scanning the text once: a dot starting a line is doubled, so it can't be taken for the end of data mark, and bare line feeds are sent as cr/lf pairs like SSIP expects.
+ * No escaped copy of the text is ever built, so even multi megabyte documents only need the buffers of this writer.</p>
+ * <p>Instances are not thread safe, the connection serializes writes.</p>
+ *
+ * @author ragb
+ *
+ * @see SSIPConnection
+ */
+final class SSIPWriter {
+	/**
+	 * Size of the character staging buffer.
+	 */
+	private static final int CHAR_CAPACITY = 4096;
+
+	/**
+	 * Size of the byte buffer, written to the channel whenever it fills up.
+	 */
+	private static final int BYTE_CAPACITY = 16384;
+
+	private final WritableByteChannel _channel;
+	private final CharsetEncoder _encoder;
+	/**
+	 * Characters waiting to be encoded.
+	 */
+	private final CharBuffer _chars;
+	/**
+	 * Encoded bytes waiting to be written, in write mode.
+	 */
+	private final ByteBuffer _bytes;
+	/**
+	 * Metrics counting the bytes written.
+	 */
+	private final SSIPMetrics _metrics;
+
+	/**
+	 * Constructs a new writer.
+	 * @param channel the channel to write to
+	 * @param charset the charset used to encode commands and data
+	 * @param metrics the metrics counting the bytes written
+	 */
+	SSIPWriter (WritableByteChannel channel, Charset charset, SSIPMetrics metrics) {
+		_channel = channel;
+		_metrics = metrics;
+		// like OutputStreamWriter, characters that can't be encoded are replaced
+		_encoder = charset.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		_chars = CharBuffer.allocate(CHAR_CAPACITY);
+		// direct, so the channel writes it without another copy
+		_bytes = ByteBuffer.allocateDirect(BYTE_CAPACITY);
+	}
+
+	/**
+	 * Writes a command line.
+	 * @param command the command
+	 * @throws IOException on I/O errors
+	 */
+	void writeCommand (SSIPCommand command) throws IOException {
+		append(command.toString());
+		append('\r');
+		append('\n');
+		encode(true);
+	}
+
+	/**
+	 * Writes a data block, escaping it, followed by the end of data mark.
+	 * @param data the data
+	 * @throws IOException on I/O errors
+	 */
+	void writeData (CharSequence data) throws IOException {
+		boolean lineStart = true;
+		char previous = 0;
+		int length = data.length();
+		for (int i = 0; i < length; i++) {
+			char c = data.charAt(i);
+			if (lineStart && c == '.')
+				append('.');
+			if (c == '\n' && previous != '\r')
+				append('\r');
+			append(c);
+			lineStart = c == '\n';
+			previous = c;
+		}
+		append("\r\n.\r\n");
+		encode(true);
+	}
+
+	/**
+	 * Writes all buffered bytes to the channel.
+	 * @throws IOException on I/O errors
+	 */
+	void flush () throws IOException {
+		_bytes.flip();
+		try {
+			while (_bytes.hasRemaining())
+				_channel.write(_bytes);
+		} finally {
+			_metrics.bytesOut(_bytes.position());
+			_bytes.clear();
+		}
+	}
+
+	private void append (char c) throws IOException {
+		if (!_chars.hasRemaining())
+			encode(false);
+		_chars.put(c);
+	}
+
+	private void append (String s) throws IOException {
+		int length = s.length();
+		for (int i = 0; i < length; ) {
+			if (!_chars.hasRemaining())
+				encode(false);
+			int n = Math.min(length - i, _chars.remaining());
+			_chars.put(s, i, i + n);
+			i += n;
+		}
+	}
+
+	/**
+	 * Encodes the staged characters into the byte buffer, writing it to the channel when it fills up.
+	 * @param endOfInput {@code true} at the end of a command or data block, when no more characters follow
+	 * @throws IOException on I/O errors
+	 */
+	private void encode (boolean endOfInput) throws IOException {
+		_chars.flip();
+		try {
+			CoderResult result;
+			while ((result = _encoder.encode(_chars, _bytes, endOfInput)).isOverflow())
+				flush();
+			if (result.isError())
+				throw new CharacterCodingException();
+			if (endOfInput) {
+				while (_encoder.flush(_bytes).isOverflow())
+					flush();
+				_encoder.reset();
+			}
+		} finally {
+			// keeps a high surrogate waiting for its pair
+			_chars.compact();
+		}
+	}
+}
@@ -0,0 +1,1002 @@
+/*
+ * FakeSSIPServer.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.tests;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import speechd.ssip.SSIPEvent;
+
+/**
+ * An in-process stand-in for speech-dispatcher, so tests and benchmarks run
+ * without a daemon.
+ * <p>
+ * It answers every command {@code SSIPClient} sends: {@code SET},
+ * {@code SPEAK} with its data, {@code CHAR}, {@code KEY},
+ * {@code SOUND_ICON}, {@code STOP}, {@code CANCEL}, {@code PAUSE},
+ * {@code RESUME}, {@code BLOCK}, {@code LIST}, {@code HISTORY GET CLIENT_ID}
+ * and {@code QUIT}. Messages are "spoken" one after another per client, each
+ * taking the configured speaking time, and the 7xx events the client asked
+ * for with {@code SET self NOTIFICATION} are sent as they would be:
+ * {@code BEGIN}, an {@code INDEX MARK} for each SSML {@code <mark/>} spread
+ * over the message, {@code END}, and {@code CANCELED}, {@code PAUSED} and
+ * {@code RESUMED} on {@code STOP}, {@code CANCEL}, {@code PAUSE} and
+ * {@code RESUME}. Priorities are accepted but don't interrupt anything.
+ * </p>
+ * <p>
+ * The server can be scripted while running: {@link #setLatency(long, TimeUnit)}
+ * delays every response, {@link #failCommand(String, int)} answers a command
+ * with an error code, {@link #setOutputModules(Map)} sets the output modules
+ * and the voices of each, {@link #setFragmentSize(int)} splits what is sent
+ * in small pieces and {@link #dropConnections()} disconnects every client.
+ * What clients send can be recorded, see {@link #setRecording(boolean)}.
+ * </p>
+ * <p>
+ * A single thread serves all connections with a selector, so thousands of
+ * clients can be connected for load tests. The server listens on any number
+ * of TCP and unix domain sockets, see {@link #listenTcp(int)} and
+ * {@link #listenUnix(Path)}. Run {@link #main(String[])} for a standalone
+ * server.
+ * </p>
+ *
+ * @author ragb
+ */
+public class FakeSSIPServer implements Closeable, Runnable {
+  /**
+   * Synthesis voices listed by default, as name, language and variant.
+   */
+  public static final List<String> DEFAULT_SYNTHESIS_VOICES = Collections
+      .unmodifiableList(Arrays.asList("alice en none", "bob en-GB none",
+          "carla pt none", "dora pt-BR none"));
+
+  private static final String[] VOICES = { "MALE1", "MALE2", "MALE3",
+      "FEMALE1", "FEMALE2", "FEMALE3", "CHILD_MALE", "CHILD_FEMALE" };
+
+  /**
+   * Pause between fragments, see {@link #setFragmentSize(int)}.
+   */
+  private static final long FRAGMENT_PAUSE_NANOS = TimeUnit.MILLISECONDS
+      .toNanos(1);
+
+  /**
+   * Event codes, by {@link SSIPEvent.EventType} ordinal.
+   */
+  private static final String[] EVENTS = { "700 INDEX MARK", "701 BEGIN",
+      "702 END", "703 CANCELED", "704 PAUSED", "705 RESUMED" };
+
+  private final Selector _selector;
+  private final Thread _thread;
+  private volatile boolean _open = true;
+  private final Logger _logger = Logger.getLogger("speechd.tests.FakeSSIPServer");
+  /**
+   * tasks to run on the server thread, such as binding listeners
+   */
+  private final Queue<Runnable> _tasks = new ConcurrentLinkedQueue<Runnable>();
+  /**
+   * delayed responses and events, only used by the server thread
+   */
+  private final PriorityQueue<Timer> _timers = new PriorityQueue<Timer>();
+  private long _timerSequence;
+  private final List<Path> _socketFiles = new ArrayList<Path>();
+  /**
+   * connected clients by id, only used by the server thread
+   */
+  private final Map<Integer, Client> _clients = new HashMap<Integer, Client>();
+  private int _nextClientId = 1;
+  private int _nextMessageId = 1;
+
+  private volatile long _latencyNanos;
+  private volatile long _speakingNanos = TimeUnit.MILLISECONDS.toNanos(100);
+  /**
+   * synthesis voices by output module, the first module is the default
+   */
+  private volatile Map<String, List<String>> _modules = Collections
+      .singletonMap("fake", DEFAULT_SYNTHESIS_VOICES);
+  /**
+   * error codes to answer, by upper case command
+   */
+  private final Map<String, Integer> _failures = new ConcurrentHashMap<String, Integer>();
+
+  private volatile int _fragmentSize;
+  private volatile boolean _recording;
+  /**
+   * lines received while recording
+   */
+  private final List<String> _recorded = Collections
+      .synchronizedList(new ArrayList<String>());
+
+  private final AtomicInteger _connections = new AtomicInteger();
+  private final LongAdder _bareLineFeeds = new LongAdder();
+  private final LongAdder _commands = new LongAdder();
+  private final LongAdder _messages = new LongAdder();
+
+  /**
+   * Starts a server, not listening yet.
+   *
+   * @throws IOException
+   *           if the selector can't be opened
+   */
+  public FakeSSIPServer () throws IOException {
+    _selector = Selector.open();
+    _thread = new Thread(this, "fake SSIP server");
+    _thread.setDaemon(true);
+    _thread.start();
+  }
+
+  /**
+   * Listens on a TCP port of the loopback interface.
+   *
+   * @param port
+   *          the port, 0 for any free port
+   * @return the address listened on
+   * @throws IOException
+   *           if the port can't be bound
+   */
+  public InetSocketAddress listenTcp (int port) throws IOException {
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+        4096);
+    listen(server);
+    return (InetSocketAddress) server.getLocalAddress();
+  }
+
+  /**
+   * Listens on a unix domain socket, the socket file is deleted on
+   * {@link #close()}.
+   *
+   * @param path
+   *          the socket file, must not exist
+   * @return the address listened on
+   * @throws IOException
+   *           if the socket can't be bound
+   */
+  public UnixDomainSocketAddress listenUnix (Path path) throws IOException {
+    ServerSocketChannel server = ServerSocketChannel
+        .open(StandardProtocolFamily.UNIX);
+    UnixDomainSocketAddress address = UnixDomainSocketAddress.of(path);
+    server.bind(address, 4096);
+    synchronized (_socketFiles) {
+      _socketFiles.add(path);
+    }
+    listen(server);
+    return address;
+  }
+
+  /**
+   * Delays every response, events are not delayed. Responses stay in order
+   * when the latency changes.
+   *
+   * @param latency
+   *          the delay, 0 for none
+   * @param unit
+   *          the unit of the delay
+   */
+  public void setLatency (long latency, TimeUnit unit) {
+    _latencyNanos = unit.toNanos(latency);
+  }
+
+  /**
+   * Sets how long each message takes to speak, 100 milliseconds by default.
+   *
+   * @param time
+   *          the speaking time
+   * @param unit
+   *          the unit of the time
+   */
+  public void setSpeakingTime (long time, TimeUnit unit) {
+    _speakingNanos = unit.toNanos(time);
+  }
+
+  /**
+   * Answers a command with an error from now on. A failed {@code SPEAK}
+   * doesn't receive data, like the real server its data lines are taken as
+   * commands.
+   *
+   * @param command
+   *          the command, such as {@code SPEAK} or {@code SET}
+   * @param code
+   *          the error code, such as 401
+   */
+  public void failCommand (String command, int code) {
+    _failures.put(command.toUpperCase(Locale.ROOT), code);
+  }
+
+  /**
+   * Stops failing commands.
+   */
+  public void clearFailures () {
+    _failures.clear();
+  }
+
+  /**
+   * Sets the voices answered to {@code LIST SYNTHESIS_VOICES} for the default
+   * output module.
+   *
+   * @param voices
+   *          the voice lines, as sent to the client
+   */
+  public void setSynthesisVoices (List<String> voices) {
+    Map<String, List<String>> modules = new LinkedHashMap<String, List<String>>(
+        _modules);
+    modules.put(modules.keySet().iterator().next(), voices);
+    setOutputModules(modules);
+  }
+
+  /**
+   * Sets the output modules answered to {@code LIST OUTPUT_MODULES}, each
+   * with the voices listed while it is set with {@code SET OUTPUT_MODULE}.
+   * Clients start with the first module.
+   *
+   * @param modules
+   *          the voice lines, as sent to the client, by module name
+   */
+  public void setOutputModules (Map<String, List<String>> modules) {
+    if (modules.isEmpty())
+      throw new IllegalArgumentException("no output modules");
+    Map<String, List<String>> copy = new LinkedHashMap<String, List<String>>();
+    for (Map.Entry<String, List<String>> e : modules.entrySet())
+      copy.put(e.getKey(), Collections.unmodifiableList(new ArrayList<String>(
+          e.getValue())));
+    _modules = Collections.unmodifiableMap(copy);
+  }
+
+  /**
+   * Splits everything sent to clients, responses and events, in pieces of a
+   * few bytes with a pause between them, so clients receive lines in several
+   * reads.
+   *
+   * @param bytes
+   *          the size of the pieces, 0 to send at once
+   */
+  public void setFragmentSize (int bytes) {
+    _fragmentSize = bytes;
+  }
+
+  /**
+   * Starts or stops recording the lines clients send, commands and data.
+   * Starting forgets the lines recorded before.
+   *
+   * @param recording
+   *          {@code true} to record
+   */
+  public void setRecording (boolean recording) {
+    if (recording)
+      _recorded.clear();
+    _recording = recording;
+  }
+
+  /**
+   * Gets the lines recorded, as received without their line end: data lines
+   * are still escaped.
+   *
+   * @return a copy of the lines, in the order received
+   */
+  public List<String> getRecordedLines () {
+    synchronized (_recorded) {
+      return new ArrayList<String>(_recorded);
+    }
+  }
+
+  /**
+   * Gets the number of lines received ending with a bare line feed, not with
+   * a carriage return and a line feed as SSIP requires.
+   *
+   * @return the line count
+   */
+  public long getBareLineFeedCount () {
+    return _bareLineFeeds.sum();
+  }
+
+  /**
+   * Closes every client connection at once, as if the server had crashed.
+   *
+   * @throws IOException
+   *           if the server thread can't be reached
+   */
+  public void dropConnections () throws IOException {
+    onServerThread(new Callable<Void>() {
+      public Void call () {
+        for (Client client : new ArrayList<Client>(_clients.values()))
+          client.close();
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Gets the number of clients connected now.
+   *
+   * @return the connection count
+   */
+  public int getConnectionCount () {
+    return _connections.get();
+  }
+
+  /**
+   * Gets the number of commands received, data blocks not included.
+   *
+   * @return the command count
+   */
+  public long getCommandCount () {
+    return _commands.sum();
+  }
+
+  /**
+   * Gets the number of messages queued, by {@code SPEAK}, {@code CHAR},
+   * {@code KEY} and {@code SOUND_ICON}.
+   *
+   * @return the message count
+   */
+  public long getMessageCount () {
+    return _messages.sum();
+  }
+
+  /**
+   * Stops the server, closing all connections and listeners.
+   */
+  public void close () throws IOException {
+    _open = false;
+    _selector.wakeup();
+    try {
+      _thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (_socketFiles) {
+      for (Path path : _socketFiles)
+        Files.deleteIfExists(path);
+    }
+  }
+
+  public void run () {
+    try {
+      while (_open) {
+        Timer next = _timers.peek();
+        if (next == null)
+          _selector.select();
+        else {
+          long wait = next.deadline - System.nanoTime();
+          if (wait <= 0)
+            _selector.selectNow();
+          else
+            _selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+        }
+        Runnable task;
+        while ((task = _tasks.poll()) != null)
+          task.run();
+        Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid())
+            continue;
+          if (key.isAcceptable())
+            accept((ServerSocketChannel) key.channel());
+          else {
+            Client client = (Client) key.attachment();
+            if (key.isWritable())
+              client.drain();
+            if (key.isValid() && key.isReadable())
+              client.read();
+          }
+        }
+        long now = System.nanoTime();
+        while ((next = _timers.peek()) != null && next.deadline - now <= 0) {
+          _timers.poll();
+          next.action.run();
+        }
+      }
+    } catch (IOException e) {
+      // the clients see their connections closed
+      _logger.log(Level.SEVERE, "server thread stopped by an I/O error", e);
+    } finally {
+      for (SelectionKey key : _selector.keys())
+        closeQuietly(key.channel());
+      closeQuietly(_selector);
+    }
+  }
+
+  /**
+   * Runs a standalone server until killed.
+   * <p>
+   * Usage:
+   * {@code FakeSSIPServer [port | socket path] [speaking time in milliseconds]}
+   * , port 6560 by default.
+   * </p>
+   */
+  public static void main (String[] args) throws Exception {
+    FakeSSIPServer server = new FakeSSIPServer();
+    String where = (args.length > 0) ? args[0] : "6560";
+    SocketAddress address;
+    if (where.matches("\\d+"))
+      address = server.listenTcp(Integer.parseInt(where));
+    else
+      address = server.listenUnix(Paths.get(where));
+    if (args.length > 1)
+      server.setSpeakingTime(Long.parseLong(args[1]), TimeUnit.MILLISECONDS);
+    System.out.println("fake SSIP server listening on " + address);
+    server._thread.join();
+  }
+
+  private void listen (final ServerSocketChannel server) throws IOException {
+    server.configureBlocking(false);
+    onServerThread(new Callable<Void>() {
+      public Void call () throws IOException {
+        server.register(_selector, SelectionKey.OP_ACCEPT);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Runs a task on the server thread and waits for it.
+   */
+  private <T> T onServerThread (Callable<T> task) throws IOException {
+    FutureTask<T> future = new FutureTask<T>(task);
+    _tasks.add(future);
+    _selector.wakeup();
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+  }
+
+  private void accept (ServerSocketChannel server) throws IOException {
+    SocketChannel channel;
+    while ((channel = server.accept()) != null) {
+      channel.configureBlocking(false);
+      // responses are written as soon as they are ready, often several per
+      // request, Nagle's algorithm would hold them for the client's ack
+      if (channel.getLocalAddress() instanceof InetSocketAddress)
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      Client client = new Client(channel, _nextClientId++);
+      client.key = channel.register(_selector, SelectionKey.OP_READ, client);
+      _clients.put(client.id, client);
+      _connections.incrementAndGet();
+    }
+  }
+
+  private void schedule (long deadline, Runnable action) {
+    _timers.add(new Timer(deadline, _timerSequence++, action));
+  }
+
+  private static void closeQuietly (Closeable c) {
+    try {
+      c.close();
+    } catch (IOException e) {
+      // nothing more to do
+    }
+  }
+
+  /**
+   * A delayed action, ordered by deadline then by scheduling order.
+   */
+  private static class Timer implements Comparable<Timer> {
+    final long deadline;
+    final long sequence;
+    final Runnable action;
+
+    Timer (long deadline, long sequence, Runnable action) {
+      this.deadline = deadline;
+      this.sequence = sequence;
+      this.action = action;
+    }
+
+    public int compareTo (Timer o) {
+      long d = deadline - o.deadline;
+      if (d != 0)
+        return (d < 0) ? -1 : 1;
+      return Long.compare(sequence, o.sequence);
+    }
+  }
+
+  /**
+   * A message waiting to be spoken or being spoken.
+   */
+  private static class Message {
+    final int id;
+    final List<String> marks;
+    /**
+     * marks already sent, the END event follows the last one
+     */
+    int step;
+    boolean begun;
+    /**
+     * time left of the current step when paused
+     */
+    long remaining;
+
+    Message (int id, List<String> marks) {
+      this.id = id;
+      this.marks = marks;
+    }
+  }
+
+  /**
+   * A client connection and its protocol state.
+   */
+  private class Client {
+    final SocketChannel channel;
+    final int id;
+    SelectionKey key;
+    final ByteBuffer in = ByteBuffer.allocate(8192);
+    byte[] line = new byte[256];
+    int length;
+    /**
+     * data mode, after an accepted SPEAK
+     */
+    boolean data;
+    /**
+     * output module set, {@code null} for the default one
+     */
+    String module;
+    final List<String> marks = new ArrayList<String>();
+    final boolean[] notify = new boolean[EVENTS.length];
+    final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+    /**
+     * time the last response is sent, later responses can't go before
+     */
+    long replyAt;
+    final ArrayDeque<Message> messages = new ArrayDeque<Message>();
+    boolean paused;
+    /**
+     * deadline of the current step of the first message
+     */
+    long stepDeadline;
+    /**
+     * incremented to cancel the scheduled step of the first message
+     */
+    int generation;
+    /**
+     * time the last fragment is sent, see {@link #setFragmentSize(int)}
+     */
+    long fragmentAt;
+    /**
+     * set by {@code QUIT}, the connection is closed once all is written
+     */
+    boolean closing;
+    boolean closed;
+
+    Client (SocketChannel channel, int id) {
+      this.channel = channel;
+      this.id = id;
+    }
+
+    void read () {
+      in.clear();
+      int n;
+      try {
+        n = channel.read(in);
+      } catch (IOException e) {
+        n = -1;
+      }
+      if (n < 0) {
+        close();
+        return;
+      }
+      in.flip();
+      while (in.hasRemaining() && !closed) {
+        byte b = in.get();
+        if (b != '\n') {
+          if (length == line.length)
+            line = Arrays.copyOf(line, length * 2);
+          line[length++] = b;
+          continue;
+        }
+        int end = (length > 0 && line[length - 1] == '\r') ? length - 1
+            : length;
+        if (end == length)
+          _bareLineFeeds.increment();
+        String text = new String(line, 0, end, StandardCharsets.UTF_8);
+        length = 0;
+        if (_recording)
+          _recorded.add(text);
+        if (data)
+          dataLine(text);
+        else
+          command(text);
+      }
+    }
+
+    void dataLine (String text) {
+      if (text.equals(".")) {
+        data = false;
+        queue(new ArrayList<String>(marks));
+        marks.clear();
+        return;
+      }
+      int i = 0;
+      while ((i = text.indexOf("<mark name=\"", i)) >= 0) {
+        i += 12;
+        int end = text.indexOf('"', i);
+        if (end < 0)
+          break;
+        marks.add(text.substring(i, end));
+      }
+    }
+
+    void command (String text) {
+      _commands.increment();
+      String[] args = text.trim().split(" +");
+      String verb = args[0].toUpperCase(Locale.ROOT);
+      Integer failure = _failures.get(verb);
+      if (failure != null) {
+        reply(failure + " ERR INJECTED FAILURE\r\n", null);
+        return;
+      }
+      if (verb.equals("SET"))
+        set(args);
+      else if (verb.equals("SPEAK")) {
+        data = true;
+        reply("230 OK RECEIVING DATA\r\n", null);
+      } else if (verb.equals("CHAR") || verb.equals("KEY")
+          || verb.equals("SOUND_ICON"))
+        queue(Collections.<String> emptyList());
+      else if (verb.equals("STOP") || verb.equals("CANCEL")) {
+        boolean all = verb.equals("CANCEL");
+        for (Client target : targets(args))
+          target.cancel(all);
+        reply(all ? "213 OK CANCELED\r\n" : "210 OK STOPPED\r\n", null);
+      } else if (verb.equals("PAUSE")) {
+        for (Client target : targets(args))
+          target.pause();
+        reply("211 OK PAUSED\r\n", null);
+      } else if (verb.equals("RESUME")) {
+        for (Client target : targets(args))
+          target.resume();
+        reply("212 OK RESUMED\r\n", null);
+      } else if (verb.equals("BLOCK") && args.length > 1) {
+        if (args[1].equalsIgnoreCase("BEGIN"))
+          reply("260 OK INSIDE BLOCK\r\n", null);
+        else
+          reply("261 OK OUTSIDE BLOCK\r\n", null);
+      } else if (verb.equals("LIST") && args.length > 1)
+        list(args[1].toUpperCase(Locale.ROOT));
+      else if (verb.equals("HISTORY") && args.length > 2
+          && args[2].equalsIgnoreCase("CLIENT_ID"))
+        reply("245-" + id + "\r\n245 OK CLIENT ID SENT\r\n", null);
+      else if (verb.equals("QUIT")) {
+        reply("231 HAPPY HACKING\r\n", new Runnable() {
+          public void run () {
+            closeAfterWrite();
+          }
+        });
+      } else
+        reply("500 ERR INVALID COMMAND\r\n", null);
+    }
+
+    void set (String[] args) {
+      if (args.length < 4) {
+        reply("410 ERR MISSING PARAMETER\r\n", null);
+        return;
+      }
+      String param = args[2].toUpperCase(Locale.ROOT);
+      if (param.equals("NOTIFICATION") && args.length > 4) {
+        boolean on = args[4].equalsIgnoreCase("on");
+        String type = args[3].toUpperCase(Locale.ROOT);
+        for (Client target : targets(args)) {
+          for (SSIPEvent.EventType t : SSIPEvent.EventType.values()) {
+            if (type.equals("ALL") || type.startsWith(t.toString()))
+              target.notify[t.ordinal()] = on;
+          }
+        }
+      } else if (param.equals("OUTPUT_MODULE")) {
+        for (Client target : targets(args))
+          target.module = args[3];
+      }
+      reply("200 OK " + param + " SET\r\n", null);
+    }
+
+    void list (String what) {
+      StringBuilder b = new StringBuilder();
+      Map<String, List<String>> modules = _modules;
+      if (what.equals("SYNTHESIS_VOICES")) {
+        List<String> voices = (module != null) ? modules.get(module)
+            : modules.values().iterator().next();
+        for (String voice : (voices != null) ? voices : Collections
+            .<String> emptyList())
+          b.append("249-").append(voice).append("\r\n");
+        b.append("249 OK VOICE LIST SENT\r\n");
+      } else if (what.equals("VOICES")) {
+        for (String voice : VOICES)
+          b.append("249-").append(voice).append("\r\n");
+        b.append("249 OK VOICE LIST SENT\r\n");
+      } else if (what.equals("OUTPUT_MODULES")) {
+        for (String name : modules.keySet())
+          b.append("250-").append(name).append("\r\n");
+        b.append("250 OK MODULE LIST SENT\r\n");
+      } else
+        b.append("500 ERR INVALID COMMAND\r\n");
+      reply(b.toString(), null);
+    }
+
+    /**
+     * Gets the clients a command applies to, from its target argument:
+     * {@code self}, {@code all} or a client id.
+     */
+    List<Client> targets (String[] args) {
+      if (args.length < 2 || args[1].equalsIgnoreCase("self"))
+        return Collections.singletonList(this);
+      if (args[1].equalsIgnoreCase("all"))
+        return new ArrayList<Client>(_clients.values());
+      try {
+        Client c = _clients.get(Integer.valueOf(args[1]));
+        if (c != null)
+          return Collections.singletonList(c);
+      } catch (NumberFormatException e) {
+        // no such client
+      }
+      return Collections.emptyList();
+    }
+
+    /**
+     * Queues a message, it is spoken once the response is sent.
+     */
+    void queue (List<String> marks) {
+      _messages.increment();
+      final Message message = new Message(_nextMessageId++, marks);
+      reply("225-" + message.id + "\r\n225 OK MESSAGE QUEUED\r\n",
+          new Runnable() {
+            public void run () {
+              messages.add(message);
+              if (messages.size() == 1 && !paused)
+                step(message, System.nanoTime());
+            }
+          });
+    }
+
+    /**
+     * Moves the first message to its next step: beginning, index marks and
+     * end, each after an equal part of the speaking time.
+     */
+    void step (final Message message, long now) {
+      if (!message.begun) {
+        message.begun = true;
+        event(SSIPEvent.EventType.BEGIN, message.id, null);
+      } else if (message.step < message.marks.size()) {
+        event(SSIPEvent.EventType.INDEX_MARK, message.id, message.marks
+            .get(message.step++));
+      } else {
+        event(SSIPEvent.EventType.END, message.id, null);
+        messages.poll();
+        Message next = messages.peek();
+        if (next != null)
+          step(next, now);
+        return;
+      }
+      scheduleStep(message, now + _speakingNanos / (message.marks.size() + 1));
+    }
+
+    void scheduleStep (final Message message, long deadline) {
+      final int generation = ++this.generation;
+      stepDeadline = deadline;
+      schedule(deadline, new Runnable() {
+        public void run () {
+          if (generation == Client.this.generation && !closed)
+            step(message, System.nanoTime());
+        }
+      });
+    }
+
+    /**
+     * Cancels the message being spoken, or all messages.
+     */
+    void cancel (boolean all) {
+      generation++;
+      while (!messages.isEmpty()) {
+        Message message = messages.poll();
+        event(SSIPEvent.EventType.CANCEL, message.id, null);
+        if (!all)
+          break;
+      }
+      Message next = messages.peek();
+      if (next != null && !paused)
+        step(next, System.nanoTime());
+    }
+
+    void pause () {
+      Message message = messages.peek();
+      if (paused)
+        return;
+      paused = true;
+      if (message != null && message.begun) {
+        generation++;
+        message.remaining = Math.max(0, stepDeadline - System.nanoTime());
+        event(SSIPEvent.EventType.PAUSE, message.id, null);
+      }
+    }
+
+    void resume () {
+      if (!paused)
+        return;
+      paused = false;
+      Message message = messages.peek();
+      if (message == null)
+        return;
+      if (message.begun) {
+        event(SSIPEvent.EventType.RESUME, message.id, null);
+        scheduleStep(message, System.nanoTime() + message.remaining);
+      } else
+        step(message, System.nanoTime());
+    }
+
+    void event (SSIPEvent.EventType type, int msgId, String mark) {
+      if (!notify[type.ordinal()])
+        return;
+      String code = EVENTS[type.ordinal()].substring(0, 3);
+      StringBuilder b = new StringBuilder();
+      b.append(code).append('-').append(msgId).append("\r\n");
+      b.append(code).append('-').append(id).append("\r\n");
+      if (mark != null)
+        b.append(code).append('-').append(mark).append("\r\n");
+      b.append(EVENTS[type.ordinal()]).append("\r\n");
+      write(b.toString());
+    }
+
+    /**
+     * Sends a response after the injected latency and after all earlier
+     * responses, then runs an action.
+     */
+    void reply (final String response, final Runnable after) {
+      long now = System.nanoTime();
+      long at = Math.max(now + _latencyNanos, replyAt);
+      replyAt = at;
+      if (at - now <= 0) {
+        write(response);
+        if (after != null)
+          after.run();
+        return;
+      }
+      schedule(at, new Runnable() {
+        public void run () {
+          if (closed)
+            return;
+          write(response);
+          if (after != null)
+            after.run();
+        }
+      });
+    }
+
+    void write (String text) {
+      if (closed)
+        return;
+      byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+      int size = _fragmentSize;
+      if (size <= 0) {
+        send(ByteBuffer.wrap(bytes));
+        return;
+      }
+      long now = System.nanoTime();
+      for (int i = 0; i < bytes.length; i += size) {
+        fragmentAt = Math.max(fragmentAt, now) + FRAGMENT_PAUSE_NANOS;
+        final ByteBuffer fragment = ByteBuffer.wrap(bytes, i, Math.min(size,
+            bytes.length - i));
+        schedule(fragmentAt, new Runnable() {
+          public void run () {
+            if (!closed)
+              send(fragment);
+          }
+        });
+      }
+    }
+
+    void send (ByteBuffer bytes) {
+      if (out.isEmpty()) {
+        try {
+          channel.write(bytes);
+        } catch (IOException e) {
+          close();
+          return;
+        }
+        if (!bytes.hasRemaining())
+          return;
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+      out.add(bytes);
+    }
+
+    void drain () {
+      try {
+        while (!out.isEmpty()) {
+          ByteBuffer bytes = out.peek();
+          channel.write(bytes);
+          if (bytes.hasRemaining())
+            return;
+          out.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        if (closing)
+          close();
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    void closeAfterWrite () {
+      if (fragmentAt - System.nanoTime() > 0) {
+        // fragments still to send
+        schedule(fragmentAt, new Runnable() {
+          public void run () {
+            closeAfterWrite();
+          }
+        });
+        return;
+      }
+      closing = true;
+      if (out.isEmpty())
+        close();
+    }
+
+    void close () {
+      if (closed)
+        return;
+      closed = true;
+      key.cancel();
+      closeQuietly(channel);
+      _clients.remove(id);
+      _connections.decrementAndGet();
+    }
+  }
+}
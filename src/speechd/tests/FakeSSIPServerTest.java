@@ -0,0 +1,254 @@
+/*
+ * FakeSSIPServerTest.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.tests;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import speechd.ssip.SSIPAdmissionController;
+import speechd.ssip.SSIPClient;
+import speechd.ssip.SSIPCoalescingChannel;
+import speechd.ssip.SSIPCommandException;
+import speechd.ssip.SSIPEvent;
+import speechd.ssip.SSIPEventHandler;
+import speechd.ssip.SSIPPriority;
+import speechd.ssip.SSIPPriorityScheduler;
+import speechd.ssip.SSIPSynthesisVoice;
+import speechd.ssip.SSIPVoiceCatalogue;
+import junit.framework.TestCase;
+
+/**
+ * Runs {@code SSIPClient} against a {@link FakeSSIPServer}, no
+ * speech-dispatcher needed.
+ *
+ * @author ragb
+ */
+public class FakeSSIPServerTest extends TestCase implements SSIPEventHandler {
+  private FakeSSIPServer _server;
+  private SSIPClient _client;
+  private BlockingQueue<SSIPEvent> _queue;
+
+  protected void setUp () throws Exception {
+    super.setUp();
+    _server = new FakeSSIPServer();
+    _server.setSpeakingTime(20, TimeUnit.MILLISECONDS);
+    _client = new SSIPClient("test", null, null, _server.listenTcp(0));
+    _queue = new LinkedBlockingQueue<SSIPEvent>();
+    _client.setEventHandler(this);
+  }
+
+  protected void tearDown () throws Exception {
+    super.tearDown();
+    _client.close();
+    _server.close();
+  }
+
+  public void testSayEvents () throws Exception {
+    _client.setNotification(true);
+    int id = _client.say(SSIPPriority.MESSAGE,
+        "<speak>one <mark name=\"m1\"/> two</speak>");
+    SSIPEvent e = take();
+    assertEquals(SSIPEvent.EventType.BEGIN, e.getType());
+    assertEquals(id, e.getMsgId());
+    e = take();
+    assertEquals(SSIPEvent.EventType.INDEX_MARK, e.getType());
+    assertEquals("m1", e.getIndexMark());
+    assertEquals(SSIPEvent.EventType.END, take().getType());
+    assertEquals(1, _server.getMessageCount());
+  }
+
+  public void testCancel () throws Exception {
+    _server.setSpeakingTime(10, TimeUnit.SECONDS);
+    _client.setNotification(true);
+    int first = _client.say(SSIPPriority.TEXT, "first");
+    int second = _client.say(SSIPPriority.TEXT, "second");
+    assertEquals(SSIPEvent.EventType.BEGIN, take().getType());
+    _client.cancel();
+    SSIPEvent e = take();
+    assertEquals(SSIPEvent.EventType.CANCEL, e.getType());
+    assertEquals(first, e.getMsgId());
+    assertEquals(second, take().getMsgId());
+  }
+
+  public void testSayStream () throws Exception {
+    List<Integer> ids = _client.sayStream(SSIPPriority.TEXT,
+        "First sentence. Second one!\nAnd the third?");
+    assertEquals(3, ids.size());
+    assertEquals(3, _server.getMessageCount());
+    assertTrue(ids.get(0) < ids.get(1) && ids.get(1) < ids.get(2));
+  }
+
+  public void testCoalescing () throws Exception {
+    _server.setLatency(20, TimeUnit.MILLISECONDS);
+    SSIPCoalescingChannel channel = new SSIPCoalescingChannel(_client);
+    for (int i = 0; i <= 100; i++)
+      channel.say("progress", SSIPPriority.PROgRESS, i + "%");
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (channel.getSentCount() + channel.getCoalescedCount() < 101
+        && System.nanoTime() < deadline)
+      Thread.sleep(10);
+    channel.close();
+    assertEquals(101, channel.getSubmittedCount());
+    assertEquals(101, channel.getSentCount() + channel.getCoalescedCount());
+    assertTrue(channel.getSentCount() < 101);
+    assertEquals(0, channel.getFailedCount());
+  }
+
+  public void testPriorityScheduler () throws Exception {
+    _server.setLatency(50, TimeUnit.MILLISECONDS);
+    SSIPPriorityScheduler scheduler = new SSIPPriorityScheduler(_client);
+    assertTrue(scheduler.say(SSIPPriority.TEXT, "sent while the others wait"));
+    Thread.sleep(10);
+    assertTrue(scheduler.say(SSIPPriority.TEXT, "discarded"));
+    assertFalse(scheduler.say(SSIPPriority.NOTIFICATION, "dropped"));
+    assertTrue(scheduler.say(SSIPPriority.MESSAGE, "discards the text"));
+    assertTrue(scheduler.say(SSIPPriority.IMPORTANT, "sent first"));
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (scheduler.getSentCount() < 3 && System.nanoTime() < deadline)
+      Thread.sleep(10);
+    assertEquals(0, scheduler.getPendingCount());
+    scheduler.close();
+    assertEquals(3, scheduler.getSentCount());
+    assertEquals(1, scheduler.getDiscardedCount(SSIPPriority.TEXT));
+    assertEquals(1, scheduler.getDiscardedCount(SSIPPriority.NOTIFICATION));
+  }
+
+  public void testAdmissionController () throws Exception {
+    _server.setSpeakingTime(300, TimeUnit.MILLISECONDS);
+    SSIPAdmissionController admission = new SSIPAdmissionController(50,
+        TimeUnit.MILLISECONDS);
+    _client.setAdmissionController(admission);
+    assertTrue(_client.say(SSIPPriority.TEXT, "spoken") > 0);
+    assertTrue(_client.say(SSIPPriority.TEXT, "waits") > 0);
+    Thread.sleep(150);
+    assertEquals(SSIPAdmissionController.SHED_TEXT, admission.getLevel());
+    assertEquals(-1, _client.say(SSIPPriority.PROgRESS, "shed"));
+    assertEquals(-1, _client.say(SSIPPriority.TEXT, "shed"));
+    assertTrue(_client.say(SSIPPriority.IMPORTANT, "never shed") > 0);
+    assertEquals(1, admission.getShedCount(SSIPPriority.PROgRESS));
+    assertEquals(1, admission.getShedCount(SSIPPriority.TEXT));
+    _client.cancel();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (admission.getInFlightCount() > 0 && System.nanoTime() < deadline)
+      Thread.sleep(10);
+    assertEquals(SSIPAdmissionController.ADMIT_ALL, admission.getLevel());
+  }
+
+  public void testInjectedError () throws Exception {
+    _server.failCommand("SPEAK", 401);
+    try {
+      _client.say(SSIPPriority.TEXT, "rejected");
+      fail();
+    } catch (SSIPCommandException e) {
+      assertEquals(401, e.getResponse().getCode());
+    }
+    _server.clearFailures();
+    assertTrue(_client.say(SSIPPriority.TEXT, "accepted") > 0);
+  }
+
+  public void testLatency () throws Exception {
+    _server.setLatency(50, TimeUnit.MILLISECONDS);
+    long start = System.nanoTime();
+    _client.stop();
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+  }
+
+  public void testSynthesisVoices () throws Exception {
+    List<SSIPSynthesisVoice> voices = _client.getSynthesisVoices();
+    assertEquals(FakeSSIPServer.DEFAULT_SYNTHESIS_VOICES.size(), voices.size());
+    assertEquals("alice", voices.get(0).getName());
+  }
+
+  public void testVoiceCatalogue () throws Exception {
+    _server.setSynthesisVoices(Arrays.asList("Lisa Smith\ten-US\tnone",
+        "Pedro\tpt\tnone", "Peter\ten-GB\tm1"));
+    SSIPVoiceCatalogue catalogue = _client.getVoiceCatalogue();
+    long commands = _server.getCommandCount();
+    assertSame(catalogue, _client.getVoiceCatalogue());
+    assertEquals(commands, _server.getCommandCount());
+    assertEquals("Lisa Smith", catalogue.getVoice("lisa smith").getName());
+    assertEquals(2, catalogue.getVoices("en").size());
+    assertEquals(1, catalogue.getVoices("en-GB", "m1").size());
+    assertEquals(2, catalogue.getVoicesByPrefix("pe").size());
+    assertTrue(catalogue.getVoices("fr").isEmpty());
+    _client.setOutputModule("other");
+    assertNotSame(catalogue, _client.getVoiceCatalogue());
+  }
+
+  public void testDiscoverVoices () throws Exception {
+    Map<String, List<String>> modules = new LinkedHashMap<String, List<String>>();
+    modules.put("espeak-ng", Arrays.asList("English\ten\tnone",
+        "Portuguese\tpt\tnone"));
+    modules.put("festival", Arrays.asList("kal_diphone\ten\tnone"));
+    modules.put("dummy", Collections.<String> emptyList());
+    _server.setOutputModules(modules);
+    _server.setLatency(20, TimeUnit.MILLISECONDS);
+    _server.setRecording(true);
+    long start = System.nanoTime();
+    Map<String, SSIPVoiceCatalogue> voices = _client.discoverVoices();
+    // the discovery connection quits before closing
+    List<String> lines = _server.getRecordedLines();
+    assertEquals("QUIT", lines.get(lines.size() - 1).trim().toUpperCase());
+    // two round trips, module by module it would take eight
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(20 * 6));
+    assertEquals(Arrays.asList("espeak-ng", "festival", "dummy"),
+        new ArrayList<String>(voices.keySet()));
+    assertEquals(2, voices.get("espeak-ng").size());
+    assertEquals("kal_diphone", voices.get("festival").getVoices("en").get(0)
+        .getName());
+    assertEquals(0, voices.get("dummy").size());
+    assertEquals(2, _client.getVoiceCatalogue().size());
+  }
+
+  public void testUnixSocket () throws Exception {
+    Path dir = Files.createTempDirectory("speechd-test");
+    Path path = dir.resolve("speechd.sock");
+    SSIPClient client = new SSIPClient("test", null, null, _server
+        .listenUnix(path));
+    try {
+      assertTrue(client.say(SSIPPriority.TEXT, "over a unix socket") > 0);
+      assertEquals(2, _server.getConnectionCount());
+    } finally {
+      client.close();
+      Files.delete(path);
+      Files.delete(dir);
+    }
+  }
+
+  private SSIPEvent take () throws InterruptedException {
+    SSIPEvent e = _queue.poll(5, TimeUnit.SECONDS);
+    assertNotNull(e);
+    return e;
+  }
+
+  public void handleSSIPEvent (SSIPEvent event) {
+    _queue.add(event);
+  }
+}
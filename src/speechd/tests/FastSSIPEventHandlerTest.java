@@ -0,0 +1,116 @@
+/*
+ * FastSSIPEventHandlerTest.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import speechd.ssip.FastSSIPEventHandler;
+import speechd.ssip.SSIPClient;
+import speechd.ssip.SSIPEvent;
+import speechd.ssip.SSIPEventView;
+import speechd.ssip.SSIPPriority;
+import junit.framework.TestCase;
+
+/**
+ * Checks the reused {@code SSIPEventView} given to a
+ * {@link FastSSIPEventHandler} across consecutive events, against a
+ * {@link FakeSSIPServer}.
+ *
+ * @author ragb
+ */
+public class FastSSIPEventHandlerTest extends TestCase implements
+    FastSSIPEventHandler {
+  private FakeSSIPServer _server;
+  private SSIPClient _client;
+  /**
+   * The events seen, as type, message id and index mark, of the view and of
+   * its copy.
+   */
+  private BlockingQueue<String> _queue;
+  private final List<SSIPEventView> _views = new ArrayList<SSIPEventView>();
+
+  protected void setUp () throws Exception {
+    super.setUp();
+    _server = new FakeSSIPServer();
+    _server.setSpeakingTime(0, TimeUnit.MILLISECONDS);
+    _client = new SSIPClient("test", null, null, _server.listenTcp(0));
+    _queue = new LinkedBlockingQueue<String>();
+    _client.setNotification(true);
+    _client.setFastEventHandler(this);
+  }
+
+  protected void tearDown () throws Exception {
+    super.tearDown();
+    _client.close();
+    _server.close();
+  }
+
+  public void handleSSIPEvent (SSIPEventView event) {
+    synchronized (_views) {
+      _views.add(event);
+    }
+    // checked by take(), failures here would only be logged
+    SSIPEvent copy = event.toEvent();
+    _queue.add(event.getType() + " " + event.getMsgId() + " "
+        + event.getIndexMark() + "|" + copy.getType() + " " + copy.getMsgId()
+        + " " + copy.getIndexMark());
+  }
+
+  public void testConsecutiveEvents () throws Exception {
+    StringBuilder longMark = new StringBuilder();
+    for (int i = 0; i < 100; i++)
+      longMark.append((char) ('a' + i % 26));
+    // a short name after longer ones, and names longer than the buffer
+    int first = _client.say(SSIPPriority.TEXT, "<speak>"
+        + "<mark name=\"longer_name\"/><mark name=\"m\"/>"
+        + "<mark name=\"ação\"/><mark name=\"" + longMark + "\"/></speak>");
+    int second = _client.say(SSIPPriority.TEXT,
+        "<speak><mark name=\"x\"/></speak>");
+    assertEquals("BEGIN " + first + " null", take());
+    assertEquals("INDEX_MARK " + first + " longer_name", take());
+    assertEquals("INDEX_MARK " + first + " m", take());
+    assertEquals("INDEX_MARK " + first + " ação", take());
+    assertEquals("INDEX_MARK " + first + " " + longMark, take());
+    // no index mark left over from the last event
+    assertEquals("END " + first + " null", take());
+    assertEquals("BEGIN " + second + " null", take());
+    assertEquals("INDEX_MARK " + second + " x", take());
+    assertEquals("END " + second + " null", take());
+    synchronized (_views) {
+      assertEquals(9, _views.size());
+      for (SSIPEventView view : _views)
+        assertSame(_views.get(0), view);
+    }
+  }
+
+  private String take () throws InterruptedException {
+    String e = _queue.poll(5, TimeUnit.SECONDS);
+    assertNotNull(e);
+    // the view and its copy
+    int i = e.indexOf('|');
+    assertEquals(e.substring(0, i), e.substring(i + 1));
+    return e.substring(0, i);
+  }
+}
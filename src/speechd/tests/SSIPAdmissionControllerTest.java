@@ -0,0 +1,171 @@
+/*
+ * SSIPAdmissionControllerTest.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.tests;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import speechd.ssip.SSIPAdmissionController;
+import speechd.ssip.SSIPClient;
+import speechd.ssip.SSIPCommand;
+import speechd.ssip.SSIPEvent;
+import speechd.ssip.SSIPEventDispatcher;
+import speechd.ssip.SSIPEventHandler;
+import speechd.ssip.SSIPMessage;
+import speechd.ssip.SSIPPriority;
+import junit.framework.TestCase;
+
+/**
+ * Drives a {@code SSIPAdmissionController} through its shedding levels with
+ * a slow {@link FakeSSIPServer}, speaking with {@code say}, {@code sayAsync}
+ * and {@code sayStream}, and checks it recovers from lost events.
+ *
+ * @author ragb
+ */
+public class SSIPAdmissionControllerTest extends TestCase {
+  private FakeSSIPServer _server;
+  private SSIPClient _client;
+  private SSIPAdmissionController _admission;
+  private CountDownLatch _release;
+
+  protected void setUp () throws Exception {
+    super.setUp();
+    _server = new FakeSSIPServer();
+    // the first message is spoken until canceled, the others wait
+    _server.setSpeakingTime(10, TimeUnit.SECONDS);
+    _client = new SSIPClient("test", null, null, _server.listenTcp(0));
+    _admission = new SSIPAdmissionController(100, TimeUnit.MILLISECONDS);
+    _client.setAdmissionController(_admission);
+    _release = new CountDownLatch(1);
+  }
+
+  protected void tearDown () throws Exception {
+    super.tearDown();
+    _release.countDown();
+    _client.close();
+    _server.close();
+  }
+
+  public void testLevels () throws Exception {
+    assertEquals(SSIPAdmissionController.ADMIT_ALL, _admission.getLevel());
+    assertTrue(_client.say(SSIPPriority.MESSAGE, "spoken") > 0);
+    SSIPMessage waiting = _client.sayAsync(SSIPPriority.MESSAGE, "waits");
+    assertTrue(waiting.getQueued().get(5, TimeUnit.SECONDS) > 0);
+    List<Integer> ids = _client.sayStream(SSIPPriority.TEXT,
+        "Waits too. And this.");
+    assertEquals(2, ids.size());
+    // followed from sayAsync and sayStream too
+    waitForInFlight(4);
+    assertEquals(SSIPAdmissionController.ADMIT_ALL, _admission.getLevel());
+
+    waitForLevel(SSIPAdmissionController.SHED_BACKGROUND);
+    assertEquals(-1, _client.say(SSIPPriority.PROgRESS, "shed"));
+    assertEquals(-1, _client.sayAsync(SSIPPriority.NOTIFICATION, "shed")
+        .getQueued().get().intValue());
+    assertTrue(_client.say(SSIPPriority.TEXT, "admitted") > 0);
+
+    waitForLevel(SSIPAdmissionController.SHED_TEXT);
+    assertEquals(-1, _client.say(SSIPPriority.TEXT, "shed"));
+    SSIPMessage shed = _client.sayAsync(SSIPPriority.TEXT, "shed");
+    assertEquals(-1, shed.getQueued().get().intValue());
+    assertTrue(shed.getBegin().isCancelled());
+    assertTrue(shed.getEnd().isCancelled());
+    long messages = _server.getMessageCount();
+    assertTrue(_client.sayStream(SSIPPriority.TEXT, "Shed. Whole.").isEmpty());
+    assertEquals(messages, _server.getMessageCount());
+    assertTrue(_client.say(SSIPPriority.MESSAGE, "never shed") > 0);
+    assertTrue(_client.sayAsync(SSIPPriority.IMPORTANT, "never shed")
+        .getQueued().get(5, TimeUnit.SECONDS) > 0);
+
+    assertEquals(1, _admission.getShedCount(SSIPPriority.PROgRESS));
+    assertEquals(1, _admission.getShedCount(SSIPPriority.NOTIFICATION));
+    assertEquals(3, _admission.getShedCount(SSIPPriority.TEXT));
+    assertEquals(0, _admission.getShedCount(SSIPPriority.MESSAGE));
+
+    _client.cancel();
+    waitForInFlight(0);
+    assertEquals(SSIPAdmissionController.ADMIT_ALL, _admission.getLevel());
+    assertEquals(0, _admission.getLatency(TimeUnit.NANOSECONDS));
+    assertTrue(_client.say(SSIPPriority.PROgRESS, "admitted again") > 0);
+  }
+
+  public void testLostEventExpires () throws Exception {
+    _server.setSpeakingTime(0, TimeUnit.MILLISECONDS);
+    _admission = new SSIPAdmissionController(50, 500, TimeUnit.MILLISECONDS);
+    _client.setAdmissionController(_admission);
+    assertTrue(_client.say(SSIPPriority.TEXT, "followed") > 0);
+    waitForInFlight(0);
+    // behind the client's back, the next message never begins
+    _client.getConnection().sendCommand(new SSIPCommand("SET", "self",
+        "NOTIFICATION", "all", "off"));
+    assertTrue(_client.say(SSIPPriority.TEXT, "lost") > 0);
+    waitForLevel(SSIPAdmissionController.SHED_TEXT);
+    assertEquals(-1, _client.say(SSIPPriority.TEXT, "shed"));
+    // forgotten after the maximum age, instead of shedding forever
+    waitForInFlight(0);
+    assertEquals(SSIPAdmissionController.ADMIT_ALL, _admission.getLevel());
+    assertTrue(_client.say(SSIPPriority.TEXT, "admitted again") > 0);
+  }
+
+  public void testDroppedEventsReset () throws Exception {
+    SSIPEventDispatcher dispatcher = new SSIPEventDispatcher(1,
+        SSIPEventDispatcher.OverflowPolicy.DROP_NEWEST);
+    _client.getConnection().setEventDispatcher(dispatcher);
+    _client.setNotification(true);
+    _client.setEventHandler(new SSIPEventHandler() {
+      public void handleSSIPEvent (SSIPEvent event) {
+        try {
+          _release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    // its begin stalls the handler
+    assertTrue(_client.say(SSIPPriority.MESSAGE, "spoken") > 0);
+    assertTrue(_client.say(SSIPPriority.MESSAGE, "waits") > 0);
+    waitForLevel(SSIPAdmissionController.SHED_TEXT);
+    // one cancel event fits in the buffer, the other is dropped
+    _client.cancel();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (dispatcher.getDroppedCount() == 0 && System.nanoTime() < deadline)
+      Thread.sleep(5);
+    assertEquals(1, dispatcher.getDroppedCount());
+    assertTrue(_client.say(SSIPPriority.PROgRESS, "admitted") > 0);
+    waitForInFlight(1);
+  }
+
+  private void waitForLevel (int level) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (_admission.getLevel() < level && System.nanoTime() < deadline)
+      Thread.sleep(5);
+    assertEquals(level, _admission.getLevel());
+  }
+
+  private void waitForInFlight (int count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (_admission.getInFlightCount() != count
+        && System.nanoTime() < deadline)
+      Thread.sleep(5);
+    assertEquals(count, _admission.getInFlightCount());
+  }
+}
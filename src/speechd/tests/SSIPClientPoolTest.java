@@ -0,0 +1,102 @@
+/*
+ * SSIPClientPoolTest.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.tests;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import speechd.ssip.SSIPClient;
+import speechd.ssip.SSIPClientPool;
+import junit.framework.TestCase;
+
+/**
+ * Borrows and releases {@code SSIPClientPool} clients connected to a
+ * {@link FakeSSIPServer}.
+ *
+ * @author ragb
+ */
+public class SSIPClientPoolTest extends TestCase {
+  private FakeSSIPServer _server;
+  private InetSocketAddress _address;
+  private SSIPClientPool _pool;
+
+  protected void setUp () throws Exception {
+    super.setUp();
+    _server = new FakeSSIPServer();
+    _address = _server.listenTcp(0);
+    _pool = new SSIPClientPool("test", null, null, _address, 2);
+  }
+
+  protected void tearDown () throws Exception {
+    super.tearDown();
+    _pool.close();
+    _server.close();
+  }
+
+  public void testBorrowAndRelease () throws Exception {
+    SSIPClient first = _pool.borrow();
+    SSIPClient second = _pool.borrow();
+    assertEquals(2, _pool.getOpenCount());
+    assertEquals(2, _pool.getActiveCount());
+    assertNull(_pool.borrow(10, TimeUnit.MILLISECONDS));
+    assertEquals(1, _pool.getTimeoutCount());
+
+    _pool.release(first);
+    assertEquals(1, _pool.getActiveCount());
+    assertEquals(1, _pool.getIdleCount());
+    // the most recently released client goes first
+    assertSame(first, _pool.borrow());
+    _pool.release(first);
+    _pool.release(second);
+    assertEquals(0, _pool.getActiveCount());
+    assertEquals(2, _pool.getIdleCount());
+    assertEquals(3, _pool.getBorrowCount());
+    assertEquals(2, _server.getConnectionCount());
+  }
+
+  public void testReleaseNotBorrowed () throws Exception {
+    SSIPClient client = _pool.borrow();
+    _pool.release(client);
+    try {
+      _pool.release(client);
+      fail();
+    } catch (IllegalStateException e) {
+      // released twice
+    }
+    SSIPClient stranger = new SSIPClient("stranger", null, null, _address);
+    try {
+      _pool.release(stranger);
+      fail();
+    } catch (IllegalStateException e) {
+      // never borrowed
+    } finally {
+      stranger.close();
+    }
+    assertEquals(0, _pool.getActiveCount());
+    assertEquals(1, _pool.getIdleCount());
+    // still at most two clients
+    SSIPClient first = _pool.borrow();
+    SSIPClient second = _pool.borrow();
+    assertNull(_pool.borrow(10, TimeUnit.MILLISECONDS));
+    _pool.release(first);
+    _pool.release(second);
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * SSIPCoalescingChannelTest.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.tests;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import speechd.ssip.SSIPClient;
+import speechd.ssip.SSIPCoalescingChannel;
+import speechd.ssip.SSIPException;
+import speechd.ssip.SSIPPriority;
+import junit.framework.TestCase;
+
+/**
+ * Checks which messages a {@code SSIPCoalescingChannel} sends, in what order,
+ * and its counters, against a {@link FakeSSIPServer}.
+ *
+ * @author ragb
+ */
+public class SSIPCoalescingChannelTest extends TestCase {
+  private FakeSSIPServer _server;
+  private SSIPClient _client;
+  private SSIPCoalescingChannel _channel;
+
+  /**
+   * Fails the messages reading "bad" with a runtime exception, and sheds
+   * the ones reading "shed".
+   */
+  private static class FailingClient extends SSIPClient {
+    FailingClient (SocketAddress address) throws SSIPException {
+      super("test", null, null, address);
+    }
+
+    public int say (SSIPPriority priority, String text) throws SSIPException {
+      if (text.equals("bad"))
+        throw new IllegalStateException("bad message");
+      if (text.equals("shed"))
+        return -1;
+      return super.say(priority, text);
+    }
+  }
+
+  protected void setUp () throws Exception {
+    super.setUp();
+    _server = new FakeSSIPServer();
+    _server.setSpeakingTime(0, TimeUnit.MILLISECONDS);
+    _client = new FailingClient(_server.listenTcp(0));
+    _channel = new SSIPCoalescingChannel(_client);
+  }
+
+  protected void tearDown () throws Exception {
+    super.tearDown();
+    _channel.close();
+    _client.close();
+    _server.close();
+  }
+
+  public void testReplacementAndOrder () throws Exception {
+    _server.setLatency(50, TimeUnit.MILLISECONDS);
+    _server.setRecording(true);
+    sendFirst("a", "a1");
+    _channel.say("a", SSIPPriority.TEXT, "a2");
+    _channel.say("b", SSIPPriority.TEXT, "b1");
+    _channel.say("a", SSIPPriority.TEXT, "a3");
+    _channel.say("c", SSIPPriority.TEXT, "c1");
+    _channel.say("b", SSIPPriority.TEXT, "b2");
+    assertEquals(3, _channel.getPendingCount());
+    waitForHandled(4);
+    // the latest of each key, in the order the keys arrived
+    assertEquals(Arrays.asList("a1", "a3", "b2", "c1"), texts(4));
+    assertEquals(6, _channel.getSubmittedCount());
+    assertEquals(4, _channel.getSentCount());
+    assertEquals(2, _channel.getCoalescedCount());
+    assertEquals(0, _channel.getFailedCount());
+  }
+
+  public void testCloseCountsDiscarded () throws Exception {
+    _server.setLatency(100, TimeUnit.MILLISECONDS);
+    sendFirst("a", "a1");
+    _channel.say("b", SSIPPriority.TEXT, "b1");
+    _channel.say("c", SSIPPriority.TEXT, "c1");
+    _channel.say("c", SSIPPriority.TEXT, "c2");
+    _channel.close();
+    assertEquals(0, _channel.getPendingCount());
+    assertEquals(2, _channel.getDiscardedCount());
+    // the message in flight is still sent
+    waitForHandled(1);
+    assertEquals(1, _channel.getSentCount());
+    assertEquals(_channel.getSubmittedCount(), _channel.getSentCount()
+        + _channel.getCoalescedCount() + _channel.getDiscardedCount());
+    try {
+      _channel.say("d", SSIPPriority.TEXT, "d1");
+      fail();
+    } catch (IllegalStateException e) {
+      // closed
+    }
+  }
+
+  public void testRuntimeExceptionCounted () throws Exception {
+    _server.setRecording(true);
+    _channel.say("a", SSIPPriority.TEXT, "bad");
+    _channel.say("b", SSIPPriority.TEXT, "good");
+    waitForHandled(2);
+    // the sender thread goes on after the failure
+    assertEquals(Arrays.asList("good"), texts(1));
+    assertEquals(1, _channel.getFailedCount());
+    assertEquals(1, _channel.getSentCount());
+  }
+
+  public void testShedNotSent () throws Exception {
+    _channel.say("a", SSIPPriority.TEXT, "shed");
+    _channel.say("b", SSIPPriority.TEXT, "good");
+    waitForHandled(2);
+    assertEquals(1, _channel.getShedCount());
+    assertEquals(1, _channel.getSentCount());
+    assertEquals(0, _channel.getFailedCount());
+  }
+
+  /**
+   * Puts a message in the channel and waits for the sender to take it.
+   */
+  private void sendFirst (String key, String text) throws Exception {
+    _channel.say(key, SSIPPriority.TEXT, text);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (_channel.getPendingCount() > 0 && System.nanoTime() < deadline)
+      Thread.sleep(5);
+    assertEquals(0, _channel.getPendingCount());
+  }
+
+  /**
+   * Waits for a number of messages to be sent, shed or failed.
+   */
+  private void waitForHandled (long handled) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while ((handled() < handled || _channel.getPendingCount() > 0)
+        && System.nanoTime() < deadline)
+      Thread.sleep(5);
+    assertEquals(handled, handled());
+  }
+
+  private long handled () {
+    return _channel.getSentCount() + _channel.getShedCount()
+        + _channel.getFailedCount();
+  }
+
+  /**
+   * Gets the texts of the messages the server received, waiting for a
+   * number of them.
+   */
+  private List<String> texts (int count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (true) {
+      List<String> texts = new ArrayList<String>();
+      List<String> lines = _server.getRecordedLines();
+      for (int i = 0; i + 1 < lines.size(); i++) {
+        if (lines.get(i).trim().equalsIgnoreCase("SPEAK"))
+          texts.add(lines.get(i + 1));
+      }
+      if (texts.size() >= count || System.nanoTime() > deadline)
+        return texts;
+      Thread.sleep(5);
+    }
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * SSIPEventDispatcherTest.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.tests;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import speechd.ssip.SSIPClient;
+import speechd.ssip.SSIPEvent;
+import speechd.ssip.SSIPEventDispatcher;
+import speechd.ssip.SSIPEventHandler;
+import speechd.ssip.SSIPPriority;
+import junit.framework.TestCase;
+
+/**
+ * Overflows the {@code SSIPEventDispatcher} buffer with a stalled handler,
+ * for each overflow policy, against a {@link FakeSSIPServer}.
+ *
+ * @author ragb
+ */
+public class SSIPEventDispatcherTest extends TestCase implements
+    SSIPEventHandler {
+  private static final String MARKS = "<speak><mark name=\"m0\"/>"
+      + "<mark name=\"m1\"/><mark name=\"m2\"/><mark name=\"m3\"/>"
+      + "<mark name=\"m4\"/><mark name=\"m5\"/><mark name=\"m6\"/>"
+      + "<mark name=\"m7\"/><mark name=\"m8\"/><mark name=\"m9\"/></speak>";
+
+  private FakeSSIPServer _server;
+  private SSIPClient _client;
+  private SSIPEventDispatcher _dispatcher;
+  private BlockingQueue<SSIPEvent> _queue;
+  private CountDownLatch _stalled;
+  private CountDownLatch _release;
+
+  protected void setUp () throws Exception {
+    super.setUp();
+    _server = new FakeSSIPServer();
+    _server.setSpeakingTime(0, TimeUnit.MILLISECONDS);
+    _client = new SSIPClient("test", null, null, _server.listenTcp(0));
+    _queue = new LinkedBlockingQueue<SSIPEvent>();
+    _stalled = new CountDownLatch(1);
+    _release = new CountDownLatch(1);
+    _client.setNotification(true);
+    _client.setEventHandler(this);
+  }
+
+  protected void tearDown () throws Exception {
+    super.tearDown();
+    _release.countDown();
+    _client.close();
+    _server.close();
+  }
+
+  /**
+   * Stalls on the first event until released.
+   */
+  public void handleSSIPEvent (SSIPEvent event) {
+    _queue.add(event);
+    if (_stalled.getCount() > 0) {
+      _stalled.countDown();
+      try {
+        _release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  public void testDropNewest () throws Exception {
+    int first = stall(SSIPEventDispatcher.OverflowPolicy.DROP_NEWEST);
+    int second = _client.say(SSIPPriority.TEXT, MARKS);
+    // begin, ten marks and end: the begin fills the buffer
+    waitFor(11);
+    _release.countDown();
+    assertEvent(SSIPEvent.EventType.BEGIN, first, take());
+    assertEvent(SSIPEvent.EventType.END, first, take());
+    assertEvent(SSIPEvent.EventType.BEGIN, second, take());
+    assertNull(_queue.poll(100, TimeUnit.MILLISECONDS));
+    assertEquals(11, _dispatcher.getDroppedCount());
+  }
+
+  public void testDropOldest () throws Exception {
+    int first = stall(SSIPEventDispatcher.OverflowPolicy.DROP_OLDEST);
+    int second = _client.say(SSIPPriority.TEXT, MARKS);
+    waitFor(11);
+    _release.countDown();
+    assertEvent(SSIPEvent.EventType.BEGIN, first, take());
+    SSIPEvent e = take();
+    assertEvent(SSIPEvent.EventType.INDEX_MARK, second, e);
+    assertEquals("m9", e.getIndexMark());
+    assertEvent(SSIPEvent.EventType.END, second, take());
+    assertNull(_queue.poll(100, TimeUnit.MILLISECONDS));
+    assertEquals(11, _dispatcher.getDroppedCount());
+  }
+
+  public void testBlock () throws Exception {
+    int first = stall(SSIPEventDispatcher.OverflowPolicy.BLOCK);
+    int second = _client.say(SSIPPriority.TEXT, MARKS);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (_dispatcher.getPendingCount() < 2 && System.nanoTime() < deadline)
+      Thread.sleep(5);
+    Thread.sleep(50);
+    // the communications thread waits for room
+    assertEquals(2, _dispatcher.getPendingCount());
+    assertEquals(0, _dispatcher.getDroppedCount());
+    _release.countDown();
+    assertEvent(SSIPEvent.EventType.BEGIN, first, take());
+    assertEvent(SSIPEvent.EventType.END, first, take());
+    assertEvent(SSIPEvent.EventType.BEGIN, second, take());
+    for (int i = 0; i < 10; i++) {
+      SSIPEvent e = take();
+      assertEvent(SSIPEvent.EventType.INDEX_MARK, second, e);
+      assertEquals("m" + i, e.getIndexMark());
+    }
+    assertEvent(SSIPEvent.EventType.END, second, take());
+    assertEquals(0, _dispatcher.getDroppedCount());
+    // and the connection goes on
+    assertEquals("fake", _client.getOutputModules().get(0));
+  }
+
+  public void testHandlerError () throws Exception {
+    _dispatcher = new SSIPEventDispatcher(2,
+        SSIPEventDispatcher.OverflowPolicy.BLOCK);
+    _client.getConnection().setEventDispatcher(_dispatcher);
+    _client.setEventHandler(new SSIPEventHandler() {
+      private boolean _thrown;
+
+      public void handleSSIPEvent (SSIPEvent event) {
+        _queue.add(event);
+        if (!_thrown) {
+          _thrown = true;
+          throw new AssertionError("handler failure");
+        }
+      }
+    });
+    int first = _client.say(SSIPPriority.TEXT, "first");
+    assertEvent(SSIPEvent.EventType.BEGIN, first, take());
+    // more events than the buffer holds, a dead dispatcher would block
+    int second = _client.say(SSIPPriority.TEXT, MARKS);
+    assertEvent(SSIPEvent.EventType.END, first, take());
+    assertEvent(SSIPEvent.EventType.BEGIN, second, take());
+    for (int i = 0; i < 10; i++)
+      assertEvent(SSIPEvent.EventType.INDEX_MARK, second, take());
+    assertEvent(SSIPEvent.EventType.END, second, take());
+    assertEquals("fake", _client.getOutputModules().get(0));
+  }
+
+  /**
+   * Installs a dispatcher of two events and speaks a message, its begin
+   * stalls the handler and its end waits in the buffer.
+   * @return the message id
+   */
+  private int stall (SSIPEventDispatcher.OverflowPolicy policy)
+      throws Exception {
+    _dispatcher = new SSIPEventDispatcher(2, policy);
+    _client.getConnection().setEventDispatcher(_dispatcher);
+    int id = _client.say(SSIPPriority.TEXT, "first");
+    assertTrue(_stalled.await(5, TimeUnit.SECONDS));
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (_dispatcher.getPendingCount() < 1 && System.nanoTime() < deadline)
+      Thread.sleep(5);
+    assertEquals(1, _dispatcher.getPendingCount());
+    return id;
+  }
+
+  private void waitFor (long dropped) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (_dispatcher.getDroppedCount() < dropped
+        && System.nanoTime() < deadline)
+      Thread.sleep(5);
+    assertEquals(2, _dispatcher.getPendingCount());
+  }
+
+  private SSIPEvent take () throws InterruptedException {
+    SSIPEvent e = _queue.poll(5, TimeUnit.SECONDS);
+    assertNotNull(e);
+    return e;
+  }
+
+  private static void assertEvent (SSIPEvent.EventType type, int msgId,
+      SSIPEvent e) {
+    assertEquals(type, e.getType());
+    assertEquals(msgId, e.getMsgId());
+  }
+}
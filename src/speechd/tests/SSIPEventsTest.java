@@ -25,6 +25,7 @@ import speechd.ssip.SSIPClient;
 import speechd.ssip.SSIPEvent;
 import speechd.ssip.SSIPEventHandler;
 import speechd.ssip.SSIPException;
+import speechd.ssip.SSIPMessage;
 import speechd.ssip.SSIPPriority;
 import junit.framework.TestCase;
 
@@ -70,6 +71,15 @@ public class SSIPEventsTest extends TestCase implements SSIPEventHandler {
     }
   }
 
+  public void testSayAsync () throws Exception {
+    SSIPMessage message = _client.sayAsync(SSIPPriority.MESSAGE, "test say async");
+    int id = message.getQueued().get().intValue();
+    assertEquals(id, message.getBegin().get().getMsgId());
+    SSIPEvent end = message.getEnd().get();
+    assertEquals(id, end.getMsgId());
+    assertEquals(SSIPEvent.EventType.END, end.getType());
+  }
+
   /**
    * @see speechd.ssip.SSIPEventHandler#handleSSIPEvent(speechd.ssip.SSIPEvent)
    */
@@ -0,0 +1,124 @@
+/*
+ * SSIPHistogramTest.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.tests;
+
+import java.util.concurrent.TimeUnit;
+
+import speechd.ssip.SSIPHistogram;
+import junit.framework.TestCase;
+
+/**
+ * Records known samples in a {@code SSIPHistogram} and checks its buckets
+ * and percentiles.
+ *
+ * @author ragb
+ */
+public class SSIPHistogramTest extends TestCase {
+  private static final TimeUnit NS = TimeUnit.NANOSECONDS;
+
+  public void testEmpty () {
+    SSIPHistogram h = new SSIPHistogram();
+    assertEquals(0, h.getCount());
+    assertEquals(0, h.getValueAtPercentile(50, NS));
+    assertEquals(0, h.getMax(NS));
+    assertEquals(0.0, h.getMean(NS), 0.0);
+  }
+
+  public void testSmallValuesExact () {
+    SSIPHistogram h = new SSIPHistogram();
+    for (int i = 0; i < 128; i++)
+      h.record(i);
+    assertEquals(128, h.getCount());
+    assertEquals(0, h.getValueAtPercentile(0, NS));
+    assertEquals(63, h.getValueAtPercentile(50, NS));
+    assertEquals(126, h.getValueAtPercentile(99, NS));
+    assertEquals(127, h.getValueAtPercentile(100, NS));
+    assertEquals(127, h.getMax(NS));
+    assertEquals(63.5, h.getMean(NS), 1e-9);
+  }
+
+  public void testBucketPrecision () {
+    for (long value = 128; value < (1L << 40); value += value / 7 + 1) {
+      SSIPHistogram h = new SSIPHistogram();
+      h.record(value);
+      long max = h.getMax(NS);
+      // never less than the value, and within 1/64 of it
+      assertTrue(value + " -> " + max, max >= value && max <= value + value
+          / 64);
+      assertEquals(max, h.getValueAtPercentile(50, NS));
+    }
+  }
+
+  public void testBucketBoundaries () {
+    SSIPHistogram h = new SSIPHistogram();
+    h.record(1000);
+    // 1000 is 125 << 3, its bucket holds 1000 to 1007
+    assertEquals(1007, h.getMax(NS));
+    h = new SSIPHistogram();
+    h.record(1007);
+    assertEquals(1007, h.getMax(NS));
+    h = new SSIPHistogram();
+    h.record(1008);
+    assertEquals(1015, h.getMax(NS));
+  }
+
+  public void testOutOfRange () {
+    SSIPHistogram h = new SSIPHistogram();
+    h.record(-5);
+    assertEquals(0, h.getMax(NS));
+    h.record(Long.MAX_VALUE);
+    // counted in the last bucket
+    assertEquals((1L << 41) - 1, h.getMax(NS));
+    assertEquals(2, h.getCount());
+  }
+
+  public void testPercentiles () {
+    SSIPHistogram h = new SSIPHistogram();
+    for (int i = 0; i < 990; i++)
+      h.record(TimeUnit.MICROSECONDS.toNanos(1));
+    for (int i = 0; i < 9; i++)
+      h.record(TimeUnit.MILLISECONDS.toNanos(1));
+    h.record(TimeUnit.SECONDS.toNanos(1));
+    assertEquals(1000, h.getCount());
+    assertEquals(1007, h.getValueAtPercentile(50, NS));
+    assertEquals(1007, h.getValueAtPercentile(99, NS));
+    assertEquals(1, h.getValueAtPercentile(99, TimeUnit.MICROSECONDS));
+    long p999 = h.getValueAtPercentile(99.9, NS);
+    assertTrue(p999 >= 1000000 && p999 <= 1000000 + 1000000 / 64);
+    long max = h.getMax(NS);
+    assertTrue(max >= 1000000000L && max <= 1000000000L + 1000000000L / 64);
+    assertEquals(max, h.getValueAtPercentile(100, NS));
+    assertEquals((990 * 1000L + 9 * 1000000L + 1000000000L) / 1000.0, h
+        .getMean(NS), 1e-6);
+  }
+
+  public void testCopy () {
+    SSIPHistogram h = new SSIPHistogram();
+    h.record(10);
+    h.record(20);
+    SSIPHistogram copy = h.copy();
+    h.record(30);
+    assertEquals(2, copy.getCount());
+    assertEquals(20, copy.getMax(NS));
+    assertEquals(15.0, copy.getMean(NS), 1e-9);
+    assertEquals(3, h.getCount());
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * SSIPMessageTest.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.tests;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import speechd.ssip.SSIPAdmissionController;
+import speechd.ssip.SSIPClient;
+import speechd.ssip.SSIPCommandException;
+import speechd.ssip.SSIPEvent;
+import speechd.ssip.SSIPEventHandler;
+import speechd.ssip.SSIPMessage;
+import speechd.ssip.SSIPPriority;
+import junit.framework.TestCase;
+
+/**
+ * Follows messages spoken with {@code SSIPClient.sayAsync} through their
+ * futures, against a {@link FakeSSIPServer}.
+ *
+ * @author ragb
+ */
+public class SSIPMessageTest extends TestCase {
+  private FakeSSIPServer _server;
+  private SSIPClient _client;
+
+  protected void setUp () throws Exception {
+    super.setUp();
+    _server = new FakeSSIPServer();
+    _server.setSpeakingTime(20, TimeUnit.MILLISECONDS);
+    _client = new SSIPClient("test", null, null, _server.listenTcp(0));
+  }
+
+  protected void tearDown () throws Exception {
+    super.tearDown();
+    _client.close();
+    _server.close();
+  }
+
+  public void testSayAsync () throws Exception {
+    SSIPMessage message = _client.sayAsync(SSIPPriority.TEXT, "hello");
+    int id = message.getQueued().get(5, TimeUnit.SECONDS);
+    assertTrue(id > 0);
+    SSIPEvent e = message.getBegin().get(5, TimeUnit.SECONDS);
+    assertEquals(SSIPEvent.EventType.BEGIN, e.getType());
+    assertEquals(id, e.getMsgId());
+    e = message.getEnd().get(5, TimeUnit.SECONDS);
+    assertEquals(SSIPEvent.EventType.END, e.getType());
+    assertEquals(id, e.getMsgId());
+  }
+
+  public void testCancel () throws Exception {
+    _server.setSpeakingTime(10, TimeUnit.SECONDS);
+    SSIPMessage first = _client.sayAsync(SSIPPriority.TEXT, "first");
+    SSIPMessage second = _client.sayAsync(SSIPPriority.TEXT, "second");
+    assertEquals(SSIPEvent.EventType.BEGIN, first.getBegin().get(5,
+        TimeUnit.SECONDS).getType());
+    int id = second.getQueued().get(5, TimeUnit.SECONDS);
+    assertFalse(second.getBegin().isDone());
+    _client.cancel();
+    assertEquals(SSIPEvent.EventType.CANCEL, first.getEnd().get(5,
+        TimeUnit.SECONDS).getType());
+    // a message canceled before beginning completes both futures
+    SSIPEvent e = second.getEnd().get(5, TimeUnit.SECONDS);
+    assertEquals(SSIPEvent.EventType.CANCEL, e.getType());
+    assertEquals(id, e.getMsgId());
+    assertSame(e, second.getBegin().get());
+  }
+
+  public void testConnectionHandlerKept () throws Exception {
+    final BlockingQueue<SSIPEvent> events = new LinkedBlockingQueue<SSIPEvent>();
+    SSIPEventHandler handler = new SSIPEventHandler() {
+      public void handleSSIPEvent (SSIPEvent event) {
+        events.add(event);
+      }
+    };
+    _client.getConnection().setEventHandler(handler);
+    _client.setAdmissionController(new SSIPAdmissionController(1,
+        TimeUnit.SECONDS));
+    SSIPMessage message = _client.sayAsync(SSIPPriority.TEXT, "hello");
+    assertEquals(SSIPEvent.EventType.END, message.getEnd().get(5,
+        TimeUnit.SECONDS).getType());
+    assertSame(handler, _client.getConnection().getEventHandler());
+    // the handler on the connection gets every event
+    assertEquals(SSIPEvent.EventType.BEGIN, events.poll(5, TimeUnit.SECONDS)
+        .getType());
+    assertEquals(SSIPEvent.EventType.END, events.poll(5, TimeUnit.SECONDS)
+        .getType());
+  }
+
+  public void testRejectedSpeak () throws Exception {
+    _server.failCommand("SPEAK", 401);
+    SSIPMessage message = _client.sayAsync(SSIPPriority.TEXT, "rejected");
+    try {
+      message.getQueued().get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof SSIPCommandException);
+      assertEquals(401, ((SSIPCommandException) e.getCause()).getResponse()
+          .getCode());
+    }
+    assertTrue(message.getBegin().isCompletedExceptionally());
+    assertTrue(message.getEnd().isCompletedExceptionally());
+    _server.clearFailures();
+    message = _client.sayAsync(SSIPPriority.TEXT, "accepted");
+    assertEquals(SSIPEvent.EventType.END, message.getEnd().get(5,
+        TimeUnit.SECONDS).getType());
+  }
+
+  public void testHandlerEvents () throws Exception {
+    final BlockingQueue<SSIPEvent> events = new LinkedBlockingQueue<SSIPEvent>();
+    _client.setEventHandler(new SSIPEventHandler() {
+      public void handleSSIPEvent (SSIPEvent event) {
+        events.add(event);
+      }
+    });
+    // the notifications turned on for the message aren't the handler's
+    SSIPMessage message = _client.sayAsync(SSIPPriority.TEXT, "hidden");
+    message.getEnd().get(5, TimeUnit.SECONDS);
+    assertNull(events.poll(100, TimeUnit.MILLISECONDS));
+    _client.setNotification(true, SSIPEvent.EventType.END);
+    message = _client.sayAsync(SSIPPriority.TEXT, "shown");
+    int id = message.getQueued().get(5, TimeUnit.SECONDS);
+    message.getEnd().get(5, TimeUnit.SECONDS);
+    SSIPEvent e = events.poll(5, TimeUnit.SECONDS);
+    assertEquals(SSIPEvent.EventType.END, e.getType());
+    assertEquals(id, e.getMsgId());
+    assertNull(events.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+  public void testNotificationsOff () throws Exception {
+    _server.setSpeakingTime(10, TimeUnit.SECONDS);
+    SSIPMessage message = _client.sayAsync(SSIPPriority.TEXT, "pending");
+    message.getBegin().get(5, TimeUnit.SECONDS);
+    _client.setNotification(false);
+    try {
+      message.getEnd().get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (CancellationException e) {
+      // expected, the end event would never come
+    }
+    // the next message turns them on again
+    _server.setSpeakingTime(20, TimeUnit.MILLISECONDS);
+    _client.cancel();
+    message = _client.sayAsync(SSIPPriority.TEXT, "followed");
+    assertEquals(SSIPEvent.EventType.END, message.getEnd().get(5,
+        TimeUnit.SECONDS).getType());
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * SSIPMetricsTest.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.tests;
+
+import java.util.concurrent.TimeUnit;
+
+import speechd.ssip.SSIPClient;
+import speechd.ssip.SSIPCommandException;
+import speechd.ssip.SSIPEvent;
+import speechd.ssip.SSIPHistogram;
+import speechd.ssip.SSIPMetrics;
+import speechd.ssip.SSIPPriority;
+import junit.framework.TestCase;
+
+/**
+ * Checks the per command counters and histograms of {@code SSIPMetrics}
+ * after a known series of commands to a {@link FakeSSIPServer}.
+ *
+ * @author ragb
+ */
+public class SSIPMetricsTest extends TestCase {
+  private FakeSSIPServer _server;
+  private SSIPClient _client;
+  private SSIPMetrics _metrics;
+
+  protected void setUp () throws Exception {
+    super.setUp();
+    _server = new FakeSSIPServer();
+    _server.setSpeakingTime(0, TimeUnit.MILLISECONDS);
+    _client = new SSIPClient("test", null, null, _server.listenTcp(0));
+    _metrics = _client.getMetrics();
+    _metrics.reset();
+  }
+
+  protected void tearDown () throws Exception {
+    super.tearDown();
+    _client.close();
+    _server.close();
+  }
+
+  public void testCommandCounters () throws Exception {
+    _server.setLatency(5, TimeUnit.MILLISECONDS);
+    for (int i = 0; i < 3; i++)
+      _client.getOutputModules();
+    _client.setRate(10);
+    _server.failCommand("SET", 410);
+    try {
+      _client.setRate(20);
+      fail();
+    } catch (SSIPCommandException e) {
+      // counted as an error
+    }
+    assertEquals(5, _metrics.getCommandCount());
+    assertEquals(0, _metrics.getDataCount());
+    assertEquals(1, _metrics.getErrorCount());
+    assertEquals(1, _metrics.getErrorCount(410));
+    assertEquals(0, _metrics.getErrorCount(401));
+    assertEquals(Long.valueOf(1), _metrics.getErrorCounts().get("410"));
+    assertEquals(3, _metrics.getLatency("LIST").getCount());
+    // verbs looked up in any case
+    assertEquals(2, _metrics.getLatency("set").getCount());
+    assertNull(_metrics.getLatency("SPEAK"));
+    // histograms of the commands sent when connecting are kept, emptied
+    assertEquals(0, _metrics.getLatency("HISTORY").getCount());
+    SSIPHistogram list = _metrics.getLatency("LIST");
+    assertTrue(list.getValueAtPercentile(50, TimeUnit.MILLISECONDS) >= 4);
+    assertTrue(list.getMax(TimeUnit.SECONDS) < 1);
+    assertEquals(Long.valueOf(3), _metrics.getLatencyCounts().get("LIST"));
+    assertTrue(_metrics.getBytesOut() > 0);
+    assertTrue(_metrics.getBytesIn() > 0);
+  }
+
+  public void testDataAndEvents () throws Exception {
+    _client.setNotification(true);
+    _metrics.reset();
+    // the priority, the SPEAK and the data
+    _client.say(SSIPPriority.TEXT, "<speak>one <mark name=\"m\"/></speak>");
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (_metrics.getEventCount(SSIPEvent.EventType.END) == 0
+        && System.nanoTime() < deadline)
+      Thread.sleep(5);
+    assertEquals(2, _metrics.getCommandCount());
+    assertEquals(1, _metrics.getDataCount());
+    assertEquals(1, _metrics.getLatency(SSIPMetrics.DATA).getCount());
+    assertEquals(1, _metrics.getLatency("SPEAK").getCount());
+    assertEquals(1, _metrics.getEventCount(SSIPEvent.EventType.BEGIN));
+    assertEquals(1, _metrics.getEventCount(SSIPEvent.EventType.INDEX_MARK));
+    assertEquals(1, _metrics.getEventCount(SSIPEvent.EventType.END));
+    assertEquals(0, _metrics.getEventCount(SSIPEvent.EventType.CANCEL));
+  }
+
+  public void testSnapshotAndReset () throws Exception {
+    _client.getOutputModules();
+    SSIPMetrics snapshot = _metrics.snapshot();
+    _client.getOutputModules();
+    assertEquals(1, snapshot.getCommandCount());
+    assertEquals(1, snapshot.getLatency("LIST").getCount());
+    assertEquals(2, _metrics.getCommandCount());
+    _metrics.reset();
+    assertEquals(0, _metrics.getCommandCount());
+    assertEquals(0, _metrics.getLatency("LIST").getCount());
+    assertEquals(0, _metrics.getBytesIn());
+    assertEquals(1, snapshot.getCommandCount());
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * SSIPPrioritySchedulerTest.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.tests;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import speechd.ssip.SSIPClient;
+import speechd.ssip.SSIPException;
+import speechd.ssip.SSIPPriority;
+import speechd.ssip.SSIPPriorityScheduler;
+import junit.framework.TestCase;
+
+/**
+ * Checks the messages a {@code SSIPPriorityScheduler} discards and sends,
+ * against a {@link FakeSSIPServer}.
+ *
+ * @author ragb
+ */
+public class SSIPPrioritySchedulerTest extends TestCase {
+  private FakeSSIPServer _server;
+  private SSIPClient _client;
+  private SSIPPriorityScheduler _scheduler;
+
+  /**
+   * Fails the messages reading "bad" with a runtime exception, and sheds
+   * the ones reading "shed".
+   */
+  private static class FailingClient extends SSIPClient {
+    FailingClient (SocketAddress address) throws SSIPException {
+      super("test", null, null, address);
+    }
+
+    public int say (SSIPPriority priority, String text) throws SSIPException {
+      if (text.equals("bad"))
+        throw new IllegalStateException("bad message");
+      if (text.equals("shed"))
+        return -1;
+      return super.say(priority, text);
+    }
+  }
+
+  protected void setUp () throws Exception {
+    super.setUp();
+    _server = new FakeSSIPServer();
+    _server.setSpeakingTime(0, TimeUnit.MILLISECONDS);
+    _client = new FailingClient(_server.listenTcp(0));
+    _scheduler = new SSIPPriorityScheduler(_client);
+  }
+
+  protected void tearDown () throws Exception {
+    super.tearDown();
+    _scheduler.close();
+    _client.close();
+    _server.close();
+  }
+
+  public void testMessageKeepsProgress () throws Exception {
+    _server.setLatency(50, TimeUnit.MILLISECONDS);
+    _server.setRecording(true);
+    sendFirst(SSIPPriority.TEXT, "in flight");
+    assertTrue(_scheduler.say(SSIPPriority.PROgRESS, "10%"));
+    assertTrue(_scheduler.say(SSIPPriority.TEXT, "text"));
+    assertTrue(_scheduler.say(SSIPPriority.MESSAGE, "message"));
+    assertTrue(_scheduler.say(SSIPPriority.PROgRESS, "20%"));
+    assertTrue(_scheduler.say(SSIPPriority.IMPORTANT, "important"));
+    waitForHandled(4);
+    // the latest progress is spoken after the urgent messages
+    assertEquals(Arrays.asList("in flight", "important", "message", "20%"),
+        texts(4));
+    assertEquals(1, _scheduler.getDiscardedCount(SSIPPriority.PROgRESS));
+    assertEquals(1, _scheduler.getDiscardedCount(SSIPPriority.TEXT));
+  }
+
+  public void testProgressReplaced () throws Exception {
+    _server.setLatency(50, TimeUnit.MILLISECONDS);
+    _server.setRecording(true);
+    sendFirst(SSIPPriority.TEXT, "in flight");
+    for (int i = 1; i <= 5; i++)
+      assertTrue(_scheduler.say(SSIPPriority.PROgRESS, i + "0%"));
+    waitForHandled(2);
+    assertEquals(Arrays.asList("in flight", "50%"), texts(2));
+    assertEquals(4, _scheduler.getDiscardedCount(SSIPPriority.PROgRESS));
+  }
+
+  public void testRuntimeExceptionCounted () throws Exception {
+    _server.setRecording(true);
+    assertTrue(_scheduler.say(SSIPPriority.TEXT, "bad"));
+    waitForHandled(1);
+    assertTrue(_scheduler.say(SSIPPriority.TEXT, "good"));
+    waitForHandled(2);
+    // the sender thread goes on after the failure
+    assertEquals(Arrays.asList("good"), texts(1));
+    assertEquals(1, _scheduler.getFailedCount());
+    assertEquals(1, _scheduler.getSentCount());
+  }
+
+  public void testShedNotSent () throws Exception {
+    assertTrue(_scheduler.say(SSIPPriority.TEXT, "shed"));
+    waitForHandled(1);
+    assertTrue(_scheduler.say(SSIPPriority.TEXT, "good"));
+    waitForHandled(2);
+    assertEquals(1, _scheduler.getShedCount());
+    assertEquals(1, _scheduler.getSentCount());
+    assertEquals(0, _scheduler.getFailedCount());
+  }
+
+  /**
+   * Schedules a message and waits for the sender to take it.
+   */
+  private void sendFirst (SSIPPriority priority, String text)
+      throws Exception {
+    assertTrue(_scheduler.say(priority, text));
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (_scheduler.getPendingCount() > 0 && System.nanoTime() < deadline)
+      Thread.sleep(5);
+    assertEquals(0, _scheduler.getPendingCount());
+  }
+
+  /**
+   * Waits for a number of messages to be sent, shed or failed.
+   */
+  private void waitForHandled (long handled) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while ((handled() < handled || _scheduler.getPendingCount() > 0)
+        && System.nanoTime() < deadline)
+      Thread.sleep(5);
+    assertEquals(handled, handled());
+  }
+
+  private long handled () {
+    return _scheduler.getSentCount() + _scheduler.getShedCount()
+        + _scheduler.getFailedCount();
+  }
+
+  /**
+   * Gets the texts of the messages the server received, waiting for a
+   * number of them.
+   */
+  private List<String> texts (int count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (true) {
+      List<String> texts = new ArrayList<String>();
+      List<String> lines = _server.getRecordedLines();
+      for (int i = 0; i + 1 < lines.size(); i++) {
+        if (lines.get(i).trim().equalsIgnoreCase("SPEAK"))
+          texts.add(lines.get(i + 1));
+      }
+      if (texts.size() >= count || System.nanoTime() > deadline)
+        return texts;
+      Thread.sleep(5);
+    }
+  }
+}
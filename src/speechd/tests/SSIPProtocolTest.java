@@ -0,0 +1,211 @@
+/*
+ * SSIPProtocolTest.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import speechd.ssip.SSIPClient;
+import speechd.ssip.SSIPCommand;
+import speechd.ssip.SSIPCommandException;
+import speechd.ssip.SSIPConnection;
+import speechd.ssip.SSIPPriority;
+import speechd.ssip.SSIPResponse;
+import speechd.ssip.SSIPSynthesisVoice;
+import junit.framework.TestCase;
+
+/**
+ * Checks what {@code SSIPClient} and {@code SSIPConnection} put on the wire
+ * and how they read the answers, against a {@link FakeSSIPServer}: line
+ * decoding, data escaping, skipped {@code SET} commands, settings sent with
+ * the speech, data held until its command is accepted and pipelined
+ * responses.
+ *
+ * @author ragb
+ */
+public class SSIPProtocolTest extends TestCase {
+  private FakeSSIPServer _server;
+  private SSIPClient _client;
+
+  protected void setUp () throws Exception {
+    super.setUp();
+    _server = new FakeSSIPServer();
+    _server.setSpeakingTime(20, TimeUnit.MILLISECONDS);
+    _client = new SSIPClient("test", null, null, _server.listenTcp(0));
+  }
+
+  protected void tearDown () throws Exception {
+    super.tearDown();
+    _client.close();
+    _server.close();
+  }
+
+  public void testSplitReads () throws Exception {
+    // a few bytes per read, multi byte characters split too
+    _server.setFragmentSize(3);
+    _server.setSynthesisVoices(Arrays.asList("José\tpt\tnone",
+        "Çà ü\tfr\tm1"));
+    List<SSIPSynthesisVoice> voices = _client.getSynthesisVoices();
+    assertEquals(2, voices.size());
+    assertEquals("José", voices.get(0).getName());
+    assertEquals("Çà ü", voices.get(1).getName());
+    // no carriage return left at the end of the line
+    assertEquals("m1", voices.get(1).getVariant());
+    assertTrue(_client.say(SSIPPriority.TEXT, "after split reads") > 0);
+  }
+
+  public void testDataEscaping () throws Exception {
+    _server.setRecording(true);
+    _client.say(SSIPPriority.TEXT, "first\n.starts with a dot\r\n.\nlast");
+    List<String> lines = _server.getRecordedLines();
+    int speak = indexOf(lines, "SPEAK");
+    assertTrue(speak >= 0);
+    assertEquals(Arrays.asList("first", "..starts with a dot", "..", "last",
+        "."), lines.subList(speak + 1, lines.size()));
+    assertEquals(0, _server.getBareLineFeedCount());
+  }
+
+  public void testUnchangedSetSkipped () throws Exception {
+    _server.setRecording(true);
+    _client.setRate(10);
+    _client.setRate(10);
+    assertEquals(1, countSet("RATE"));
+    _client.setRate(20);
+    assertEquals(2, countSet("RATE"));
+  }
+
+  public void testRejectedSetForgotten () throws Exception {
+    _client.setRate(10);
+    _server.failCommand("SET", 410);
+    try {
+      _client.setRate(20);
+      fail();
+    } catch (SSIPCommandException e) {
+      assertEquals(410, e.getResponse().getCode());
+    }
+    _server.clearFailures();
+    _server.setRecording(true);
+    // the rate is unknown now, even the old value is sent
+    _client.setRate(10);
+    assertEquals(1, countSet("RATE"));
+  }
+
+  public void testAffectedParameterForgotten () throws Exception {
+    _client.setSynthesisVoice("alice");
+    _client.setLanguage("pt");
+    _server.setRecording(true);
+    // setting the language may have selected another voice
+    _client.setSynthesisVoice("alice");
+    assertEquals(1, countSet("SYNTHESIS_VOICE"));
+  }
+
+  public void testSayInTwoRoundTrips () throws Exception {
+    _server.setLatency(100, TimeUnit.MILLISECONDS);
+    long start = System.nanoTime();
+    // the priority changes, so SET and SPEAK are sent together, then the data
+    assertTrue(_client.say(SSIPPriority.IMPORTANT, "two writes") > 0);
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(300));
+  }
+
+  public void testRejectedSpeakSendsNoData () throws Exception {
+    _server.setRecording(true);
+    _server.failCommand("SPEAK", 401);
+    try {
+      // read as commands these lines would end the session
+      _client.say(SSIPPriority.TEXT, "first line\nSET self RATE 100\nQUIT");
+      fail();
+    } catch (SSIPCommandException e) {
+      assertEquals(401, e.getResponse().getCode());
+    }
+    _server.clearFailures();
+    assertEquals("fake", _client.getOutputModules().get(0));
+    assertTrue(_client.say(SSIPPriority.TEXT, "accepted") > 0);
+    List<String> lines = _server.getRecordedLines();
+    assertEquals(-1, indexOf(lines, "first line"));
+    assertEquals(-1, indexOf(lines, "QUIT"));
+    assertEquals(0, countSet("RATE"));
+    assertEquals(1, _server.getConnectionCount());
+  }
+
+  public void testRejectedSetSpeaksNoData () throws Exception {
+    _server.setRecording(true);
+    _server.failCommand("SET", 410);
+    try {
+      _client.say(SSIPPriority.IMPORTANT, "not at the old priority");
+      fail();
+    } catch (SSIPCommandException e) {
+      assertEquals(410, e.getResponse().getCode());
+    }
+    _server.clearFailures();
+    assertEquals(-1, indexOf(_server.getRecordedLines(),
+        "not at the old priority"));
+    // the empty block ending the data mode was answered, and the priority is
+    // sent again
+    assertTrue(_client.say(SSIPPriority.IMPORTANT, "accepted") > 0);
+    assertEquals(2, countSet("PRIORITY"));
+  }
+
+  public void testPipelinedResponseOrder () throws Exception {
+    _server.setLatency(5, TimeUnit.MILLISECONDS);
+    SSIPConnection connection = _client.getConnection();
+    List<CompletableFuture<SSIPResponse>> futures = new ArrayList<CompletableFuture<SSIPResponse>>();
+    for (int i = 0; i < 50; i++) {
+      futures.add(connection.sendCommandAsync(new SSIPCommand("HISTORY",
+          "GET", "CLIENT_ID")));
+      futures.add(connection.sendCommandAsync(new SSIPCommand("LIST",
+          "OUTPUT_MODULES")));
+      futures.addAll(connection.sendBatchAsync(Arrays.asList(new SSIPCommand(
+          "BLOCK", "BEGIN"), new SSIPCommand("BLOCK", "END")), null));
+    }
+    assertEquals(200, futures.size());
+    for (int i = 0; i < futures.size(); i += 4) {
+      assertEquals(245, futures.get(i).get(5, TimeUnit.SECONDS).getCode());
+      assertEquals(250, futures.get(i + 1).get(5, TimeUnit.SECONDS).getCode());
+      assertEquals(260, futures.get(i + 2).get(5, TimeUnit.SECONDS).getCode());
+      assertEquals(261, futures.get(i + 3).get(5, TimeUnit.SECONDS).getCode());
+    }
+  }
+
+  private static int indexOf (List<String> lines, String verb) {
+    for (int i = 0; i < lines.size(); i++) {
+      if (lines.get(i).trim().equalsIgnoreCase(verb))
+        return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Counts the recorded {@code SET} commands of a parameter.
+   */
+  private int countSet (String param) {
+    int n = 0;
+    for (String line : _server.getRecordedLines()) {
+      String[] args = line.toUpperCase(Locale.ROOT).split(" +");
+      if (args.length > 2 && args[0].equals("SET") && args[2].equals(param))
+        n++;
+    }
+    return n;
+  }
+}
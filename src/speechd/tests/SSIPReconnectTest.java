@@ -0,0 +1,217 @@
+/*
+ * SSIPReconnectTest.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import speechd.ssip.SSIPClient;
+import speechd.ssip.SSIPCommunicationException;
+import speechd.ssip.SSIPConnection;
+import speechd.ssip.SSIPPriority;
+import speechd.ssip.SSIPReconnectPolicy;
+import junit.framework.TestCase;
+
+/**
+ * Drops the connection of a {@code SSIPClient} with a reconnect policy and
+ * checks the session replayed to the {@link FakeSSIPServer}.
+ *
+ * @author ragb
+ */
+public class SSIPReconnectTest extends TestCase {
+  private FakeSSIPServer _server;
+  private SSIPClient _client;
+
+  protected void setUp () throws Exception {
+    super.setUp();
+    _server = new FakeSSIPServer();
+    _server.setSpeakingTime(0, TimeUnit.MILLISECONDS);
+    _client = new SSIPClient("test", null, null, _server.listenTcp(0));
+    _client.setReconnectPolicy(new SSIPReconnectPolicy(10, 100,
+        TimeUnit.MILLISECONDS, 5));
+  }
+
+  protected void tearDown () throws Exception {
+    super.tearDown();
+    _client.close();
+    _server.close();
+  }
+
+  public void testReplayInJournalOrder () throws Exception {
+    _client.setRate(10);
+    _client.setLanguage("pt");
+    _client.setPitch(5);
+    // moves the rate after the pitch
+    _client.setRate(20);
+    // forgets the language
+    _client.setSynthesisVoice("alice");
+    int oldId = _client.getClientId();
+    _server.setRecording(true);
+    drop();
+    assertEquals("fake", _client.getOutputModules().get(0));
+    List<String> lines = upperCase(_server.getRecordedLines());
+    assertTrue(lines.get(0).startsWith("SET SELF CLIENT_NAME "));
+    assertEquals(Arrays.asList("SET SELF PITCH 5", "SET SELF RATE 20",
+        "SET SELF SYNTHESIS_VOICE ALICE", "HISTORY GET CLIENT_ID",
+        "LIST OUTPUT_MODULES"), lines.subList(1, lines.size()));
+    assertTrue(_client.getClientId() != oldId);
+    assertEquals(1, _server.getConnectionCount());
+    // still remembered after the replay
+    _server.setRecording(true);
+    _client.setRate(20);
+    assertTrue(_server.getRecordedLines().isEmpty());
+  }
+
+  public void testRejectedReplayForgotten () throws Exception {
+    _client.setRate(10);
+    drop();
+    _server.failCommand("SET", 410);
+    // the client name is rejected too, but the session is restored
+    assertEquals("fake", _client.getOutputModules().get(0));
+    _server.clearFailures();
+    _server.setRecording(true);
+    _client.setRate(10);
+    assertEquals(Arrays.asList("SET SELF RATE 10"), upperCase(_server
+        .getRecordedLines()));
+  }
+
+  public void testConcurrentSayWaitsForReplay () throws Exception {
+    final int threads = 8;
+    _client.setRate(10);
+    _client.say(SSIPPriority.TEXT, "before");
+    drop();
+    _server.setRecording(true);
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Integer>> ids = new ArrayList<Future<Integer>>();
+      for (int i = 0; i < threads; i++) {
+        ids.add(executor.submit(new Callable<Integer>() {
+          public Integer call () throws Exception {
+            start.await();
+            return _client.say(SSIPPriority.TEXT, "after");
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<Integer> id : ids)
+        assertTrue(id.get(5, TimeUnit.SECONDS) > 0);
+    } finally {
+      executor.shutdownNow();
+    }
+    List<String> lines = upperCase(_server.getRecordedLines());
+    assertTrue(lines.get(0), lines.get(0).startsWith("SET SELF CLIENT_NAME "));
+    // no speech before the session is restored
+    int restored = lines.indexOf("HISTORY GET CLIENT_ID");
+    assertTrue(restored > 0);
+    assertTrue(lines.subList(1, restored).contains("SET SELF PRIORITY TEXT"));
+    assertFalse(lines.subList(0, restored).contains("SPEAK"));
+    assertEquals(threads, count(lines, "SPEAK"));
+    assertEquals(1, _server.getConnectionCount());
+  }
+
+  public void testLostWithoutPolicy () throws Exception {
+    _client.setReconnectPolicy(null);
+    drop();
+    try {
+      _client.say(SSIPPriority.TEXT, "lost");
+      fail();
+    } catch (SSIPCommunicationException e) {
+      // stays lost
+    }
+    assertEquals(0, _server.getConnectionCount());
+  }
+
+  public void testDisconnectWhileConnecting () throws Exception {
+    final SSIPConnection connection = _client.getConnection();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final ThreadFactory factory = connection.getThreadFactory();
+    // the first thread is created in the middle of connect()
+    connection.setThreadFactory(new ThreadFactory() {
+      private boolean _raced;
+
+      public Thread newThread (Runnable task) {
+        if (!_raced) {
+          _raced = true;
+          Thread other = new Thread() {
+            public void run () {
+              try {
+                connection.disconnect();
+              } catch (Throwable t) {
+                error.set(t);
+              }
+            }
+          };
+          other.start();
+          try {
+            other.join(TimeUnit.SECONDS.toMillis(1));
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return factory.newThread(task);
+      }
+    });
+    drop();
+    assertTrue(_client.say(SSIPPriority.TEXT, "reconnected") > 0);
+    assertNull(error.get());
+    connection.disconnect();
+    assertFalse(connection.isConnected());
+  }
+
+  /**
+   * Drops the connection and waits for the client to see it.
+   */
+  private void drop () throws Exception {
+    _server.dropConnections();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (_client.getConnection().isConnected()
+        && System.nanoTime() < deadline)
+      Thread.sleep(5);
+    assertFalse(_client.getConnection().isConnected());
+  }
+
+  private static int count (List<String> lines, String line) {
+    int n = 0;
+    for (String l : lines) {
+      if (l.equals(line))
+        n++;
+    }
+    return n;
+  }
+
+  private static List<String> upperCase (List<String> lines) {
+    List<String> result = new ArrayList<String>(lines.size());
+    for (String line : lines)
+      result.add(line.trim().toUpperCase(Locale.ROOT));
+    return result;
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * SSIPStreamTest.java
+ *
+ * Copyright (C) 2008, 2010 Rui Batista <rui.batista@ist.utl.pt>
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2.1, or (at your option)
+ * any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this package; see the file COPYING.  If not, write to
+ * the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA 02110-1301, USA.
+ */
+package speechd.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import speechd.ssip.SSIPClient;
+import speechd.ssip.SSIPCommunicationException;
+import speechd.ssip.SSIPEvent;
+import speechd.ssip.SSIPEventDispatcher;
+import speechd.ssip.SSIPEventHandler;
+import speechd.ssip.SSIPException;
+import speechd.ssip.SSIPPriority;
+import junit.framework.TestCase;
+
+/**
+ * Checks how {@code SSIPClient.sayStream} splits text into messages and keeps
+ * them in one block, from the lines recorded by a {@link FakeSSIPServer},
+ * and that an event handler speaking during a stream doesn't deadlock.
+ *
+ * @author ragb
+ */
+public class SSIPStreamTest extends TestCase {
+  /**
+   * Longest message sent for a sentence.
+   */
+  private static final int MAX_CHUNK = 4096;
+
+  private FakeSSIPServer _server;
+  private SSIPClient _client;
+
+  protected void setUp () throws Exception {
+    super.setUp();
+    _server = new FakeSSIPServer();
+    _server.setSpeakingTime(0, TimeUnit.MILLISECONDS);
+    _client = new SSIPClient("test", null, null, _server.listenTcp(0));
+    _client.setLanguage("en");
+  }
+
+  protected void tearDown () throws Exception {
+    super.tearDown();
+    _client.close();
+    _server.close();
+  }
+
+  public void testSentences () throws Exception {
+    _server.setRecording(true);
+    List<Integer> ids = _client.sayStream(SSIPPriority.TEXT,
+        "First sentence.  Second one!\n\nAnd the third?");
+    assertEquals(3, ids.size());
+    assertEquals(Arrays.asList("First sentence.", "Second one!",
+        "And the third?"), messages());
+  }
+
+  public void testOverlongSentence () throws Exception {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 2000; i++)
+      text.append("word ");
+    text.append("end.");
+    _server.setRecording(true);
+    _client.sayStream(SSIPPriority.TEXT, text);
+    List<String> messages = messages();
+    assertEquals(3, messages.size());
+    StringBuilder joined = new StringBuilder();
+    for (String message : messages) {
+      assertTrue(message.length() <= MAX_CHUNK);
+      // split between words
+      assertTrue(message.startsWith("word "));
+      assertTrue(message.endsWith("word") || message.endsWith("end."));
+      if (joined.length() > 0)
+        joined.append(' ');
+      joined.append(message);
+    }
+    assertEquals(text.toString(), joined.toString());
+  }
+
+  public void testSplitAtLimit () throws Exception {
+    StringBuilder word = new StringBuilder();
+    for (int i = 0; i < 5000; i++)
+      word.append('x');
+    _server.setRecording(true);
+    _client.sayStream(SSIPPriority.TEXT, word + ". Next.");
+    List<String> messages = messages();
+    assertEquals(3, messages.size());
+    // no white space to split at
+    assertEquals(word.substring(0, MAX_CHUNK), messages.get(0));
+    assertEquals(word.substring(MAX_CHUNK) + ".", messages.get(1));
+    assertEquals("Next.", messages.get(2));
+  }
+
+  public void testSplitSurrogatePair () throws Exception {
+    // characters outside the BMP, the limit falls inside a surrogate pair
+    StringBuilder word = new StringBuilder("x");
+    for (int i = 0; i < 2100; i++)
+      word.appendCodePoint(0x1F600);
+    _server.setRecording(true);
+    _client.sayStream(SSIPPriority.TEXT, word + ". Next.");
+    List<String> messages = messages();
+    assertEquals(3, messages.size());
+    assertEquals(word.substring(0, MAX_CHUNK - 1), messages.get(0));
+    assertEquals(word.substring(MAX_CHUNK - 1) + ".", messages.get(1));
+    assertEquals("Next.", messages.get(2));
+  }
+
+  public void testSharedClient () throws Exception {
+    _server.setLatency(1, TimeUnit.MILLISECONDS);
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 200; i++)
+      text.append("Sentence ").append(i).append(". ");
+    final AtomicReference<Exception> error = new AtomicReference<Exception>();
+    Thread other = new Thread() {
+      public void run () {
+        try {
+          for (int i = 0; i < 20; i++) {
+            _client.say(SSIPPriority.MESSAGE, "other");
+            _client.setRate(i);
+          }
+        } catch (Exception e) {
+          error.set(e);
+        }
+      }
+    };
+    _server.setRecording(true);
+    other.start();
+    List<Integer> ids = _client.sayStream(SSIPPriority.TEXT, text);
+    other.join();
+    assertNull(error.get());
+    assertEquals(200, ids.size());
+    // nothing but the stream's messages inside its block
+    boolean inside = false;
+    int blocks = 0;
+    int speak = 0;
+    for (String line : _server.getRecordedLines()) {
+      String command = line.trim().toUpperCase(Locale.ROOT);
+      if (command.equals("BLOCK BEGIN")) {
+        assertFalse(inside);
+        inside = true;
+        blocks++;
+      } else if (command.equals("BLOCK END")) {
+        assertTrue(inside);
+        inside = false;
+      } else if (inside) {
+        assertFalse(line, command.startsWith("SET ") || line.equals("other"));
+        if (command.equals("SPEAK"))
+          speak++;
+      }
+    }
+    assertEquals(1, blocks);
+    assertEquals(200, speak);
+  }
+
+  public void testHandlerSaysDuringStream () throws Exception {
+    _server.setLatency(1, TimeUnit.MILLISECONDS);
+    // a full buffer makes the communications thread wait for the handler
+    _client.getConnection().setEventDispatcher(new SSIPEventDispatcher(1,
+        SSIPEventDispatcher.OverflowPolicy.BLOCK));
+    _client.setNotification(true);
+    final AtomicReference<Exception> error = new AtomicReference<Exception>();
+    final CountDownLatch handled = new CountDownLatch(1);
+    _client.setEventHandler(new SSIPEventHandler() {
+      public void handleSSIPEvent (SSIPEvent event) {
+        if (handled.getCount() == 0)
+          return;
+        try {
+          _client.say(SSIPPriority.MESSAGE, "from the handler");
+        } catch (SSIPException e) {
+          error.set(e);
+        }
+        handled.countDown();
+      }
+    });
+    final StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 200; i++)
+      text.append("Sentence ").append(i).append(". ");
+    final AtomicReference<List<Integer>> ids = new AtomicReference<List<Integer>>();
+    Thread stream = new Thread() {
+      public void run () {
+        try {
+          ids.set(_client.sayStream(SSIPPriority.TEXT, text));
+        } catch (SSIPException e) {
+          // ids stays null
+        }
+      }
+    };
+    stream.start();
+    assertTrue(handled.await(5, TimeUnit.SECONDS));
+    // failed at once instead of waiting for the stream
+    assertTrue(error.get() instanceof SSIPCommunicationException);
+    stream.join(TimeUnit.SECONDS.toMillis(10));
+    assertFalse(stream.isAlive());
+    assertEquals(200, ids.get().size());
+    assertTrue(_client.say(SSIPPriority.MESSAGE, "after the stream") > 0);
+  }
+
+  /**
+   * Gets the texts of the messages recorded.
+   */
+  private List<String> messages () {
+    List<String> messages = new ArrayList<String>();
+    StringBuilder message = null;
+    for (String line : _server.getRecordedLines()) {
+      if (message == null) {
+        if (line.trim().equalsIgnoreCase("SPEAK"))
+          message = new StringBuilder();
+      } else if (line.equals(".")) {
+        messages.add(message.toString());
+        message = null;
+      } else {
+        if (message.length() > 0)
+          message.append('\n');
+        message.append(line.startsWith("..") ? line.substring(1) : line);
+      }
+    }
+    return messages;
+  }
+}